@@ -0,0 +1,108 @@
+package com.example.suitcase2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Every sort and filter of the item list must be read along an index, in the order of the
+// sort. A full scan, or rows sorted in a temporary B-tree, would make each page cost as much
+// as the whole table.
+@RunWith(AndroidJUnit4.class)
+public class ItemQueryPlanTest {
+
+    private static final long[][] PRICE_RANGES = {
+            {ItemQuery.NO_LIMIT, ItemQuery.NO_LIMIT}, {100, ItemQuery.NO_LIMIT}, {ItemQuery.NO_LIMIT, 5000}, {100, 5000}
+    };
+
+    private DatabaseHelper helper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // No name: an in-memory database with the current schema
+        helper = new DatabaseHelper(context, null, new ImageStore(context.getCacheDir()));
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+    }
+
+    @Test
+    public void everyQueryWalksAnIndex() {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        for (ItemQuery.Sort sort : ItemQuery.Sort.values()) {
+            for (boolean descending : new boolean[]{false, true}) {
+                for (boolean unpurchasedOnly : new boolean[]{false, true}) {
+                    for (long[] range : PRICE_RANGES) {
+                        ItemQuery query = ItemQuery.DEFAULT.withSort(sort, descending)
+                                .withUnpurchasedOnly(unpurchasedOnly).withPriceRange(range[0], range[1]);
+                        int[] groups = query.groupsByPurchased() ? new int[]{0, 1} : new int[]{DatabaseHelper.ANY_PURCHASED};
+                        for (int purchased : groups) {
+                            assertPlanUsesIndex(db, query, purchased, null);
+                            assertPlanUsesIndex(db, query, purchased, new Item(7, "Soap", 250, null, null, purchased == 1));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sortsUseTheirIndex() {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        Item after = new Item(7, "Soap", 250, null, null, false);
+        assertTrue(plan(db, ItemQuery.DEFAULT.withSort(ItemQuery.Sort.PRICE, false), 0, after)
+                .contains("items_purchased_price"));
+        assertTrue(plan(db, ItemQuery.DEFAULT.withSort(ItemQuery.Sort.NAME, true).withPriceRange(100, 5000), 0, after)
+                .contains("items_purchased_name"));
+        assertTrue(plan(db, ItemQuery.DEFAULT.withUnpurchasedOnly(true), DatabaseHelper.ANY_PURCHASED, after)
+                .contains("INTEGER PRIMARY KEY"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void groupedQueryNeedsAGroup() {
+        DatabaseHelper.buildItemsPageSql(ItemQuery.DEFAULT.withSort(ItemQuery.Sort.NAME, false),
+                DatabaseHelper.ANY_PURCHASED, null, 10, new ArrayList<String>());
+    }
+
+    private static void assertPlanUsesIndex(SQLiteDatabase db, ItemQuery query, int purchased, Item after) {
+        List<String> steps = planSteps(db, query, purchased, after);
+        assertFalse(steps.isEmpty());
+        for (String step : steps) {
+            assertTrue(step, step.contains(" USING "));
+            assertFalse(step, step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private static String plan(SQLiteDatabase db, ItemQuery query, int purchased, Item after) {
+        return planSteps(db, query, purchased, after).toString();
+    }
+
+    // The detail column of every step, each prefixed with the query so a failure names it
+    private static List<String> planSteps(SQLiteDatabase db, ItemQuery query, int purchased, Item after) {
+        List<String> args = new ArrayList<>();
+        String sql = DatabaseHelper.buildItemsPageSql(query, purchased, after, ItemPager.PAGE_SIZE, args);
+        List<String> steps = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args.toArray(new String[0]))) {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                steps.add(sql + " -> " + cursor.getString(detail));
+            }
+        }
+        return steps;
+    }
+}
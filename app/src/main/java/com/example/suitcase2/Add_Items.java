@@ -3,8 +3,6 @@ package com.example.suitcase2;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.view.View;
@@ -21,20 +19,20 @@ import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
-import java.io.ByteArrayOutputStream;
-
 import de.hdodenhof.circleimageview.CircleImageView;
 
 public class Add_Items extends AppCompatActivity {
 
     private static final int PICK_IMAGE_REQUEST = 1;
     private static final int PERMISSION_REQUEST_CODE = 100;
+    // Size of add_img in activity_add_items.xml
+    private static final int IMAGE_SIZE_DP = 120;
 
-    DatabaseHelper myDbHelper;
+    ItemRepository repository;
     EditText editTextName, editTextPrice, editTextDescription;
     Button buttonAdd, buttonHome;
     CircleImageView circleImageView;
-    Bitmap selectedImageBitmap;
+    byte[] selectedImage; // Encoded by ImageIngest, null until an image is picked and read
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,7 +45,7 @@ public class Add_Items extends AppCompatActivity {
             return insets;
         });
 
-        myDbHelper = new DatabaseHelper(this);
+        repository = ItemRepository.getInstance(this);
         editTextName = findViewById(R.id.add_item_name);
         editTextPrice = findViewById(R.id.add_item_price);
         editTextDescription = findViewById(R.id.add_item_description);
@@ -74,18 +72,35 @@ public class Add_Items extends AppCompatActivity {
                 String priceStr = editTextPrice.getText().toString();
                 String description = editTextDescription.getText().toString();
 
-                if (name.isEmpty() || priceStr.isEmpty() || description.isEmpty() || selectedImageBitmap == null) {
+                if (name.isEmpty() || priceStr.isEmpty() || description.isEmpty() || selectedImage == null) {
                     Toast.makeText(Add_Items.this, "Please fill all fields and select an image", Toast.LENGTH_SHORT).show();
                     return;
                 }
 
-                double price = Double.parseDouble(priceStr);
-                byte[] image = getBitmapAsByteArray(selectedImageBitmap);
-                myDbHelper.insertItem(name, price, description, image);
-                Toast.makeText(Add_Items.this, "Item Added", Toast.LENGTH_SHORT).show();
-                Intent i  = new Intent(getApplicationContext(), MainActivity.class);
-                startActivity(i);
-                finish();
+                long priceMinor;
+                try {
+                    priceMinor = Money.parse(priceStr);
+                } catch (NumberFormatException | ArithmeticException e) {
+                    // A lone "." or more digits than a price can have
+                    editTextPrice.setError("Enter a valid price");
+                    editTextPrice.requestFocus();
+                    return;
+                }
+                buttonAdd.setEnabled(false);
+                repository.insertItem(name, priceMinor, description, selectedImage, new WriteQueue.Callback() {
+                    @Override
+                    public void onComplete(boolean success) {
+                        if (!success) {
+                            buttonAdd.setEnabled(true);
+                            Toast.makeText(Add_Items.this, "Failed to add item", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        Toast.makeText(Add_Items.this, "Item Added", Toast.LENGTH_SHORT).show();
+                        Intent i  = new Intent(getApplicationContext(), MainActivity.class);
+                        startActivity(i);
+                        finish();
+                    }
+                });
             }
         });
 
@@ -101,12 +116,25 @@ public class Add_Items extends AppCompatActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == PICK_IMAGE_REQUEST && resultCode == RESULT_OK && data != null && data.getData() != null) {
-            try {
-                selectedImageBitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), data.getData());
-                circleImageView.setImageBitmap(selectedImageBitmap);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            // Read in the background, adding waits until the image is ready
+            selectedImage = null;
+            buttonAdd.setEnabled(false);
+            int previewSizePx = Math.round(IMAGE_SIZE_DP * getResources().getDisplayMetrics().density);
+            new ImageIngest(this).ingest(data.getData(), previewSizePx, new ImageIngest.Callback() {
+                @Override
+                public void onComplete(ImageIngest.Image image) {
+                    if (isDestroyed()) {
+                        return;
+                    }
+                    buttonAdd.setEnabled(true);
+                    if (image == null) {
+                        Toast.makeText(Add_Items.this, "Could not read the image", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    selectedImage = image.bytes;
+                    circleImageView.setImageBitmap(image.preview);
+                }
+            });
         }
     }
 
@@ -121,10 +149,4 @@ public class Add_Items extends AppCompatActivity {
             }
         }
     }
-
-    public static byte[] getBitmapAsByteArray(Bitmap bitmap) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-        return outputStream.toByteArray();
-    }
 }
@@ -0,0 +1,16 @@
+package com.example.suitcase2;
+
+import android.database.sqlite.SQLiteDatabase;
+
+// Work of a schema upgrade that touches every row, such as filling a new column, building
+// an index or moving data. onUpgrade only schedules it; BackfillRunner then runs it a chunk
+// at a time on the writer thread after the database is open, and the position reached is
+// committed with every chunk, so an upgrade that is interrupted goes on where it stopped.
+// Work on files that would hold the transaction too long is a FileBackfill instead.
+public interface Backfill {
+
+    // Processes the next chunk of rows after `position`, null at the start, and returns the
+    // position to go on from, or null once there is nothing left. Runs inside the
+    // transaction that saves the position, so a chunk is done completely or not at all.
+    String runChunk(SQLiteDatabase db, String position);
+}
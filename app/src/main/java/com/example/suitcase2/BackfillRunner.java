@@ -0,0 +1,132 @@
+package com.example.suitcase2;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs the backfills that onUpgrade scheduled, one chunk per task on the writer thread of
+// the WriteQueue. Each task queues the next one behind it, so edits made meanwhile are
+// written between two chunks instead of after the whole backfill. The chunks of a
+// FileBackfill run on a thread of their own, only their position is saved on the writer.
+class BackfillRunner {
+
+    private static final String TAG = "BackfillRunner";
+
+    private static final ExecutorService fileWorker = Executors.newSingleThreadExecutor();
+
+    private final DatabaseHelper helper;
+    private final WriteQueue writeQueue;
+    private final Runnable onChunkCommitted;
+    private volatile boolean stopped = false;
+
+    private final Runnable chunkTask = new Runnable() {
+        @Override
+        public void run() {
+            runChunk();
+        }
+    };
+
+    // `onChunkCommitted` runs on the writer thread after every chunk
+    BackfillRunner(DatabaseHelper helper, WriteQueue writeQueue, Runnable onChunkCommitted) {
+        this.helper = helper;
+        this.writeQueue = writeQueue;
+        this.onChunkCommitted = onChunkCommitted;
+    }
+
+    void start() {
+        writeQueue.execute(chunkTask);
+    }
+
+    // Call it before the database is closed. What is left runs the next time it is opened.
+    void stop() {
+        stopped = true;
+    }
+
+    private void runChunk() {
+        if (stopped) {
+            return;
+        }
+        String[] next;
+        try {
+            next = helper.getNextBackfill();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read the backfill state", e);
+            return;
+        }
+        if (next == null) {
+            return; // All done
+        }
+        String name = next[0];
+        FileBackfill fileBackfill = helper.getFileBackfill(name);
+        if (fileBackfill != null) {
+            runFileChunk(name, fileBackfill, next[1]);
+        } else {
+            commitChunk(name, helper.getBackfill(name), next[1]);
+        }
+    }
+
+    private void runFileChunk(final String name, final FileBackfill backfill, final String position) {
+        fileWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stopped) {
+                    return;
+                }
+                final String reached;
+                try {
+                    reached = backfill.runChunk(position);
+                } catch (RuntimeException e) {
+                    // Left where it was, it is tried again the next time the database is opened
+                    Log.e(TAG, "Backfill " + name + " failed", e);
+                    return;
+                }
+                writeQueue.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (stopped) {
+                            return;
+                        }
+                        commitChunk(name, new Backfill() {
+                            @Override
+                            public String runChunk(SQLiteDatabase db, String done) {
+                                return reached; // Done above, only the position is saved
+                            }
+                        }, position);
+                    }
+                });
+            }
+        });
+    }
+
+    // On the writer thread. Runs the chunk and saves the position it returns in one
+    // transaction, then queues the next chunk.
+    private void commitChunk(String name, Backfill backfill, String position) {
+        boolean committed = false;
+        long start = Metrics.now();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (backfill == null) {
+                // Scheduled by a newer version that was since replaced by this one
+                Log.w(TAG, "Dropping unknown backfill " + name);
+                DatabaseHelper.saveBackfillPosition(db, name, null);
+            } else {
+                DatabaseHelper.saveBackfillPosition(db, name, backfill.runChunk(db, position));
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (RuntimeException e) {
+            // Left where it was, it is tried again the next time the database is opened
+            Log.e(TAG, "Backfill " + name + " failed", e);
+        } finally {
+            db.endTransaction();
+        }
+        Metrics.DB_BACKFILL_CHUNK.stop(start);
+        if (committed && !stopped) {
+            onChunkCommitted.run();
+            writeQueue.execute(chunkTask);
+        }
+    }
+}
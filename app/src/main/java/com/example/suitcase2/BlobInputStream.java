@@ -0,0 +1,82 @@
+package com.example.suitcase2;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.InputStream;
+
+// Reads one BLOB cell in fixed size chunks with substr(), so BLOBs bigger than a
+// CursorWindow can be streamed out of the database without loading them whole
+class BlobInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final SQLiteDatabase db;
+    private final String sql;
+    private final String rowId;
+    private final long length;
+
+    private byte[] chunk = new byte[0];
+    private int chunkOffset = 0;
+    private long position = 0; // Bytes of the BLOB already fetched into chunks
+
+    BlobInputStream(SQLiteDatabase db, String table, String column, long rowId) {
+        this.db = db;
+        this.sql = "SELECT substr(" + column + ", ?, ?) FROM " + table + " WHERE rowid = ?";
+        this.rowId = String.valueOf(rowId);
+
+        try (Cursor cursor = db.rawQuery("SELECT length(" + column + ") FROM " + table + " WHERE rowid = ?",
+                new String[]{this.rowId})) {
+            this.length = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read() {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[chunkOffset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(count, chunk.length - chunkOffset);
+        System.arraycopy(chunk, chunkOffset, buffer, offset, n);
+        chunkOffset += n;
+        return n;
+    }
+
+    private boolean fill() {
+        if (chunkOffset < chunk.length) {
+            return true;
+        }
+        if (position >= length) {
+            return false;
+        }
+
+        // substr() is 1-based
+        String[] args = {String.valueOf(position + 1), String.valueOf(CHUNK_SIZE), rowId};
+        try (Cursor cursor = db.rawQuery(sql, args)) {
+            chunk = cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        }
+        if (chunk == null || chunk.length == 0) {
+            chunk = new byte[0];
+            position = length;
+            return false;
+        }
+        chunkOffset = 0;
+        position += chunk.length;
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.suitcase2;
+
+// Totals over all items, in minor units, see Money
+public class Budget {
+
+    public static final Budget EMPTY = new Budget(0, 0);
+
+    private final long plannedMinor;
+    private final long purchasedMinor;
+
+    public Budget(long plannedMinor, long purchasedMinor) {
+        this.plannedMinor = plannedMinor;
+        this.purchasedMinor = purchasedMinor;
+    }
+
+    // Price of every item in the list
+    public long getPlannedMinor() {
+        return plannedMinor;
+    }
+
+    // Price of the items already marked as purchased
+    public long getPurchasedMinor() {
+        return purchasedMinor;
+    }
+
+    public long getRemainingMinor() {
+        return plannedMinor - purchasedMinor;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.suitcase2;
+
+// A name and phone number to delegate items to
+public class Contact {
+
+    private final String name;
+    private final String number;
+
+    public Contact(String name, String number) {
+        this.name = name;
+        this.number = number;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getNumber() {
+        return number;
+    }
+
+    // The same number written differently, e.g. "+1 555-0100" and "+15550100", is one contact
+    public String getNormalizedNumber() {
+        return normalizeNumber(number);
+    }
+
+    // Digits only, with a leading + kept
+    static String normalizeNumber(String number) {
+        StringBuilder normalized = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9' || c == '+' && normalized.length() == 0) {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    // The name, or the number for contacts without one
+    public String getLabel() {
+        return name != null && !name.trim().isEmpty() ? name : number;
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.suitcase2;
+
+import android.Manifest;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The phone numbers of the device's contacts, indexed in memory by every word of the name
+// and by the digits of the number, so the delegate dialog finds contacts as the user types
+// without going through the contact picker. Built on a background thread, and built again
+// after the contacts change, or after it was dropped to free memory. Empty without the
+// READ_CONTACTS permission.
+public class ContactIndex {
+
+    private static final String TAG = "ContactIndex";
+
+    private static ContactIndex instance;
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean stale = new AtomicBoolean(true);
+    private boolean observing = false; // Guarded by `this`
+    private volatile Index index = new Index(new ArrayList<Contact>());
+
+    public static synchronized ContactIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ContactIndex(Context context) {
+        this.context = context;
+    }
+
+    // Builds the index in the background if it was never built or the contacts changed since
+    public void refresh() {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        observeContacts();
+        if (!stale.compareAndSet(true, false)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    index = new Index(readContacts());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to read contacts", e);
+                    stale.set(true);
+                }
+            }
+        });
+    }
+
+    // Up to `limit` contacts with a name word, the whole name or the number starting with `text`
+    public List<Contact> search(String text, int limit) {
+        return index.search(text, limit);
+    }
+
+    // Called with the level of onTrimMemory. The index of a large address book is a lot of
+    // strings, and it is cheap to build again when the delegate dialog opens next.
+    public static void trimMemory(int level) {
+        ContactIndex contactIndex;
+        synchronized (ContactIndex.class) {
+            contactIndex = instance;
+        }
+        if (contactIndex != null && (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+            contactIndex.index = new Index(new ArrayList<Contact>());
+            contactIndex.stale.set(true);
+        }
+    }
+
+    private synchronized void observeContacts() {
+        if (observing) {
+            return;
+        }
+        observing = true;
+        context.getContentResolver().registerContentObserver(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        stale.set(true); // Built again the next time the dialog opens
+                    }
+                });
+    }
+
+    private List<Contact> readContacts() {
+        List<Contact> contacts = new ArrayList<>();
+        String[] projection = {ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+                ContactsContract.CommonDataKinds.Phone.NUMBER};
+        try (Cursor cursor = context.getContentResolver().query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                projection, null, null, null)) {
+            if (cursor == null) {
+                return contacts;
+            }
+            // A number linked from several accounts shows up once per account
+            Set<String> seen = new HashSet<>();
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String number = cursor.getString(1);
+                if (number == null) {
+                    continue;
+                }
+                Contact contact = new Contact(name, number);
+                if (seen.add(contact.getLabel() + '\n' + contact.getNormalizedNumber())) {
+                    contacts.add(contact);
+                }
+            }
+        }
+        return contacts;
+    }
+
+    // Sorted keys and the contact each belongs to; a prefix lookup is a binary search plus a
+    // scan over the keys that share the prefix
+    static class Index {
+        private final String[] keys;
+        private final Contact[] contacts;
+
+        Index(List<Contact> all) {
+            final List<String> keyList = new ArrayList<>();
+            final List<Contact> contactList = new ArrayList<>();
+            for (Contact contact : all) {
+                Set<String> contactKeys = new LinkedHashSet<>();
+                String name = normalizeText(contact.getLabel());
+                if (!name.isEmpty()) {
+                    contactKeys.add(name);
+                    contactKeys.addAll(Arrays.asList(name.split(" ")));
+                }
+                String digits = normalizeDigits(contact.getNumber());
+                if (!digits.isEmpty()) {
+                    contactKeys.add(digits);
+                }
+                for (String key : contactKeys) {
+                    keyList.add(key);
+                    contactList.add(contact);
+                }
+            }
+            Integer[] order = new Integer[keyList.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return keyList.get(a).compareTo(keyList.get(b));
+                }
+            });
+            keys = new String[order.length];
+            contacts = new Contact[order.length];
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = keyList.get(order[i]);
+                contacts[i] = contactList.get(order[i]);
+            }
+        }
+
+        List<Contact> search(String text, int limit) {
+            List<Contact> results = new ArrayList<>();
+            String prefix = looksLikeNumber(text) ? normalizeDigits(text) : normalizeText(text);
+            if (prefix.isEmpty()) {
+                return results;
+            }
+            Set<Contact> found = new LinkedHashSet<>();
+            for (int i = lowerBound(prefix); i < keys.length && keys[i].startsWith(prefix); i++) {
+                if (found.add(contacts[i]) && found.size() >= limit) {
+                    break;
+                }
+            }
+            results.addAll(found);
+            return results;
+        }
+
+        // First key not less than `prefix`
+        private int lowerBound(String prefix) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle].compareTo(prefix) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Lower case words separated by single spaces
+    static String normalizeText(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                normalized.append(c);
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return normalized.toString().toLowerCase(Locale.ROOT);
+    }
+
+    static String normalizeDigits(String number) {
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    // Digits, with the usual separators of a typed number
+    static boolean looksLikeNumber(String text) {
+        boolean digit = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if ("+-() ".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return digit;
+    }
+}
@@ -3,98 +3,658 @@ package com.example.suitcase2;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 public class DatabaseHelper extends SQLiteOpenHelper {
 
-    private static final String DATABASE_NAME = "items.db";
-    private static final int DATABASE_VERSION = 1;
+    // Every account has its own database file, see databaseName()
+    static final String LEGACY_DATABASE_NAME = "items.db";
+    private static final String DATABASE_PREFIX = "items_";
+    private static final int DATABASE_VERSION = 10;
+
+    // Tables and columns, see ItemSchema
+    public static final String TABLE_NAME = ItemSchema.TABLE_NAME;
+    public static final String COLUMN_ID = ItemSchema.COLUMN_ID;
+    public static final String COLUMN_NAME = ItemSchema.COLUMN_NAME;
+    public static final String COLUMN_PRICE_MINOR = ItemSchema.COLUMN_PRICE_MINOR;
+    public static final String COLUMN_DESCRIPTION = ItemSchema.COLUMN_DESCRIPTION;
+    public static final String COLUMN_IMAGE_HASH = ItemSchema.COLUMN_IMAGE_HASH;
+    public static final String COLUMN_PURCHASED = ItemSchema.COLUMN_PURCHASED;
+    public static final String COLUMN_SYNC_ID = ItemSchema.COLUMN_SYNC_ID;
+    public static final String COLUMN_UPDATED_AT = ItemSchema.COLUMN_UPDATED_AT;
+    public static final String COLUMN_VERSION = ItemSchema.COLUMN_VERSION;
+    public static final String COLUMN_DIRTY = ItemSchema.COLUMN_DIRTY;
+    public static final String TOMBSTONE_TABLE_NAME = ItemSchema.TOMBSTONE_TABLE_NAME;
+    public static final String COLUMN_DELETED_AT = ItemSchema.COLUMN_DELETED_AT;
+    public static final String SYNC_STATE_TABLE_NAME = ItemSchema.SYNC_STATE_TABLE_NAME;
+    public static final String COLUMN_KEY = ItemSchema.COLUMN_KEY;
+    public static final String COLUMN_VALUE = ItemSchema.COLUMN_VALUE;
+    public static final String SMS_OUTBOX_TABLE_NAME = ItemSchema.SMS_OUTBOX_TABLE_NAME;
+    public static final String COLUMN_RECIPIENT = ItemSchema.COLUMN_RECIPIENT;
+    public static final String COLUMN_BODY = ItemSchema.COLUMN_BODY;
+    public static final String COLUMN_STATUS = ItemSchema.COLUMN_STATUS;
+    public static final String COLUMN_ATTEMPTS = ItemSchema.COLUMN_ATTEMPTS;
+    public static final String COLUMN_NEXT_ATTEMPT_AT = ItemSchema.COLUMN_NEXT_ATTEMPT_AT;
+    public static final String COLUMN_PARTS = ItemSchema.COLUMN_PARTS;
+    public static final String COLUMN_PARTS_SENT = ItemSchema.COLUMN_PARTS_SENT;
+    public static final String COLUMN_PARTS_DELIVERED = ItemSchema.COLUMN_PARTS_DELIVERED;
+    public static final String COLUMN_ERROR = ItemSchema.COLUMN_ERROR;
+    public static final String COLUMN_PART_REPORTS = ItemSchema.COLUMN_PART_REPORTS;
+    public static final String COLUMN_SENT_AT = ItemSchema.COLUMN_SENT_AT;
+    public static final String COLUMN_WINDOW_PARTS = ItemSchema.COLUMN_WINDOW_PARTS;
+    public static final String MIGRATION_STATE_TABLE_NAME = ItemSchema.MIGRATION_STATE_TABLE_NAME;
+    public static final String COLUMN_POSITION = ItemSchema.COLUMN_POSITION;
+    public static final String FTS_TABLE_NAME = ItemSchema.FTS_TABLE_NAME;
+    public static final String BUDGET_TABLE_NAME = ItemSchema.BUDGET_TABLE_NAME;
+    public static final String COLUMN_PLANNED_MINOR = ItemSchema.COLUMN_PLANNED_MINOR;
+    public static final String COLUMN_PURCHASED_MINOR = ItemSchema.COLUMN_PURCHASED_MINOR;
+
+    // Version 1 kept the image bytes inline, only read while migrating them to the ImageStore
+    private static final String LEGACY_COLUMN_IMAGE = "image";
+    // Up to version 3 the price was a REAL, only read while converting it to minor units
+    private static final String LEGACY_COLUMN_PRICE = "price";
+
+    // Rows moved to the ImageStore per chunk of the backfill of version 2
+    private static final int MIGRATION_BATCH_SIZE = 20;
+    // Images given renditions per chunk of the backfill of version 9, each is decoded in full
+    private static final int RENDITION_BATCH_SIZE = 4;
+    // Image files younger than this are never swept, they may be on their way into a row:
+    // imports and the sync store images before the rows pointing at them are written
+    private static final long SWEEP_MIN_AGE_MS = 60 * 60 * 1000;
+
+    // Names of the backfills, stored in migration_state, so they must never change
+    static final String BACKFILL_MOVE_IMAGES = "move_images";
+    static final String BACKFILL_SORT_INDEXES = "sort_indexes";
+    static final String BACKFILL_IMAGE_RENDITIONS = "image_renditions";
+    static final String BACKFILL_SWEEP_IMAGES = "sweep_images";
+
+    // For getItemsPage(ItemQuery, ...) when the query does not group by purchased state
+    static final int ANY_PURCHASED = -1;
+
+    // Columns needed to push a row
+    public static final String[] SYNC_PROJECTION = {
+            COLUMN_SYNC_ID, COLUMN_VERSION, COLUMN_UPDATED_AT, COLUMN_DIRTY, COLUMN_NAME, COLUMN_PRICE_MINOR,
+            COLUMN_DESCRIPTION, COLUMN_IMAGE_HASH, COLUMN_PURCHASED
+    };
+
+    // Search hits in the name count twice as much as hits in the description
+    private static final double[] FTS_COLUMN_WEIGHTS = {2.0, 1.0};
+    // Matches scored per search. A prefix of a letter or two matches most of the table, then
+    // only the newest matches are ranked; a longer prefix soon matches fewer rows than this.
+    private static final int SEARCH_CANDIDATES = 1000;
+
+    // Columns needed to show a row in the list
+    public static final String[] LIST_PROJECTION = {
+            COLUMN_ID, COLUMN_NAME, COLUMN_PRICE_MINOR, COLUMN_DESCRIPTION, COLUMN_IMAGE_HASH, COLUMN_PURCHASED
+    };
+
+    private final ImageStore imageStore;
+    private final ImageRenditions imageRenditions;
 
-    // Table Name
-    public static final String TABLE_NAME = "items";
+    // Guarded by `this`, the lock SQLiteOpenHelper opens and closes the database under
+    private boolean closed = false;
 
-    // Table columns
-    public static final String COLUMN_ID = "_id";
-    public static final String COLUMN_NAME = "name";
-    public static final String COLUMN_PRICE = "price";
-    public static final String COLUMN_DESCRIPTION = "description";
-    public static final String COLUMN_IMAGE = "image"; // New column for image
-    public static final String COLUMN_PURCHASED = "purchased"; // New column for purchase status
+    // Open it through ItemRepository, which keeps one instance per account
+    DatabaseHelper(Context context, String databaseName, ImageStore imageStore) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        // Lets the list keep reading while the write queue commits
+        setWriteAheadLoggingEnabled(true);
+        this.imageStore = imageStore;
+        this.imageRenditions = new ImageRenditions(imageStore, context.getResources().getDisplayMetrics().density);
+    }
+
+    // `userKey` must be safe in a file name
+    static String databaseName(String userKey) {
+        return DATABASE_PREFIX + userKey + ".db";
+    }
+
+    // Once closed the database stays closed. A read or write that arrives late, after the
+    // account signed out, fails instead of quietly opening the database again.
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        checkOpen();
+        return super.getWritableDatabase();
+    }
 
-    // Creating table query
-    private static final String TABLE_CREATE =
-            "CREATE TABLE " + TABLE_NAME + " (" +
-                    COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    COLUMN_NAME + " TEXT, " +
-                    COLUMN_PRICE + " REAL, " +
-                    COLUMN_DESCRIPTION + " TEXT, " +
-                    COLUMN_IMAGE + " BLOB, " +
-                    COLUMN_PURCHASED + " INTEGER DEFAULT 0);"; // Default 0 means not purchased
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        checkOpen();
+        return super.getReadableDatabase();
+    }
 
+    @Override
+    public synchronized void close() {
+        closed = true;
+        super.close();
+    }
 
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The database of this account is closed");
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // Create the items table
-        db.execSQL(TABLE_CREATE);
+        for (String statement : ItemSchema.createStatements()) {
+            db.execSQL(statement);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop the existing items table and recreate it if the database version changes
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        onCreate(db);
+        // Each step upgrades the schema by one version and keeps the user's items. Steps stay
+        // small, since they run in one transaction while the database is being opened;
+        // work over every row that can wait is scheduled as a Backfill instead.
+        if (oldVersion < 8) {
+            // Ahead of the other steps, they schedule their backfills in it
+            createMigrationState(db);
+        }
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_IMAGE_HASH + " TEXT");
+            db.execSQL(ItemSchema.IMAGE_HASH_INDEX_CREATE);
+            scheduleBackfill(db, BACKFILL_MOVE_IMAGES);
+            // Chunks of the move that rolled back leave their files behind
+            scheduleBackfill(db, BACKFILL_SWEEP_IMAGES);
+        }
+        if (oldVersion < 3) {
+            createFullTextIndex(db);
+            // Index the rows that already exist
+            db.execSQL("INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ") VALUES ('rebuild')");
+        }
+        if (oldVersion < 4) {
+            // The REAL column stays, SQLite on older devices cannot drop it, but it is no longer used
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_PRICE_MINOR + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_PRICE_MINOR + " = CAST(ROUND(" +
+                    LEGACY_COLUMN_PRICE + " * 100) AS INTEGER) WHERE " + LEGACY_COLUMN_PRICE + " IS NOT NULL");
+            createBudgetSummary(db);
+        }
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_SYNC_ID + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0");
+            // Every existing item is new to the server
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_SYNC_ID + " = lower(hex(randomblob(16))), " +
+                    COLUMN_UPDATED_AT + " = ?, " + COLUMN_DIRTY + " = " + SyncChange.ALL_FIELDS,
+                    new Object[]{System.currentTimeMillis()});
+            createSyncTables(db);
+        }
+        if (oldVersion < 6) {
+            createSmsOutbox(db);
+        }
+        if (oldVersion < 7) {
+            scheduleBackfill(db, BACKFILL_SORT_INDEXES);
+        }
+        if (oldVersion < 9) {
+            // After the images of version 2 are moved, backfills run in the order scheduled
+            scheduleBackfill(db, BACKFILL_IMAGE_RENDITIONS);
+        }
+        if (oldVersion >= 6 && oldVersion < 10) {
+            // Outboxes from before get the columns createSmsOutbox makes them with now
+            db.execSQL("ALTER TABLE " + SMS_OUTBOX_TABLE_NAME + " ADD COLUMN " + COLUMN_PART_REPORTS + " TEXT");
+            db.execSQL("ALTER TABLE " + SMS_OUTBOX_TABLE_NAME + " ADD COLUMN " + COLUMN_SENT_AT +
+                    " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + SMS_OUTBOX_TABLE_NAME + " ADD COLUMN " + COLUMN_WINDOW_PARTS +
+                    " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL(ItemSchema.SMS_OUTBOX_SENT_INDEX_CREATE);
+        }
     }
 
-    public void insertItem(String name, double price, String description, byte[] image) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(COLUMN_NAME, name);
-        contentValues.put(COLUMN_PRICE, price);
-        contentValues.put(COLUMN_DESCRIPTION, description);
-        contentValues.put(COLUMN_IMAGE, image);
-        db.insert(TABLE_NAME, null, contentValues);
+    // Keyset page: the next `limit` rows after `afterId`
+    public Cursor getItemsPage(long afterId, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.query(TABLE_NAME, LIST_PROJECTION, COLUMN_ID + " > ?",
+                new String[]{String.valueOf(afterId)}, null, null,
+                COLUMN_ID + " ASC", String.valueOf(limit));
+    }
+
+    // Keyset page of a sorted and filtered list: the next `limit` rows after `after`, or the
+    // first rows if `after` is null. A query that groups by purchased state is read one group
+    // at a time, `purchased` says which; otherwise it must be ANY_PURCHASED.
+    public Cursor getItemsPage(ItemQuery query, int purchased, Item after, int limit) {
+        List<String> args = new ArrayList<>();
+        String sql = buildItemsPageSql(query, purchased, after, limit, args);
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery(sql, args.toArray(new String[0]));
+    }
+
+    // Every combination walks an index in the order of the sort, so SQLite reads only the
+    // rows of the page and never sorts in a temporary B-tree. Terms the sort's index cannot
+    // use are written with a unary +, which keeps the planner from picking another index
+    // for them and sorting its result instead. ItemQueryPlanTest checks the plans.
+    static String buildItemsPageSql(ItemQuery query, int purchased, Item after, int limit, List<String> args) {
+        boolean grouped = query.groupsByPurchased();
+        if (grouped == (purchased == ANY_PURCHASED)) {
+            throw new IllegalArgumentException("Purchased group " + purchased + " does not fit the query");
+        }
+        String direction = query.isDescending() ? " DESC" : "";
+        String beyond = query.isDescending() ? " < ?" : " > ?";
+        String notBefore = query.isDescending() ? " <= ?" : " >= ?";
+        String price = query.getSort() == ItemQuery.Sort.PRICE ? COLUMN_PRICE_MINOR : "+" + COLUMN_PRICE_MINOR;
+        String name = COLUMN_NAME + " COLLATE NOCASE";
+
+        List<String> terms = new ArrayList<>();
+        if (grouped) {
+            terms.add(COLUMN_PURCHASED + " = ?");
+            args.add(String.valueOf(purchased));
+        } else if (query.isUnpurchasedOnly()) {
+            terms.add("+" + COLUMN_PURCHASED + " = 0");
+        }
+        if (query.getMinPriceMinor() != ItemQuery.NO_LIMIT) {
+            terms.add(price + " >= ?");
+            args.add(String.valueOf(query.getMinPriceMinor()));
+        }
+        if (query.getMaxPriceMinor() != ItemQuery.NO_LIMIT) {
+            terms.add(price + " <= ?");
+            args.add(String.valueOf(query.getMaxPriceMinor()));
+        }
+
+        String orderBy;
+        switch (query.getSort()) {
+            case PRICE:
+                orderBy = COLUMN_PRICE_MINOR + direction + ", " + COLUMN_ID + direction;
+                if (after != null) {
+                    terms.add(COLUMN_PRICE_MINOR + notBefore + " AND (" + COLUMN_PRICE_MINOR + beyond + " OR " +
+                            COLUMN_ID + beyond + ")");
+                    args.add(String.valueOf(after.getPriceMinor()));
+                    args.add(String.valueOf(after.getPriceMinor()));
+                    args.add(String.valueOf(after.getId()));
+                }
+                break;
+            case NAME:
+                orderBy = name + direction + ", " + COLUMN_ID + direction;
+                if (after != null) {
+                    // Item names are never null, the add and edit screens and the importers require one
+                    terms.add(name + notBefore + " AND (" + name + beyond + " OR " + COLUMN_ID + beyond + ")");
+                    args.add(after.getName());
+                    args.add(after.getName());
+                    args.add(String.valueOf(after.getId()));
+                }
+                break;
+            default:
+                orderBy = COLUMN_ID + direction;
+                // Always bounded, so even the first page is a search on the primary key
+                terms.add(COLUMN_ID + beyond);
+                args.add(String.valueOf(after != null ? after.getId() : query.isDescending() ? Long.MAX_VALUE : 0));
+                break;
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < LIST_PROJECTION.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(LIST_PROJECTION[i]);
+        }
+        sql.append(" FROM ").append(TABLE_NAME);
+        for (int i = 0; i < terms.size(); i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(terms.get(i));
+        }
+        return sql.append(" ORDER BY ").append(orderBy).append(" LIMIT ").append(limit).toString();
+    }
+
+    // Distinct image hashes in order, a page at a time. Walks the image hash index.
+    public List<String> getImageHashesPage(String afterHash, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<String> hashes = new ArrayList<>(limit);
+        try (Cursor cursor = db.rawQuery("SELECT DISTINCT " + COLUMN_IMAGE_HASH + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_IMAGE_HASH + " > ? ORDER BY " + COLUMN_IMAGE_HASH + " LIMIT " + limit,
+                new String[]{afterHash})) {
+            while (cursor.moveToNext()) {
+                hashes.add(cursor.getString(0));
+            }
+        }
+        return hashes;
+    }
+
+    // Returns the ids of the items matching every word of `text` as a prefix in their name
+    // or description, best match first. Returns an empty list if `text` has no words.
+    public List<Long> searchItemIds(String text, int limit) {
+        String match = buildMatchQuery(text);
+        List<Long> ids = new ArrayList<>();
+        if (match == null) {
+            return ids;
+        }
+
+        // FTS4 has no built-in ranking, so the score is computed here from matchinfo(). The
+        // candidates are capped first, so a short prefix does not score the whole table on
+        // every keystroke; FTS4 walks docids in descending order without sorting.
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<SearchHit> hits = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT docid, matchinfo(" + FTS_TABLE_NAME + ", 'pcx') FROM " +
+                FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ? ORDER BY docid DESC LIMIT " +
+                Math.max(limit, SEARCH_CANDIDATES), new String[]{match})) {
+            while (cursor.moveToNext()) {
+                hits.add(new SearchHit(cursor.getLong(0), score(cursor.getBlob(1))));
+            }
+        }
+        Collections.sort(hits, new Comparator<SearchHit>() {
+            @Override
+            public int compare(SearchHit a, SearchHit b) {
+                return Double.compare(b.score, a.score);
+            }
+        });
+        for (int i = 0; i < hits.size() && i < limit; i++) {
+            ids.add(hits.get(i).id);
+        }
+        return ids;
     }
 
-    public Cursor getAllItems() {
+    private static class SearchHit {
+        final long id;
+        final double score;
+
+        SearchHit(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    // The list columns of the given rows, in no particular order
+    public Cursor getItemsByIds(List<Long> ids) {
+        StringBuilder placeholders = new StringBuilder();
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+            args[i] = String.valueOf(ids.get(i));
+        }
         SQLiteDatabase db = this.getReadableDatabase();
-        return db.rawQuery("SELECT * FROM " + TABLE_NAME, null);
+        return db.query(TABLE_NAME, LIST_PROJECTION, COLUMN_ID + " IN (" + placeholders + ")",
+                args, null, null, null);
     }
 
-    // Method to mark item as purchased or not purchased
-    public void markItemAsPurchased(long id, boolean purchased) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(COLUMN_PURCHASED, purchased ? 1 : 0);
-        db.update(TABLE_NAME, contentValues, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+    // Turns user input into an FTS query: every word must match, each as a prefix.
+    // Only letters and digits are kept, so the input cannot inject FTS operators.
+    static String buildMatchQuery(String text) {
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    // matchinfo 'pcx': phrase count, column count, then for every phrase and column the hits
+    // in this row, the hits in all rows and the rows with hits. A hit is worth more the rarer
+    // it is across the table.
+    static double score(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int base = 2 + (phrase * columns + column) * 3;
+                int hitsThisRow = info.get(base);
+                int hitsAllRows = info.get(base + 1);
+                if (hitsThisRow > 0) {
+                    double weight = column < FTS_COLUMN_WEIGHTS.length ? FTS_COLUMN_WEIGHTS[column] : 1.0;
+                    score += weight * hitsThisRow / hitsAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    // Up to `limit` rows with edits that were not pushed yet, in SYNC_PROJECTION order
+    public Cursor getDirtyItems(int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.query(TABLE_NAME, SYNC_PROJECTION, COLUMN_DIRTY + " != 0", null, null, null, null,
+                String.valueOf(limit));
+    }
+
+    // Sync id, version and deletion time of up to `limit` deletes that were not pushed yet
+    public Cursor getTombstones(int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.query(TOMBSTONE_TABLE_NAME, new String[]{COLUMN_SYNC_ID, COLUMN_VERSION, COLUMN_DELETED_AT},
+                null, null, null, null, null, String.valueOf(limit));
+    }
+
+    // Returns null if the key was never set
+    public String getSyncState(String key) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor cursor = db.query(SYNC_STATE_TABLE_NAME, new String[]{COLUMN_VALUE}, COLUMN_KEY + " = ?",
+                new String[]{key}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    // A single-row read, no matter how many items there are
+    public Budget getBudget() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor cursor = db.query(BUDGET_TABLE_NAME, new String[]{COLUMN_PLANNED_MINOR, COLUMN_PURCHASED_MINOR},
+                null, null, null, null, null)) {
+            return cursor.moveToFirst() ? new Budget(cursor.getLong(0), cursor.getLong(1)) : Budget.EMPTY;
+        }
+    }
+
+    // Name and position of the backfill to run next, null if none is left
+    public String[] getNextBackfill() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor cursor = db.query(MIGRATION_STATE_TABLE_NAME, new String[]{COLUMN_NAME, COLUMN_POSITION},
+                null, null, null, null, "rowid", "1")) {
+            return cursor.moveToFirst() ? new String[]{cursor.getString(0), cursor.getString(1)} : null;
+        }
+    }
+
+    // In the transaction of the chunk that reached `position`. Null means the backfill is done.
+    static void saveBackfillPosition(SQLiteDatabase db, String name, String position) {
+        if (position == null) {
+            db.delete(MIGRATION_STATE_TABLE_NAME, COLUMN_NAME + " = ?", new String[]{name});
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_POSITION, position);
+        db.update(MIGRATION_STATE_TABLE_NAME, values, COLUMN_NAME + " = ?", new String[]{name});
+    }
+
+    // The backfill scheduled under `name`, null for a name this version does not know
+    public Backfill getBackfill(String name) {
+        if (BACKFILL_MOVE_IMAGES.equals(name)) {
+            return new Backfill() {
+                @Override
+                public String runChunk(SQLiteDatabase db, String position) {
+                    return moveImagesToStore(db, position);
+                }
+            };
+        }
+        if (BACKFILL_SORT_INDEXES.equals(name)) {
+            return new Backfill() {
+                @Override
+                public String runChunk(SQLiteDatabase db, String position) {
+                    // An index cannot be built in parts, but building it here keeps it off
+                    // the thread that opens the database
+                    createSortIndexes(db);
+                    return null;
+                }
+            };
+        }
+        if (BACKFILL_SWEEP_IMAGES.equals(name)) {
+            return new Backfill() {
+                @Override
+                public String runChunk(SQLiteDatabase db, String position) {
+                    return sweepOrphanImages(db, position);
+                }
+            };
+        }
+        return null;
+    }
+
+    // Backfills of getNextBackfill() that run outside the write transaction, see FileBackfill
+    public FileBackfill getFileBackfill(String name) {
+        if (BACKFILL_IMAGE_RENDITIONS.equals(name)) {
+            return new FileBackfill() {
+                @Override
+                public String runChunk(String position) {
+                    return createRenditions(position);
+                }
+            };
+        }
+        return null;
+    }
+
+    public ImageRenditions getImageRenditions() {
+        return imageRenditions;
     }
 
     public Cursor getItemById(long id) {
         SQLiteDatabase db = this.getReadableDatabase();
-        return db.query(TABLE_NAME, null, COLUMN_ID + "=?",
+        return db.query(TABLE_NAME, LIST_PROJECTION, COLUMN_ID + "=?",
                 new String[]{String.valueOf(id)}, null, null, null);
     }
 
-    public boolean updateItem(long id, String name, double price, String description, byte[] image) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(COLUMN_NAME, name);
-        contentValues.put(COLUMN_PRICE, price);
-        contentValues.put(COLUMN_DESCRIPTION, description);
-        contentValues.put(COLUMN_IMAGE, image);
+    private static void createFullTextIndex(SQLiteDatabase db) {
+        db.execSQL(ItemSchema.FTS_CREATE);
+        for (String trigger : ItemSchema.FTS_TRIGGERS_CREATE) {
+            db.execSQL(trigger);
+        }
+    }
+
+    // Seeds the totals from the rows already there, afterwards only the triggers change them
+    private static void createBudgetSummary(SQLiteDatabase db) {
+        db.execSQL(ItemSchema.BUDGET_CREATE);
+        db.execSQL(ItemSchema.BUDGET_SEED);
+        for (String trigger : ItemSchema.BUDGET_TRIGGERS_CREATE) {
+            db.execSQL(trigger);
+        }
+    }
 
-        int affectedRows = db.update(TABLE_NAME, contentValues, COLUMN_ID + " = ?",
-                new String[]{String.valueOf(id)});
+    private static void createSyncTables(SQLiteDatabase db) {
+        for (String index : ItemSchema.SYNC_INDEXES_CREATE) {
+            db.execSQL(index);
+        }
+        db.execSQL(ItemSchema.TOMBSTONE_CREATE);
+        db.execSQL(ItemSchema.SYNC_STATE_CREATE);
+    }
+
+    private static void createSmsOutbox(SQLiteDatabase db) {
+        db.execSQL(ItemSchema.SMS_OUTBOX_CREATE);
+        db.execSQL(ItemSchema.SMS_OUTBOX_INDEX_CREATE);
+        db.execSQL(ItemSchema.SMS_OUTBOX_SENT_INDEX_CREATE);
+    }
 
-        return affectedRows > 0; // Return true if update successful, false otherwise
+    private static void createMigrationState(SQLiteDatabase db) {
+        db.execSQL(ItemSchema.MIGRATION_STATE_CREATE);
     }
 
-    public void deleteItem(long id) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(TABLE_NAME, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+    private static void scheduleBackfill(SQLiteDatabase db, String name) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, name);
+        db.insertWithOnConflict(MIGRATION_STATE_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private static void createSortIndexes(SQLiteDatabase db) {
+        for (String index : ItemSchema.SORT_INDEXES_CREATE) {
+            db.execSQL(index);
+        }
+    }
+
+    // Version 9: makes the renditions of the images after `position` (the last hash done),
+    // in the order of the image hash index. The hashes come from a single read, the images
+    // are decoded and encoded with no transaction open.
+    private String createRenditions(String position) {
+        List<String> hashes = getImageHashesPage(position != null ? position : "", RENDITION_BATCH_SIZE);
+        for (String hash : hashes) {
+            if (!ImageStore.isValidHash(hash)) {
+                continue;
+            }
+            try {
+                imageRenditions.create(hash);
+            } catch (IOException e) {
+                // Abort the chunk, e.g. on a full disk; it is tried again later
+                throw new IllegalStateException("Failed to create renditions of " + hash, e);
+            }
+        }
+        return hashes.isEmpty() ? null : hashes.get(hashes.size() - 1);
+    }
+
+    // After version 2: deletes the image files no row points at, one directory of the
+    // ImageStore after `position` (the last directory done) per chunk. Variants go with
+    // their image, their name starts with its hash.
+    private String sweepOrphanImages(SQLiteDatabase db, String position) {
+        String directory = imageStore.nextDirectory(position != null ? position : "");
+        if (directory == null) {
+            return null;
+        }
+        long cutoff = System.currentTimeMillis() - SWEEP_MIN_AGE_MS;
+        for (File file : imageStore.listDirectory(directory)) {
+            if (file.lastModified() > cutoff) {
+                continue;
+            }
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            String hash = dot < 0 ? name : name.substring(0, dot);
+            if (DatabaseUtils.queryNumEntries(db, TABLE_NAME, COLUMN_IMAGE_HASH + " = ?", new String[]{hash}) == 0) {
+                file.delete();
+            }
+        }
+        return directory;
+    }
+
+    // Version 2: moves the inline image BLOBs into the ImageStore, the rows after `position`
+    // (the last id done) a chunk at a time. Every BLOB is streamed out in chunks too, so
+    // neither a huge table nor a huge image has to fit in memory. The legacy column is left
+    // in place with NULLs, as SQLite cannot drop a column without copying the whole table.
+    private String moveImagesToStore(SQLiteDatabase db, String position) {
+        long lastId = position != null ? Long.parseLong(position) : 0;
+        long[] ids;
+        boolean[] replaced;
+        try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_IMAGE_HASH + " IS NOT NULL FROM " +
+                TABLE_NAME + " WHERE " + COLUMN_ID + " > ? AND " + LEGACY_COLUMN_IMAGE + " IS NOT NULL" +
+                " ORDER BY " + COLUMN_ID + " LIMIT " + MIGRATION_BATCH_SIZE, new String[]{String.valueOf(lastId)})) {
+            ids = new long[cursor.getCount()];
+            replaced = new boolean[ids.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                replaced[i] = cursor.getInt(1) == 1;
+            }
+        }
+        if (ids.length == 0) {
+            return null;
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            long id = ids[i];
+            if (replaced[i]) {
+                // A new image was picked since the upgrade, the old one is not needed any more
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + LEGACY_COLUMN_IMAGE + " = NULL WHERE " +
+                        COLUMN_ID + " = ?", new Object[]{id});
+                continue;
+            }
+            BlobInputStream blob = new BlobInputStream(db, TABLE_NAME, LEGACY_COLUMN_IMAGE, id);
+            String hash;
+            try {
+                hash = blob.length() > 0 ? imageStore.put(blob) : null;
+            } catch (IOException e) {
+                // Abort the chunk: its transaction rolls back and it is tried again later
+                throw new IllegalStateException("Failed to move image of item " + id, e);
+            }
+            // The row may have been pushed without its image already, so it has to go out again
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_IMAGE_HASH + " = ?, " +
+                            LEGACY_COLUMN_IMAGE + " = NULL, " + COLUMN_UPDATED_AT + " = ?, " +
+                            COLUMN_DIRTY + " = " + COLUMN_DIRTY + " | " + SyncChange.FIELD_IMAGE +
+                            " WHERE " + COLUMN_ID + " = ?",
+                    new Object[]{hash, System.currentTimeMillis(), id});
+        }
+        return String.valueOf(ids[ids.length - 1]);
     }
 }
@@ -0,0 +1,38 @@
+package com.example.suitcase2;
+
+import java.util.List;
+
+// The text sent when items are delegated to a contact: one short line per item and the
+// total, so a long list still fits in as few SMS parts as possible.
+public final class DelegationMessage {
+
+    // Longer descriptions are cut, the full text stays in the app
+    static final int MAX_DESCRIPTION_LENGTH = 40;
+
+    private DelegationMessage() {
+    }
+
+    public static String compose(List<Item> items) {
+        StringBuilder text = new StringBuilder();
+        text.append(items.size() == 1 ? "Please buy:" : "Please buy these " + items.size() + " items:");
+        long totalMinor = 0;
+        for (Item item : items) {
+            text.append("\n- ").append(item.getName()).append(' ').append(Money.format(item.getPriceMinor()));
+            String description = item.getDescription();
+            if (description != null && !description.trim().isEmpty()) {
+                text.append(" (").append(shorten(description.trim())).append(')');
+            }
+            totalMinor += item.getPriceMinor();
+        }
+        if (items.size() > 1) {
+            text.append("\nTotal ").append(Money.format(totalMinor));
+        }
+        return text.toString();
+    }
+
+    // Line breaks would break the one-line-per-item layout
+    static String shorten(String description) {
+        String line = description.replaceAll("\\s+", " ");
+        return line.length() <= MAX_DESCRIPTION_LENGTH ? line : line.substring(0, MAX_DESCRIPTION_LENGTH - 3) + "...";
+    }
+}
@@ -1,40 +1,56 @@
 package com.example.suitcase2;
 
+import android.Manifest;
 import android.content.Intent;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.provider.MediaStore;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.Toast;
-import android.graphics.drawable.BitmapDrawable;
-
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-
-import java.io.ByteArrayOutputStream;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 
 public class EditItemActivity extends AppCompatActivity {
 
+    private static final int PICK_IMAGE_REQUEST = 1;
+    private static final int PERMISSION_REQUEST_CODE = 100;
+    // Size of edit_item_image in activity_edit_item.xml
+    private static final int IMAGE_SIZE_DP = 120;
+
     private ImageView editItemImage;
     private EditText editItemName;
     private EditText editItemPrice;
     private EditText editItemDescription;
     private Button buttonUpdate;
 
-    private DatabaseHelper myDbHelper;
+    private ItemRepository repository;
     private long itemId;
 
+    // Values as loaded, to find out which fields the user actually changed
+    private String originalName;
+    private long originalPriceMinor;
+    private String originalDescription;
+    private String originalImageHash;
+    // Only set when the user picked a new image, encoded by ImageIngest
+    private byte[] newImage;
+    // Saving waits for the item to load and for a picked image to be read
+    private boolean itemLoaded = false;
+    private boolean imagePicked = false;
+    private boolean readingImage = false;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_edit_item);
 
-        // Initialize DatabaseHelper
-        myDbHelper = new DatabaseHelper(this);
+        // Shared by every screen of the app
+        repository = ItemRepository.getInstance(this);
 
         // Initialize views
         editItemImage = findViewById(R.id.edit_item_image);
@@ -53,9 +69,24 @@ public class EditItemActivity extends AppCompatActivity {
             finish();
         } else {
             // Load item data for editing
+            buttonUpdate.setEnabled(false);
             loadItemData();
         }
 
+        // Tap the image to pick a new one
+        editItemImage.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (ContextCompat.checkSelfPermission(EditItemActivity.this,
+                        Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+                    ActivityCompat.requestPermissions(EditItemActivity.this,
+                            new String[]{Manifest.permission.READ_EXTERNAL_STORAGE}, PERMISSION_REQUEST_CODE);
+                } else {
+                    openImagePicker();
+                }
+            }
+        });
+
         // Set onClickListener for Update button
         buttonUpdate.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -65,32 +96,109 @@ public class EditItemActivity extends AppCompatActivity {
         });
     }
 
-    // Method to load item data from database
+    // Loads the item off the main thread, then fills in the views
     private void loadItemData() {
-        Cursor cursor = myDbHelper.getItemById(itemId);
-
-        if (cursor.moveToFirst()) {
-            String name = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME));
-            double price = cursor.getDouble(cursor.getColumnIndex(DatabaseHelper.COLUMN_PRICE));
-            String description = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_DESCRIPTION));
-            byte[] image = cursor.getBlob(cursor.getColumnIndex(DatabaseHelper.COLUMN_IMAGE));
-
-            // Set data to views
-            editItemName.setText(name);
-            editItemPrice.setText(String.valueOf(price));
-            editItemDescription.setText(description);
-
-            // Load image if available
-            if (image != null && image.length > 0) {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
-                editItemImage.setImageBitmap(bitmap);
-            } else {
-                // Set default image or placeholder
-                editItemImage.setImageResource(R.drawable.add);
+        repository.loadItem(itemId, new ItemRepository.ItemCallback() {
+            @Override
+            public void onItemLoaded(Item item) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (item == null) {
+                    Toast.makeText(EditItemActivity.this, "Item not found", Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                showItem(item);
+                itemLoaded = true;
+                updateButtonState();
             }
+        });
+    }
+
+    private void showItem(Item item) {
+        String name = item.getName();
+        long priceMinor = item.getPriceMinor();
+        String description = item.getDescription();
+
+        originalName = name;
+        originalPriceMinor = priceMinor;
+        originalDescription = description;
+        originalImageHash = item.getImageHash();
+
+        // Set data to views
+        editItemName.setText(name);
+        editItemPrice.setText(Money.format(priceMinor));
+        editItemDescription.setText(description);
+
+        // An image picked while the item was loading stays
+        if (!imagePicked) {
+            showStoredImage();
         }
+    }
 
-        cursor.close();
+    // Decoded off the main thread from the detail rendition, the placeholder shows until then
+    private void showStoredImage() {
+        int imageSizePx = Math.round(IMAGE_SIZE_DP * getResources().getDisplayMetrics().density);
+        ImageLoader.getInstance(this).load(repository.getImageRenditions(), originalImageHash, editItemImage,
+                imageSizePx, R.drawable.add);
+    }
+
+    private void updateButtonState() {
+        buttonUpdate.setEnabled(itemLoaded && !readingImage);
+    }
+
+    private void openImagePicker() {
+        Intent intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        startActivityForResult(intent, PICK_IMAGE_REQUEST);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_IMAGE_REQUEST && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            // The stored image may still be loading, it must not replace the new one
+            ImageLoader.getInstance(this).release(editItemImage);
+            // Read in the background, saving waits until the image is ready
+            newImage = null;
+            imagePicked = true;
+            readingImage = true;
+            updateButtonState();
+            int imageSizePx = Math.round(IMAGE_SIZE_DP * getResources().getDisplayMetrics().density);
+            new ImageIngest(this).ingest(data.getData(), imageSizePx, new ImageIngest.Callback() {
+                @Override
+                public void onComplete(ImageIngest.Image image) {
+                    if (isDestroyed()) {
+                        return;
+                    }
+                    readingImage = false;
+                    updateButtonState();
+                    if (image == null) {
+                        Toast.makeText(EditItemActivity.this, "Could not read the image", Toast.LENGTH_SHORT).show();
+                        // Back to the stored image, a loading item shows it once loaded
+                        imagePicked = false;
+                        if (itemLoaded) {
+                            showStoredImage();
+                        }
+                        return;
+                    }
+                    newImage = image.bytes;
+                    editItemImage.setImageBitmap(image.preview);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == PERMISSION_REQUEST_CODE) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                openImagePicker();
+            } else {
+                Toast.makeText(this, "Permission Denied", Toast.LENGTH_SHORT).show();
+            }
+        }
     }
 
     // Method to update item in database
@@ -111,30 +219,50 @@ public class EditItemActivity extends AppCompatActivity {
             return;
         }
 
-        double price = Double.parseDouble(priceString);
-
-        // Convert image to byte array (if needed)
-        byte[] image = convertImageToByteArray(); // Call method to convert image to byte array
-
-        // Update item in database
-        boolean updated = myDbHelper.updateItem(itemId, name, price, description, image);
+        long priceMinor;
+        try {
+            priceMinor = Money.parse(priceString);
+        } catch (NumberFormatException | ArithmeticException e) {
+            // A lone "." or more digits than a price can have
+            editItemPrice.setError("Enter a valid price");
+            editItemPrice.requestFocus();
+            return;
+        }
 
-        if (updated) {
-            Toast.makeText(this, "Item updated successfully", Toast.LENGTH_SHORT).show();
-            finish(); // Close activity after update
-        } else {
-            Toast.makeText(this, "Failed to update item", Toast.LENGTH_SHORT).show();
+        // Collect only the fields that differ from what was loaded
+        ItemChanges changes = new ItemChanges();
+        if (!name.equals(originalName)) {
+            changes.setName(name);
+        }
+        if (priceMinor != originalPriceMinor) {
+            changes.setPriceMinor(priceMinor);
+        }
+        if (!description.equals(originalDescription)) {
+            changes.setDescription(description);
+        }
+        if (newImage != null) {
+            // The image is only written when a new one was picked
+            changes.setImage(newImage);
         }
-    }
 
-    // Method to convert image to byte array
-    private byte[] convertImageToByteArray() {
-        // Get the bitmap from ImageView
-        Bitmap bitmap = ((BitmapDrawable) editItemImage.getDrawable()).getBitmap();
+        if (changes.isEmpty()) {
+            finish(); // Nothing to save
+            return;
+        }
 
-        // Convert bitmap to byte array
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-        return byteArrayOutputStream.toByteArray();
+        // Update item in database in the background
+        buttonUpdate.setEnabled(false);
+        repository.updateItem(itemId, changes, new WriteQueue.Callback() {
+            @Override
+            public void onComplete(boolean updated) {
+                if (updated) {
+                    Toast.makeText(EditItemActivity.this, "Item updated successfully", Toast.LENGTH_SHORT).show();
+                    finish(); // Close activity after update
+                } else {
+                    buttonUpdate.setEnabled(true);
+                    Toast.makeText(EditItemActivity.this, "Failed to update item", Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 }
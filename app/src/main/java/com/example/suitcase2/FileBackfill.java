@@ -0,0 +1,12 @@
+package com.example.suitcase2;
+
+// A Backfill over files rather than rows, such as making the image renditions. Its chunks
+// are slow and only read the database, so BackfillRunner runs them on a thread of their
+// own, outside the write transaction, and then commits the position reached in a short
+// transaction on the writer thread. A chunk interrupted before that commit is done again.
+public interface FileBackfill {
+
+    // Processes the next chunk after `position`, null at the start, and returns the position
+    // to go on from, or null once there is nothing left
+    String runChunk(String position);
+}
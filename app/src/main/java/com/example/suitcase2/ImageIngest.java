@@ -0,0 +1,241 @@
+package com.example.suitcase2;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Turns a picked image into the bytes that are stored for an item. Runs in the background
+// and decodes straight from the Uri's stream: a bounds pass first, then a decode sampled
+// down close to the maximum size, so a 48 MP camera photo never has to fit in memory at
+// full size. The result is turned upright by its EXIF orientation, scaled to fit the
+// maximum size and encoded lossily, a few hundred kilobytes instead of a PNG of tens of MB.
+public class ImageIngest {
+
+    private static final String TAG = "ImageIngest";
+
+    public enum Format {
+        JPEG,
+        WEBP // Lossy
+    }
+
+    // Longest side of a stored image, in pixels; enough to fill a tablet screen
+    public static final int DEFAULT_MAX_SIZE = 2048;
+    public static final int DEFAULT_QUALITY = 85;
+
+    // One image at a time, each holds a decoded bitmap of up to twice the maximum size squared
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    public interface Callback {
+        // Called on the main thread, with null if the image could not be read or decoded
+        void onComplete(Image image);
+    }
+
+    public static class Image {
+        public final byte[] bytes; // Encoded, ready for ItemRepository
+        public final Bitmap preview; // Small enough to keep on screen while editing
+
+        Image(byte[] bytes, Bitmap preview) {
+            this.bytes = bytes;
+            this.preview = preview;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Format format = Format.JPEG;
+    private int quality = DEFAULT_QUALITY;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    public ImageIngest(Context context) {
+        contentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    // JPEG images with transparency are stored as WebP instead, JPEG would turn it black
+    public ImageIngest setFormat(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    // 0 to 100
+    public ImageIngest setQuality(int quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    public ImageIngest setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    // Reads `uri` in the background; the preview is `previewSize` pixels on its shorter side
+    public void ingest(final Uri uri, final int previewSize, final Callback callback) {
+        final Format format = this.format;
+        final int quality = this.quality;
+        final int maxSize = this.maxSize;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Image image = null;
+                try {
+                    image = read(uri, format, quality, maxSize, previewSize);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to read image " + uri, e);
+                }
+                final Image result = image;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onComplete(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private Image read(Uri uri, Format format, int quality, int maxSize, int previewSize) throws IOException {
+        long decodeStart = Metrics.now();
+        // Bounds pass: only the header is read
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = open(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int orientation = readOrientation(uri);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, maxSize);
+        Bitmap decoded;
+        try (InputStream in = open(uri)) {
+            decoded = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap upright = transform(decoded, orientation, maxSize);
+        if (upright != decoded) {
+            decoded.recycle();
+        }
+        Metrics.IMAGE_DECODE.stop(decodeStart);
+
+        try {
+            long encodeStart = Metrics.now();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Bitmap.CompressFormat compressFormat = format == Format.JPEG && !upright.hasAlpha()
+                    ? Bitmap.CompressFormat.JPEG : ImageRenditions.webp();
+            if (!upright.compress(compressFormat, quality, out)) {
+                throw new IOException("Failed to encode image");
+            }
+            Metrics.IMAGE_ENCODE.stop(encodeStart);
+            return new Image(out.toByteArray(), preview(upright, previewSize));
+        } finally {
+            upright.recycle();
+        }
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        return in;
+    }
+
+    // Images without EXIF data, e.g. PNGs, are upright already
+    private int readOrientation(Uri uri) {
+        try (InputStream in = open(uri)) {
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    // Smallest power of two that brings the decode within twice `maxSize` squared pixels, the
+    // exact size is reached by scaling afterwards. Keeping the longer side at `maxSize` or
+    // more would decode a 48 MP photo at 4000x3000, 48 MB; this decodes it at 2000x1500.
+    // The stored image can then come out a little under `maxSize`, which the renditions and
+    // the screen never notice.
+    static int sampleSizeFor(int width, int height, int maxSize) {
+        long budget = 2L * maxSize * maxSize;
+        int sampleSize = 1;
+        while ((long) (width / sampleSize) * (height / sampleSize) > budget) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // Rotates and mirrors as EXIF says and scales down to fit `maxSize`, in one pass.
+    // Returns `bitmap` itself if there is nothing to do.
+    private static Bitmap transform(Bitmap bitmap, int orientation, int maxSize) {
+        Matrix matrix = new Matrix();
+        boolean changed = true;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setRotate(180);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                changed = false;
+                break;
+        }
+        int longer = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longer > maxSize) {
+            float scale = (float) maxSize / longer;
+            matrix.postScale(scale, scale);
+            changed = true;
+        }
+        if (!changed) {
+            return bitmap;
+        }
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    private static Bitmap preview(Bitmap bitmap, int size) {
+        int shorter = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        float scale = Math.min(1f, (float) size / shorter);
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        // Always a copy, the full bitmap is recycled once it is encoded. Scaling to the same
+        // size would return the bitmap itself.
+        if (width == bitmap.getWidth() && height == bitmap.getHeight()) {
+            return bitmap.copy(bitmap.getConfig(), false);
+        }
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.suitcase2;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Decodes item images off the main thread, from the smallest rendition that is big enough
+// and downsampled to the size they are shown at, and keeps the results in a memory cache
+// bounded to an eighth of the heap. One loader serves every account; the cache is cleared
+// when an account signs out, and shrinks when the system runs low on memory, see
+// trimMemory().
+public class ImageLoader {
+
+    private static final int THREAD_COUNT = 2;
+
+    private static ImageLoader instance;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> memoryCache;
+
+    // Bitmaps evicted from the cache, handed to the decoder as inBitmap so it can reuse
+    // their memory. Guarded by itself, like the three below.
+    private final Set<SoftReference<Bitmap>> reusableBitmaps = new HashSet<>();
+    // A bitmap is only offered for reuse once it is in none of these, or the decoder would
+    // draw over an image on screen: one bitmap can show in several rows, and stay on screen
+    // long after the cache evicted it. Identity sets, each bitmap is its own block of pixels.
+    private final Set<Bitmap> cachedBitmaps = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+    private final Set<Bitmap> pendingBitmaps = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+    // What the loader last put into each view; views that are gone drop out by themselves
+    private final Map<ImageView, Bitmap> shownBitmaps = new WeakHashMap<>();
+
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageLoader();
+        }
+        return instance;
+    }
+
+    private ImageLoader() {
+        int cacheSizeKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        memoryCache = new LruCache<String, Bitmap>(cacheSizeKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount() / 1024;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    synchronized (reusableBitmaps) {
+                        cachedBitmaps.remove(oldValue);
+                        offerForReuse(oldValue);
+                    }
+                }
+            }
+        };
+    }
+
+    // Shows the image with `imageHash` in `imageView`. Images are content addressed, so the
+    // cache key is the hash and the size it is decoded for: a changed image has a new hash
+    // and never shows a stale bitmap, and a screen showing it larger does not get the smaller
+    // bitmap of the list. Any earlier request for the same view is cancelled, which keeps
+    // recycled rows from showing another row's image.
+    public void load(ImageRenditions renditions, String imageHash, ImageView imageView, int targetSize,
+                     int placeholderResId) {
+        cancel(imageView);
+
+        if (!ImageStore.isValidHash(imageHash)) {
+            imageView.setImageResource(placeholderResId);
+            show(imageView, null);
+            return;
+        }
+
+        String key = cacheKey(imageHash, targetSize);
+        Bitmap cached;
+        synchronized (reusableBitmaps) {
+            // Marked shown before an eviction on a decoder thread can offer it for reuse
+            cached = memoryCache.get(key);
+            if (cached != null) {
+                show(imageView, cached);
+            }
+        }
+        if (cached != null) {
+            Metrics.IMAGE_CACHE_HITS.increment();
+            imageView.setImageBitmap(cached);
+            return;
+        }
+        Metrics.IMAGE_CACHE_MISSES.increment();
+
+        imageView.setImageResource(placeholderResId);
+        show(imageView, null);
+        Request request = new Request(renditions, imageHash, key, imageView, targetSize);
+        imageView.setTag(request);
+        request.future = executor.submit(request);
+    }
+
+    public void cancel(ImageView imageView) {
+        Object tag = imageView.getTag();
+        if (tag instanceof Request) {
+            ((Request) tag).cancel();
+            imageView.setTag(null);
+        }
+    }
+
+    // Cancels any load into `imageView` and empties it, so its bitmap can be reused. Call it
+    // when the view is recycled, or before putting in an image that did not come from here.
+    public void release(ImageView imageView) {
+        cancel(imageView);
+        imageView.setImageDrawable(null);
+        show(imageView, null);
+    }
+
+    // Drops every cached bitmap, item ids mean nothing once another account is signed in
+    public void clear() {
+        memoryCache.evictAll();
+        synchronized (reusableBitmaps) {
+            reusableBitmaps.clear();
+        }
+    }
+
+    // Called with the level of onTrimMemory. Rows on screen keep their bitmaps through their
+    // views, only the cache of rows scrolled away and the pool for reuse shrink.
+    public static void trimMemory(int level) {
+        ImageLoader loader;
+        synchronized (ImageLoader.class) {
+            loader = instance;
+        }
+        if (loader != null) {
+            loader.trim(level);
+        }
+    }
+
+    private void trim(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            memoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // Running low while visible, or just sent to the background
+            memoryCache.trimToSize(memoryCache.maxSize() / 2);
+        } else {
+            return;
+        }
+        // Evicted bitmaps were just offered for reuse, which would keep them alive
+        synchronized (reusableBitmaps) {
+            reusableBitmaps.clear();
+        }
+    }
+
+    // Records that `imageView` now shows `bitmap`, null for none, and offers what it showed
+    // before for reuse
+    private void show(ImageView imageView, Bitmap bitmap) {
+        synchronized (reusableBitmaps) {
+            Bitmap previous = bitmap != null ? shownBitmaps.put(imageView, bitmap) : shownBitmaps.remove(imageView);
+            if (previous != null && previous != bitmap) {
+                offerForReuse(previous);
+            }
+        }
+    }
+
+    // Holding the reusableBitmaps lock
+    private void offerForReuse(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled() || cachedBitmaps.contains(bitmap)
+                || pendingBitmaps.contains(bitmap)) {
+            return;
+        }
+        for (Bitmap shown : shownBitmaps.values()) {
+            if (shown == bitmap) {
+                return;
+            }
+        }
+        reusableBitmaps.add(new SoftReference<>(bitmap));
+    }
+
+    private static String cacheKey(String imageHash, int targetSize) {
+        return imageHash + '@' + targetSize;
+    }
+
+    private Bitmap decode(ImageRenditions renditions, String imageHash, int targetSize) {
+        ImageRenditions.Source source = renditions.sourceFor(imageHash, targetSize);
+        String path = source.file.getPath();
+
+        // Bounds pass: read only the header to pick a sample size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, targetSize);
+        // Renditions of opaque images and JPEGs have no alpha channel, so half the memory
+        // per pixel loses nothing
+        options.inPreferredConfig = source.opaque || "image/jpeg".equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap(options);
+
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The reused bitmap did not fit after all, decode into a fresh one
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    // Largest power of two that keeps both sides at least `targetSize`
+    static int calculateInSampleSize(int width, int height, int targetSize) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= targetSize && height / (inSampleSize * 2) >= targetSize) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private Bitmap takeReusableBitmap(BitmapFactory.Options options) {
+        int width = divideRoundingUp(options.outWidth, options.inSampleSize);
+        int height = divideRoundingUp(options.outHeight, options.inSampleSize);
+        // The decoder reconfigures the reused bitmap to inPreferredConfig, so this is what it needs
+        int bytesPerPixel = options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        int byteCount = width * height * bytesPerPixel;
+
+        synchronized (reusableBitmaps) {
+            Iterator<SoftReference<Bitmap>> iterator = reusableBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap candidate = iterator.next().get();
+                if (candidate == null || !candidate.isMutable() || candidate.isRecycled()) {
+                    iterator.remove();
+                } else if (candidate.getAllocationByteCount() >= byteCount) {
+                    iterator.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private class Request implements Runnable {
+        final ImageRenditions renditions;
+        final String imageHash;
+        final String key;
+        final ImageView imageView;
+        final int targetSize;
+        volatile boolean cancelled;
+        Future<?> future;
+
+        Request(ImageRenditions renditions, String imageHash, String key, ImageView imageView, int targetSize) {
+            this.renditions = renditions;
+            this.imageHash = imageHash;
+            this.key = key;
+            this.imageView = imageView;
+            this.targetSize = targetSize;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            long decodeStart = Metrics.now();
+            final Bitmap bitmap = decode(renditions, imageHash, targetSize);
+            Metrics.IMAGE_DECODE.stop(decodeStart);
+            if (bitmap == null) {
+                return;
+            }
+            // Pending until it is on the view, the cache may evict it before that
+            synchronized (reusableBitmaps) {
+                cachedBitmaps.add(bitmap);
+                pendingBitmaps.add(bitmap);
+            }
+            memoryCache.put(key, bitmap);
+
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may have been rebound to another row in the meantime
+                    boolean deliver = !cancelled && imageView.getTag() == Request.this;
+                    if (deliver) {
+                        imageView.setImageBitmap(bitmap);
+                        imageView.setTag(null);
+                        show(imageView, bitmap);
+                    }
+                    synchronized (reusableBitmaps) {
+                        pendingBitmaps.remove(bitmap);
+                        offerForReuse(bitmap);
+                    }
+                }
+            });
+        }
+    }
+}
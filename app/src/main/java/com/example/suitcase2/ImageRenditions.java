@@ -0,0 +1,157 @@
+package com.example.suitcase2;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Smaller copies of every stored image, made once when the image is stored, so showing an
+// image decodes a few kilobytes instead of the original photo. A rendition is a variant in
+// the ImageStore, so it needs no column and is deleted with the original. Images stored
+// before renditions existed get theirs from a backfill, see DatabaseHelper.
+public class ImageRenditions {
+
+    // Shorter side in dp, smallest first. The card is item_image of item_card.xml, the
+    // detail size is about the width of a phone screen.
+    public enum Size {
+        CARD("card", 100),
+        DETAIL("detail", 360);
+
+        final String variant;
+        final int dp;
+
+        Size(String variant, int dp) {
+            this.variant = variant;
+            this.dp = dp;
+        }
+    }
+
+    // Lossy WebP keeps the alpha channel of PNGs, at a fraction of their size
+    private static final int QUALITY = 80;
+
+    // Added to the variant of a rendition whose original has no alpha channel, such as every
+    // photo, so it can be decoded at half the memory per pixel. Renditions made before this
+    // have no suffix and are decoded with alpha.
+    private static final String OPAQUE_SUFFIX = "-opaque";
+
+    // A file to decode an image from, and whether it is known to have no alpha channel
+    public static class Source {
+        public final File file;
+        public final boolean opaque;
+
+        Source(File file, boolean opaque) {
+            this.file = file;
+            this.opaque = opaque;
+        }
+    }
+
+    private final ImageStore imageStore;
+    private final float density;
+
+    public ImageRenditions(ImageStore imageStore, float density) {
+        this.imageStore = imageStore;
+        this.density = density;
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    public int pixels(Size size) {
+        return Math.round(size.dp * density);
+    }
+
+    // Makes the renditions of `hash` that are missing. The original is decoded once, sampled
+    // down close to the largest size, and every rendition is scaled from that. An image that
+    // cannot be decoded gets none, readers then fall back to the original.
+    public void create(String hash) throws IOException {
+        Size[] sizes = Size.values();
+        boolean missing = false;
+        for (Size size : sizes) {
+            missing |= !imageStore.fileFor(hash, size.variant + OPAQUE_SUFFIX).isFile()
+                    && !imageStore.fileFor(hash, size.variant).isFile();
+        }
+        if (!missing) {
+            return;
+        }
+
+        long start = Metrics.now();
+        String path = imageStore.fileFor(hash).getPath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageLoader.calculateInSampleSize(options.outWidth, options.outHeight,
+                pixels(sizes[sizes.length - 1]));
+        Bitmap decoded = BitmapFactory.decodeFile(path, options);
+        if (decoded == null) {
+            return;
+        }
+        try {
+            String suffix = decoded.hasAlpha() ? "" : OPAQUE_SUFFIX;
+            for (Size size : sizes) {
+                final Bitmap scaled = scaleDown(decoded, pixels(size));
+                try {
+                    imageStore.writeVariant(hash, size.variant + suffix, new ImageStore.VariantWriter() {
+                        @Override
+                        public void write(OutputStream out) throws IOException {
+                            if (!scaled.compress(webp(), QUALITY, out)) {
+                                throw new IOException("Failed to encode rendition");
+                            }
+                        }
+                    });
+                } finally {
+                    if (scaled != decoded) {
+                        scaled.recycle();
+                    }
+                }
+            }
+        } finally {
+            decoded.recycle();
+        }
+        Metrics.IMAGE_RENDITIONS.stop(start);
+    }
+
+    // The smallest rendition with at least `targetSize` pixels on its shorter side, or the
+    // original if none is that big or it was not made yet. Originals are never marked
+    // opaque here, the decoder can tell from their type.
+    public Source sourceFor(String hash, int targetSize) {
+        for (Size size : Size.values()) {
+            if (pixels(size) >= targetSize) {
+                File file = imageStore.fileFor(hash, size.variant + OPAQUE_SUFFIX);
+                if (file.isFile()) {
+                    return new Source(file, true);
+                }
+                file = imageStore.fileFor(hash, size.variant);
+                if (file.isFile()) {
+                    return new Source(file, false);
+                }
+            }
+        }
+        return new Source(imageStore.fileFor(hash), false);
+    }
+
+    // Scales `bitmap` so its shorter side is `size`, unless it is that small already
+    private static Bitmap scaleDown(Bitmap bitmap, int size) {
+        int shorter = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (shorter <= size) {
+            return bitmap;
+        }
+        int width = Math.max(1, Math.round((float) bitmap.getWidth() * size / shorter));
+        int height = Math.max(1, Math.round((float) bitmap.getHeight() * size / shorter));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    @SuppressWarnings("deprecation")
+    static Bitmap.CompressFormat webp() {
+        // WEBP is lossy below quality 100 but deprecated from API 30, which names it WEBP_LOSSY
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.WEBP;
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.suitcase2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+// Content-addressed image files under the app's private storage. Every image is saved
+// once under the SHA-256 of its bytes, so identical photos share a single file and the
+// database only has to keep the hash. Variants derived from an image, such as the smaller
+// copies of ImageRenditions, are kept next to it and deleted with it.
+public class ImageStore {
+
+    private static final String DIRECTORY = "images";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    // Writes the bytes of a variant, see writeVariant()
+    public interface VariantWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final File root;
+
+    // Keeps the images in a directory below `parent`. Temporary files a crash left behind
+    // mid-write are deleted, only one store is ever open per directory.
+    public ImageStore(File parent) {
+        this.root = new File(parent, DIRECTORY);
+        deleteTempFiles();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public String put(byte[] data) throws IOException {
+        return put(new ByteArrayInputStream(data));
+    }
+
+    // Streams the image into a temporary file while hashing it, then moves it into place.
+    // If the same image is already stored the temporary copy is simply dropped.
+    public String put(InputStream in) throws IOException {
+        return put(in, null);
+    }
+
+    // As put(InputStream), but the bytes must hash to `expectedHash`; if they do not the
+    // image is not stored and an IOException is thrown. For images fetched by their hash.
+    public String put(InputStream in, String expectedHash) throws IOException {
+        if (expectedHash != null) {
+            checkHash(expectedHash);
+        }
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create " + root);
+        }
+
+        MessageDigest digest = newDigest();
+        File temp = File.createTempFile("incoming", TEMP_SUFFIX, root);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+                out.getFD().sync();
+            }
+
+            String hash = toHex(digest.digest());
+            if (expectedHash != null && !expectedHash.equals(hash)) {
+                throw new IOException("Image " + expectedHash + " does not match its hash " + hash);
+            }
+            File target = fileFor(hash);
+            if (!target.exists()) {
+                File parent = target.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Cannot create " + parent);
+                }
+                if (!temp.renameTo(target) && !target.exists()) {
+                    throw new IOException("Cannot move image to " + target);
+                }
+            }
+            return hash;
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    // True if `hash` is a SHA-256 as put() returns it. Hashes from outside the app (imports,
+    // the sync server) must be checked before use, anything else could name a path.
+    public static boolean isValidHash(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+    // Files are spread over 256 sub directories by the first byte of the hash
+    public File fileFor(String hash) {
+        checkHash(hash);
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    // The file of a variant of the image, named after it. Write it with writeVariant().
+    public File fileFor(String hash, String variant) {
+        checkHash(hash);
+        return new File(new File(root, hash.substring(0, 2)), hash + "." + variant);
+    }
+
+    // Replaces the variant as a whole, a reader never sees it half written
+    public void writeVariant(String hash, String variant, VariantWriter writer) throws IOException {
+        File target = fileFor(hash, variant);
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File temp = File.createTempFile("variant", TEMP_SUFFIX, root);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                writer.write(out);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Cannot move variant to " + target);
+            }
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    public boolean contains(String hash) {
+        return fileFor(hash).isFile();
+    }
+
+    public InputStream open(String hash) throws IOException {
+        return new BufferedInputStream(new FileInputStream(fileFor(hash)), BUFFER_SIZE);
+    }
+
+    // Deletes the image and its variants
+    public void delete(final String hash) {
+        File file = fileFor(hash);
+        file.delete();
+        File[] variants = file.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.startsWith(hash + ".");
+            }
+        });
+        if (variants != null) {
+            for (File variant : variants) {
+                variant.delete();
+            }
+        }
+    }
+
+    // The sub directory after `after` in name order, or null if there is none. Lets a caller
+    // walk the whole store a directory at a time, see DatabaseHelper.sweepOrphanImages.
+    public String nextDirectory(String after) {
+        String[] names = root.list();
+        String next = null;
+        if (names != null) {
+            for (String name : names) {
+                if (name.compareTo(after) > 0 && (next == null || name.compareTo(next) < 0)
+                        && new File(root, name).isDirectory()) {
+                    next = name;
+                }
+            }
+        }
+        return next;
+    }
+
+    // Images and variants in a directory returned by nextDirectory()
+    public File[] listDirectory(String directory) {
+        File[] files = new File(root, directory).listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    private static void checkHash(String hash) {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Not an image hash: " + hash);
+        }
+    }
+
+    private void deleteTempFiles() {
+        File[] temps = root.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (temps != null) {
+            for (File temp : temps) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Android runtime ships SHA-256
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
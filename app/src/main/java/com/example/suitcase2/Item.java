@@ -3,18 +3,18 @@ package com.example.suitcase2;
 public class Item {
     private long id; // Unique ID for the item
     private String name;
-    private double price;
+    private long priceMinor; // Price in minor units, see Money
     private String description;
-    private byte[] image;
+    private String imageHash; // Key of the image in the ImageStore, null if there is none
     private boolean purchased; // New field for purchase status
 
 
-    public Item(long id, String name, double price, String description, byte[] image, boolean purchased) {
+    public Item(long id, String name, long priceMinor, String description, String imageHash, boolean purchased) {
         this.id = id;
         this.name = name;
-        this.price = price;
+        this.priceMinor = priceMinor;
         this.description = description;
-        this.image = image;
+        this.imageHash = imageHash;
         this.purchased = purchased;
     }
 
@@ -22,8 +22,26 @@ public class Item {
         return purchased;
     }
 
-    public void setPurchased(boolean purchased) {
-        this.purchased = purchased;
+    // Items in the adapter's list must not change once submitted, so changes make a copy
+    public Item withPurchased(boolean purchased) {
+        return new Item(id, name, priceMinor, description, imageHash, purchased);
+    }
+
+    // True if both items would be shown the same way in the list
+    public boolean hasSameContent(Item other) {
+        return purchased == other.purchased && hasSameContentExceptPurchased(other);
+    }
+
+    // True if at most the purchased flag differs, the list then only updates the button
+    public boolean hasSameContentExceptPurchased(Item other) {
+        return priceMinor == other.priceMinor
+                && equal(name, other.name)
+                && equal(description, other.description)
+                && equal(imageHash, other.imageHash);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     public long getId() {
@@ -38,15 +56,15 @@ public class Item {
         return name;
     }
 
-    public double getPrice() {
-        return price;
+    public long getPriceMinor() {
+        return priceMinor;
     }
 
     public String getDescription() {
         return description;
     }
 
-    public byte[] getImage() {
-        return image;
+    public String getImageHash() {
+        return imageHash;
     }
 }
@@ -2,11 +2,6 @@ package com.example.suitcase2;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
-import android.provider.ContactsContract;
-import android.telephony.SmsManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -16,23 +11,83 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.cardview.widget.CardView;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
 
     private Context context;
-    private List<Item> itemList;
-    private DatabaseHelper myDbHelper;
-    private static final int PICK_CONTACT_REQUEST = 2;
+    private ItemPager itemPager;
+    private ItemRepository repository;
     private Item selectedItem; // Track selected item
+    // Items picked by long press to delegate together, in the order they were picked
+    private final Map<Long, Item> selectedItems = new LinkedHashMap<>();
+    private final ImageLoader imageLoader;
+    private final int imageSizePx;
+    private final PriceLabels priceLabels = new PriceLabels();
+    private final int purchasedColor;
+    private final int notPurchasedColor;
+    private final int cardColor;
+    private final int selectedCardColor;
 
-    public ItemAdapter(Context context, List<Item> itemList, DatabaseHelper databaseHelper) {
+    // Size of item_image in item_card.xml, the size of the card rendition
+    private static final int IMAGE_SIZE_DP = 100;
+
+    // Partial rebinds: only the purchased button, or only the selection highlight
+    private static final Object PAYLOAD_PURCHASED = new Object();
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    private static final DiffUtil.ItemCallback<Item> DIFF_CALLBACK = new DiffUtil.ItemCallback<Item>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+            return oldItem.getId() == newItem.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+            return oldItem.hasSameContent(newItem);
+        }
+
+        // Toggling purchased changes nothing else, the row keeps its text and image
+        @Override
+        public Object getChangePayload(@NonNull Item oldItem, @NonNull Item newItem) {
+            return oldItem.hasSameContentExceptPurchased(newItem) ? PAYLOAD_PURCHASED : null;
+        }
+    };
+
+    // Diffs submitted lists on a background thread and rebinds only the rows that changed
+    private final AsyncListDiffer<Item> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    public ItemAdapter(Context context, ItemPager itemPager, ItemRepository repository) {
         this.context = context;
-        this.itemList = itemList;
-        this.myDbHelper = databaseHelper;
+        this.itemPager = itemPager;
+        this.repository = repository;
+        this.imageLoader = ImageLoader.getInstance(context);
+        this.imageSizePx = Math.round(IMAGE_SIZE_DP * context.getResources().getDisplayMetrics().density);
+        this.purchasedColor = ContextCompat.getColor(context, android.R.color.holo_green_dark);
+        this.notPurchasedColor = ContextCompat.getColor(context, android.R.color.darker_gray);
+        // cardBackgroundColor of item_card.xml, and a darker shade for selected cards
+        this.cardColor = ContextCompat.getColor(context, R.color.card);
+        this.selectedCardColor = ContextCompat.getColor(context, R.color.card_selected);
+        setHasStableIds(true);
+    }
+
+    // `items` must not be modified after it is submitted
+    public void submitList(List<Item> items, Runnable commitCallback) {
+        differ.submitList(items, commitCallback);
+    }
+
+    Item getItem(int position) {
+        return differ.getCurrentList().get(position);
     }
 
     @NonNull
@@ -44,108 +99,89 @@ public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        Item item = itemList.get(position);
+        long bindStart = Metrics.now();
+        Item item = getItem(position);
         holder.itemName.setText(item.getName());
-        holder.itemPrice.setText("Price: " + item.getPrice());
+        holder.itemPrice.setText(priceLabels.get(item.getPriceMinor()));
         holder.itemDescription.setText(item.getDescription());
+        bindSelection(holder, item);
 
-        // Load image asynchronously from byte array
-        if (item.getImage() != null && item.getImage().length > 0) {
-            Bitmap bitmap = BitmapFactory.decodeByteArray(item.getImage(), 0, item.getImage().length);
-            holder.itemImage.setImageBitmap(bitmap);
-        } else {
-            holder.itemImage.setImageResource(R.drawable.ic_launcher_foreground); // Placeholder image if no image is available
+        // Decoded off the main thread at card size, the placeholder shows until it is ready.
+        // A row rebound with the same image keeps the bitmap it shows.
+        String imageHash = item.getImageHash();
+        if (!holder.imageBound || (imageHash == null ? holder.imageHash != null : !imageHash.equals(holder.imageHash))) {
+            imageLoader.load(repository.getImageRenditions(), imageHash, holder.itemImage, imageSizePx, R.drawable.ic_launcher_foreground);
+            holder.imageHash = imageHash;
+            holder.imageBound = true;
         }
 
-        // Delegate button click listener
-        holder.btnDelegate.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                int adapterPosition = holder.getAdapterPosition();
-                if (adapterPosition != RecyclerView.NO_POSITION) {
-                    selectedItem = itemList.get(adapterPosition); // Track selected item
-
-                    // Start contact picker activity
-                    Intent intent = new Intent(Intent.ACTION_PICK, Uri.parse("content://contacts"));
-                    intent.setType(ContactsContract.CommonDataKinds.Phone.CONTENT_TYPE);
-                    ((MainActivity) context).startActivityForResult(intent, PICK_CONTACT_REQUEST);
-                }
-            }
-        });
-
-        // Edit button click listener
-        holder.btnEdit.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                int adapterPosition = holder.getAdapterPosition();
-                if (adapterPosition != RecyclerView.NO_POSITION) {
-                    Item itemToEdit = itemList.get(adapterPosition);
-
-                    // Create an intent to navigate to EditItemActivity
-                    Intent intent = new Intent(context, EditItemActivity.class);
-                    intent.putExtra("ITEM_ID", itemToEdit.getId());
-                    context.startActivity(intent);
-                }
-            }
-        });
-
-        // Delete button click listener
-        holder.btnDelete.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                int adapterPosition = holder.getAdapterPosition();
-                if (adapterPosition != RecyclerView.NO_POSITION) {
-                    Item deletedItem = itemList.get(adapterPosition);
-
-                    // Delete item from database using its ID
-                    myDbHelper.deleteItem(deletedItem.getId());
-
-                    // Remove item from the list
-                    itemList.remove(adapterPosition);
-                    notifyItemRemoved(adapterPosition);
-                    notifyItemRangeChanged(adapterPosition, getItemCount());
-
-                    // Show toast message
-                    Toast.makeText(context, "Item deleted", Toast.LENGTH_SHORT).show();
-                }
-            }
-        });
-
-        // Mark as purchased button click listener
-        holder.btnMarkAsPurchased.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                int adapterPosition = holder.getAdapterPosition();
-                if (adapterPosition != RecyclerView.NO_POSITION) {
-                    Item itemToMark = itemList.get(adapterPosition);
-
-                    // Update item status in database
-                    boolean isPurchased = !itemToMark.isPurchased();
-                    myDbHelper.markItemAsPurchased(itemToMark.getId(), isPurchased);
-
-                    // Update item in the list and notify adapter
-                    itemToMark.setPurchased(isPurchased);
-                    notifyItemChanged(adapterPosition);
-
-                    // Show toast message
-                    Toast.makeText(context, isPurchased ? "Item marked as purchased" : "Item marked as not purchased", Toast.LENGTH_SHORT).show();
-                }
+        bindPurchased(holder, item);
+        Metrics.LIST_BIND.stop(bindStart);
+    }
+
+    // Rebinds only what a payload names; anything else is a full bind
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        Item item = getItem(position);
+        // Indexed, an iterator would be an allocation per bind
+        for (int i = 0; i < payloads.size(); i++) {
+            Object payload = payloads.get(i);
+            if (payload == PAYLOAD_PURCHASED) {
+                bindPurchased(holder, item);
+            } else if (payload == PAYLOAD_SELECTION) {
+                bindSelection(holder, item);
+            } else {
+                onBindViewHolder(holder, position);
+                return;
             }
-        });
+        }
+    }
 
-        // Update the button text based on purchase status
+    private void bindSelection(ViewHolder holder, Item item) {
+        // Checked for emptiness first, the lookup boxes the id
+        boolean selected = !selectedItems.isEmpty() && selectedItems.containsKey(item.getId());
+        if (selected) {
+            selectedItems.put(item.getId(), item); // Keep edits made since it was selected
+        }
+        holder.card.setCardBackgroundColor(selected ? selectedCardColor : cardColor);
+    }
+
+    // Update the button text based on purchase status
+    private void bindPurchased(ViewHolder holder, Item item) {
         if (item.isPurchased()) {
             holder.btnMarkAsPurchased.setText("Purchased");
-            holder.btnMarkAsPurchased.setBackgroundColor(ContextCompat.getColor(context, android.R.color.holo_green_dark));
+            holder.btnMarkAsPurchased.setBackgroundColor(purchasedColor);
         } else {
             holder.btnMarkAsPurchased.setText("Mark as Purchased");
-            holder.btnMarkAsPurchased.setBackgroundColor(ContextCompat.getColor(context, android.R.color.darker_gray));
+            holder.btnMarkAsPurchased.setBackgroundColor(notPurchasedColor);
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        // Drop the pending decode so it cannot land on the row after it is reused, and let
+        // the bitmap go back to the loader for reuse
+        imageLoader.release(holder.itemImage);
+        holder.imageBound = false;
+    }
+
     @Override
     public int getItemCount() {
-        return itemList.size();
+        return differ.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
+    }
+
+    // The row is on its way out, it must not be delegated
+    public void deselect(long id) {
+        selectedItems.remove(id);
     }
 
     // Method to get the selected item
@@ -153,7 +189,41 @@ public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
         return selectedItem;
     }
 
-    public class ViewHolder extends RecyclerView.ViewHolder {
+    // What the SMS button delegates: every item selected by long press, or just the one
+    // whose button was tapped if none is
+    public List<Item> getDelegationItems() {
+        if (!selectedItems.isEmpty()) {
+            return new ArrayList<>(selectedItems.values());
+        }
+        return selectedItem != null ? Collections.singletonList(selectedItem) : Collections.<Item>emptyList();
+    }
+
+    // After a delegation, so the next one starts from scratch
+    public void clearSelection() {
+        List<Item> items = differ.getCurrentList();
+        for (int position = 0; position < items.size(); position++) {
+            if (selectedItems.containsKey(items.get(position).getId())) {
+                notifyItemChanged(position, PAYLOAD_SELECTION);
+            }
+        }
+        selectedItems.clear();
+    }
+
+    private void toggleSelection(int position) {
+        Item item = getItem(position);
+        if (selectedItems.remove(item.getId()) == null) {
+            selectedItems.put(item.getId(), item);
+        }
+        notifyItemChanged(position, PAYLOAD_SELECTION);
+        if (!selectedItems.isEmpty()) {
+            Toast.makeText(context, selectedItems.size() + " selected, tap SMS to delegate them", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Listeners are set once per holder and look the item up by position when tapped, so
+    // binding a row allocates nothing
+    public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener, View.OnLongClickListener {
+        CardView card;
         TextView itemName;
         TextView itemPrice;
         TextView itemDescription;
@@ -162,9 +232,13 @@ public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
         Button btnDelete;
         Button btnMarkAsPurchased;
         Button btnDelegate;
+        // What itemImage was last loaded with; imageBound is false until the first load
+        String imageHash;
+        boolean imageBound;
 
         public ViewHolder(View itemView) {
             super(itemView);
+            card = (CardView) itemView;
             itemName = itemView.findViewById(R.id.item_name);
             itemPrice = itemView.findViewById(R.id.item_price);
             itemDescription = itemView.findViewById(R.id.item_description);
@@ -174,27 +248,54 @@ public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
             btnMarkAsPurchased = itemView.findViewById(R.id.mark_as_purchased_button);
             btnDelegate = itemView.findViewById(R.id.delegate_button);
 
-            // Implement swipe-to-delete gesture
-            itemView.setOnTouchListener(new OnSwipeTouchListener(context) {
-                @Override
-                public void onSwipeRight() {
-                    int position = getAdapterPosition();
-                    if (position != RecyclerView.NO_POSITION) {
-                        Item deletedItem = itemList.get(position);
-
-                        // Delete item from database using its ID
-                        myDbHelper.deleteItem(deletedItem.getId());
-
-                        // Remove item from the list
-                        itemList.remove(position);
-                        notifyItemRemoved(position);
-                        notifyItemRangeChanged(position, getItemCount());
-
-                        // Show toast message
-                        Toast.makeText(context, "Item deleted", Toast.LENGTH_SHORT).show();
-                    }
-                }
-            });
+            btnDelegate.setOnClickListener(this);
+            btnEdit.setOnClickListener(this);
+            btnDelete.setOnClickListener(this);
+            btnMarkAsPurchased.setOnClickListener(this);
+            // Long press selects the item for a delegation of several items
+            itemView.setOnLongClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            Item item = getItem(position);
+            if (v == btnDelegate) {
+                selectedItem = item; // Track selected item
+
+                // Recent delegates first, the contact picker if needed
+                ((MainActivity) context).chooseDelegate();
+            } else if (v == btnEdit) {
+                // Create an intent to navigate to EditItemActivity
+                Intent intent = new Intent(context, EditItemActivity.class);
+                intent.putExtra("ITEM_ID", item.getId());
+                context.startActivity(intent);
+            } else if (v == btnDelete) {
+                // Same as a swipe: gone from the list at once, deleted unless undone
+                ((MainActivity) context).softDelete(item);
+            } else if (v == btnMarkAsPurchased) {
+                // Update item status in database, repeated taps are merged into one write
+                boolean isPurchased = !item.isPurchased();
+                repository.markItemAsPurchased(item.getId(), isPurchased, null);
+
+                // Update item in the list, the diff rebinds just the button of this row
+                itemPager.replaceItem(item.withPurchased(isPurchased));
+
+                // Show toast message
+                Toast.makeText(context, isPurchased ? "Item marked as purchased" : "Item marked as not purchased", Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public boolean onLongClick(View v) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                toggleSelection(position);
+            }
+            return true;
         }
     }
 }
@@ -0,0 +1,77 @@
+package com.example.suitcase2;
+
+// The fields of an item that were modified in an edit. Only these columns are written,
+// so fixing a typo in the name does not rewrite the price, description or image.
+public class ItemChanges {
+
+    private String name;
+    private long priceMinor;
+    private String description;
+    private byte[] image;
+
+    private boolean nameChanged;
+    private boolean priceChanged;
+    private boolean descriptionChanged;
+    private boolean imageChanged;
+
+    public ItemChanges setName(String name) {
+        this.name = name;
+        this.nameChanged = true;
+        return this;
+    }
+
+    public ItemChanges setPriceMinor(long priceMinor) {
+        this.priceMinor = priceMinor;
+        this.priceChanged = true;
+        return this;
+    }
+
+    public ItemChanges setDescription(String description) {
+        this.description = description;
+        this.descriptionChanged = true;
+        return this;
+    }
+
+    // Encoded bytes of a newly picked image
+    public ItemChanges setImage(byte[] image) {
+        this.image = image;
+        this.imageChanged = true;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return !nameChanged && !priceChanged && !descriptionChanged && !imageChanged;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPriceMinor() {
+        return priceMinor;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    public boolean isNameChanged() {
+        return nameChanged;
+    }
+
+    public boolean isPriceChanged() {
+        return priceChanged;
+    }
+
+    public boolean isDescriptionChanged() {
+        return descriptionChanged;
+    }
+
+    public boolean isImageChanged() {
+        return imageChanged;
+    }
+}
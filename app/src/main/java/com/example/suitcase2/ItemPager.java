@@ -0,0 +1,288 @@
+package com.example.suitcase2;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Loads items page by page on a background thread using keyset pagination in the order of
+// the ItemQuery, so the cost of a load is one page no matter how big the table is.
+// Every change is published as a new list; a published list is never modified again,
+// which is what AsyncListDiffer needs to diff it in the background.
+public class ItemPager {
+
+    private static final String TAG = "ItemPager";
+
+    public static final int PAGE_SIZE = 50;
+
+    // Search results are not paged, only the best matches are shown
+    public static final int SEARCH_LIMIT = 100;
+
+    public interface Listener {
+        // Called on the main thread with the new list of loaded items
+        void onItemsChanged(List<Item> items);
+    }
+
+    private final ItemRepository repository;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private List<Item> items = Collections.emptyList();
+    private Item lastItem = null; // Last row loaded, null before the first page
+    private boolean loading = false;
+    private boolean endReached = false;
+    private int generation = 0;
+    private String query = null; // Search text, null while showing the whole list
+    private ItemQuery itemQuery = ItemQuery.DEFAULT; // Sort and filters of the whole list
+    // Deleted in the list but not in the database yet, loads leave them out
+    private final Set<Long> hiddenIds = new HashSet<>();
+
+    public ItemPager(ItemRepository repository, Listener listener) {
+        this.repository = repository;
+        this.listener = listener;
+    }
+
+    // Reloads the rows that are loaded now, or the first page if there are none yet.
+    // The current items stay visible until the new ones arrive.
+    public void refresh() {
+        generation++;
+        if (query != null) {
+            search(query);
+            return;
+        }
+        if (items.isEmpty() && itemQuery.equals(ItemQuery.DEFAULT)) {
+            // The splash screen may have loaded the first page already
+            List<Item> page = repository.takePrefetchedFirstPage();
+            if (page != null) {
+                deliver(generation, true, PAGE_SIZE, page);
+                return;
+            }
+        }
+        int pages = Math.max(1, (items.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        load(null, pages * PAGE_SIZE, true);
+    }
+
+    public void loadNextPage() {
+        if (loading || endReached || query != null) {
+            return;
+        }
+        load(lastItem, PAGE_SIZE, false);
+    }
+
+    // Shows the ranked matches for `text` instead of the whole list. Blank text goes back
+    // to the whole list.
+    public void setQuery(String text) {
+        String trimmed = text.trim();
+        String newQuery = trimmed.isEmpty() ? null : trimmed;
+        if (newQuery == null ? query == null : newQuery.equals(query)) {
+            return;
+        }
+        query = newQuery;
+        if (query == null) {
+            items = Collections.emptyList(); // Start the paged list over from the top
+        }
+        refresh();
+    }
+
+    // Sorts and filters the whole list, which starts over from the top
+    public void setItemQuery(ItemQuery newQuery) {
+        if (newQuery.equals(itemQuery)) {
+            return;
+        }
+        itemQuery = newQuery;
+        if (query == null) {
+            items = Collections.emptyList();
+            refresh();
+        }
+    }
+
+    public ItemQuery getItemQuery() {
+        return itemQuery;
+    }
+
+    public boolean isSearching() {
+        return query != null;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    // Replaces a loaded item with a changed copy, e.g. after toggling purchased. The row
+    // stays where it is even if the sort would move it, rather than jump away under the
+    // finger; it leaves the list if it no longer passes the filters.
+    public void replaceItem(Item item) {
+        if (query == null && !itemQuery.matches(item)) {
+            removeItem(item.getId());
+            return;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId() == item.getId()) {
+                List<Item> next = new ArrayList<>(items);
+                next.set(i, item);
+                publish(next);
+                return;
+            }
+        }
+    }
+
+    public void removeItem(long id) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId() == id) {
+                List<Item> next = new ArrayList<>(items);
+                next.remove(i);
+                publish(next);
+                return;
+            }
+        }
+    }
+
+    // Takes a row out of the list until restoreItem() or forgetHidden(), e.g. while its
+    // delete can still be undone
+    public void hideItem(long id) {
+        hiddenIds.add(id);
+        removeItem(id);
+    }
+
+    // Puts a hidden row back where it was. Rows past the loaded pages come back with their
+    // page, and search results are searched again since their order is by rank.
+    public void restoreItem(Item item) {
+        if (!hiddenIds.remove(item.getId())) {
+            return;
+        }
+        if (query != null) {
+            refresh();
+            return;
+        }
+        if (!itemQuery.matches(item)) {
+            return; // Filtered out since it was hidden
+        }
+        if (!endReached && (lastItem == null || itemQuery.compare(item, lastItem) > 0)) {
+            return;
+        }
+        int position = 0;
+        while (position < items.size() && itemQuery.compare(items.get(position), item) < 0) {
+            position++;
+        }
+        if (position < items.size() && items.get(position).getId() == item.getId()) {
+            return;
+        }
+        List<Item> next = new ArrayList<>(items);
+        next.add(position, item);
+        publish(next);
+    }
+
+    // Once the rows are deleted from the database there is nothing left to hide
+    public void forgetHidden(Collection<Long> ids) {
+        hiddenIds.removeAll(ids);
+    }
+
+    public void close() {
+        generation++;
+        executor.shutdownNow();
+    }
+
+    private void load(final Item after, final int limit, final boolean replace) {
+        loading = true;
+        final int requestGeneration = generation;
+        final ItemQuery requestQuery = itemQuery;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Item> page;
+                try {
+                    page = repository.getItemsPage(requestQuery, after, limit);
+                } catch (RuntimeException e) {
+                    // E.g. the database was closed by a sign-out
+                    Log.e(TAG, "Failed to load a page", e);
+                    failed(requestGeneration);
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(requestGeneration, replace, limit, page);
+                    }
+                });
+            }
+        });
+    }
+
+    private void search(final String text) {
+        loading = true;
+        final int requestGeneration = generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Item> found;
+                try {
+                    found = repository.searchItems(text, SEARCH_LIMIT);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to search", e);
+                    failed(requestGeneration);
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(requestGeneration, true, Integer.MAX_VALUE, found);
+                    }
+                });
+            }
+        });
+    }
+
+    // The items shown stay as they are, and the next scroll or refresh() tries again
+    private void failed(final int requestGeneration) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (requestGeneration == generation) {
+                    loading = false;
+                }
+            }
+        });
+    }
+
+    private void deliver(int requestGeneration, boolean replace, int limit, List<Item> page) {
+        if (requestGeneration != generation) {
+            return; // A newer refresh() or search superseded this load
+        }
+        loading = false;
+        endReached = page.size() < limit;
+
+        if (replace) {
+            lastItem = page.isEmpty() ? null : page.get(page.size() - 1);
+            publish(page);
+        } else if (!page.isEmpty()) {
+            lastItem = page.get(page.size() - 1);
+            List<Item> next = new ArrayList<>(items.size() + page.size());
+            next.addAll(items);
+            next.addAll(page);
+            publish(next);
+        }
+    }
+
+    private void publish(List<Item> next) {
+        if (!hiddenIds.isEmpty()) {
+            List<Item> visible = new ArrayList<>(next.size());
+            for (Item item : next) {
+                if (!hiddenIds.contains(item.getId())) {
+                    visible.add(item);
+                }
+            }
+            next = visible;
+        }
+        items = next;
+        listener.onItemsChanged(next);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.suitcase2;
+
+// How the item list is sorted and filtered. DatabaseHelper turns it into a query that walks
+// an index in order, so a page costs the same however the list is sorted. Changes make a
+// copy, like Item, since a query is handed to the background thread that loads the pages.
+public class ItemQuery {
+
+    public enum Sort {
+        ADDED, // Order of creation
+        PRICE,
+        NAME // Ignoring case
+    }
+
+    // For a price range without a lower or upper bound
+    public static final long NO_LIMIT = -1;
+
+    public static final ItemQuery DEFAULT = new ItemQuery(Sort.ADDED, false, false, NO_LIMIT, NO_LIMIT);
+
+    private final Sort sort;
+    private final boolean descending;
+    private final boolean unpurchasedOnly;
+    private final long minPriceMinor;
+    private final long maxPriceMinor;
+
+    private ItemQuery(Sort sort, boolean descending, boolean unpurchasedOnly, long minPriceMinor, long maxPriceMinor) {
+        this.sort = sort;
+        this.descending = descending;
+        this.unpurchasedOnly = unpurchasedOnly;
+        this.minPriceMinor = minPriceMinor;
+        this.maxPriceMinor = maxPriceMinor;
+    }
+
+    public ItemQuery withSort(Sort sort, boolean descending) {
+        return new ItemQuery(sort, descending, unpurchasedOnly, minPriceMinor, maxPriceMinor);
+    }
+
+    public ItemQuery withUnpurchasedOnly(boolean unpurchasedOnly) {
+        return new ItemQuery(sort, descending, unpurchasedOnly, minPriceMinor, maxPriceMinor);
+    }
+
+    // Both bounds are inclusive, either can be NO_LIMIT
+    public ItemQuery withPriceRange(long minPriceMinor, long maxPriceMinor) {
+        return new ItemQuery(sort, descending, unpurchasedOnly, minPriceMinor, maxPriceMinor);
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public boolean isUnpurchasedOnly() {
+        return unpurchasedOnly;
+    }
+
+    public long getMinPriceMinor() {
+        return minPriceMinor;
+    }
+
+    public long getMaxPriceMinor() {
+        return maxPriceMinor;
+    }
+
+    // Sorted by price or name, the items still to buy come first and the purchased ones
+    // after them, each group in its own order. That is the order of the (purchased, ...)
+    // indexes, so each group is a single range of the index.
+    public boolean groupsByPurchased() {
+        return sort != Sort.ADDED;
+    }
+
+    // True if the filters let `item` through
+    public boolean matches(Item item) {
+        return !(unpurchasedOnly && item.isPurchased())
+                && (minPriceMinor == NO_LIMIT || item.getPriceMinor() >= minPriceMinor)
+                && (maxPriceMinor == NO_LIMIT || item.getPriceMinor() <= maxPriceMinor);
+    }
+
+    // The order of the rows the query returns: negative if `a` comes before `b`
+    public int compare(Item a, Item b) {
+        if (groupsByPurchased() && a.isPurchased() != b.isPurchased()) {
+            return a.isPurchased() ? 1 : -1;
+        }
+        int order = 0;
+        if (sort == Sort.PRICE) {
+            order = Long.compare(a.getPriceMinor(), b.getPriceMinor());
+        } else if (sort == Sort.NAME) {
+            order = compareNoCase(a.getName(), b.getName());
+        }
+        if (order == 0) {
+            order = Long.compare(a.getId(), b.getId());
+        }
+        return descending ? -order : order;
+    }
+
+    // SQLite's NOCASE collation: only ASCII letters are folded, NULL comes first
+    static int compareNoCase(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                x = x >= 'A' && x <= 'Z' ? (char) (x + ('a' - 'A')) : x;
+                y = y >= 'A' && y <= 'Z' ? (char) (y + ('a' - 'A')) : y;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ItemQuery)) {
+            return false;
+        }
+        ItemQuery query = (ItemQuery) other;
+        return sort == query.sort && descending == query.descending && unpurchasedOnly == query.unpurchasedOnly
+                && minPriceMinor == query.minPriceMinor && maxPriceMinor == query.maxPriceMinor;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = sort.hashCode();
+        hash = 31 * hash + (descending ? 1 : 0);
+        hash = 31 * hash + (unpurchasedOnly ? 1 : 0);
+        hash = 31 * hash + Long.valueOf(minPriceMinor).hashCode();
+        return 31 * hash + Long.valueOf(maxPriceMinor).hashCode();
+    }
+}
@@ -0,0 +1,975 @@
+package com.example.suitcase2;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// The one data access surface for items. There is one instance per signed-in account, with
+// its own database file and image directory, so switching accounts opens another file
+// instead of filtering rows. Every screen shares the account's DatabaseHelper connection
+// and write queue. Writes run through SQLiteStatements that are compiled once and reused.
+public class ItemRepository {
+
+    private static final String TAG = "ItemRepository";
+
+    // Bits of the column set an UPDATE statement writes, see updateStatement(). They are the
+    // same bits as the SyncChange fields, so the mask doubles as what the edit made dirty.
+    private static final int UPDATE_NAME = 1;
+    private static final int UPDATE_PRICE = 1 << 1;
+    private static final int UPDATE_DESCRIPTION = 1 << 2;
+    private static final int UPDATE_IMAGE = 1 << 3;
+    private static final String[] UPDATE_COLUMNS = {
+            DatabaseHelper.COLUMN_NAME, DatabaseHelper.COLUMN_PRICE_MINOR,
+            DatabaseHelper.COLUMN_DESCRIPTION, DatabaseHelper.COLUMN_IMAGE_HASH
+    };
+
+    public interface BudgetListener {
+        // Called on the main thread
+        void onBudgetChanged(Budget budget);
+    }
+
+    public interface ItemCallback {
+        // Called on the main thread, with null if there is no such item
+        void onItemLoaded(Item item);
+    }
+
+    public interface ChangeListener {
+        // Called on the main thread after a sync or an upgrade backfill changed items, not after local writes
+        void onItemsChanged();
+    }
+
+    // Per account data lives below files/users/<key>, the database next to the others
+    private static final String USERS_DIRECTORY = "users";
+    private static final String LEGACY_IMAGES_DIRECTORY = "images";
+
+    // Opened lazily, guarded by the class
+    private static final Map<String, ItemRepository> instances = new HashMap<>();
+    // Run on the writer thread after every commit of local edits, see SyncEngine
+    private static volatile Runnable localWriteListener;
+    // Single-row reads for screens, see loadItem()
+    private static final ExecutorService reader = Executors.newSingleThreadExecutor();
+    // Renditions of stored images, made after the write that stored them has committed
+    private static final ExecutorService renditionWorker = Executors.newSingleThreadExecutor();
+
+    private final DatabaseHelper myDbHelper;
+    private final ImageStore imageStore;
+    private final WriteQueue writeQueue;
+    private final BackfillRunner backfillRunner;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<BudgetListener> budgetListeners = new CopyOnWriteArrayList<>();
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    // First page read ahead during startup, handed to the first ItemPager that asks for it.
+    // Guarded by `this`; writeVersion goes up with every commit so a stale page is dropped.
+    private List<Item> prefetchedFirstPage;
+    private long writeVersion;
+    // Guarded by `this`, set by release()
+    private boolean closed = false;
+
+    // Compiled on first use; only touched on the writer thread
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement importStatement;
+    private SQLiteStatement purchasedStatement;
+    private SQLiteStatement deleteStatement;
+    private SQLiteStatement tombstoneStatement;
+    private SQLiteStatement imageHashStatement;
+    private SQLiteStatement imageReferencesStatement;
+    private final SQLiteStatement[] updateStatements = new SQLiteStatement[1 << UPDATE_COLUMNS.length];
+
+    // Image files released by the open write transaction, deleted once it commits unless a
+    // row refers to them again by then
+    private final List<String> releasedImages = new ArrayList<>();
+    // Images stored by the open write transaction, their renditions are made once it commits
+    private final List<String> storedImages = new ArrayList<>();
+
+    // The repository of the signed-in account. Only call it while someone is signed in.
+    public static ItemRepository getInstance(Context context) {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            throw new IllegalStateException("No user is signed in");
+        }
+        return forUser(context, user.getUid());
+    }
+
+    // The repository of `user` while they are still the signed-in account, or null once they
+    // signed out. Checked under the lock release() takes, so a sign out in between cannot
+    // leave a new repository open for an account that is gone.
+    static synchronized ItemRepository forCurrentUser(Context context, FirebaseUser user) {
+        FirebaseUser current = FirebaseAuth.getInstance().getCurrentUser();
+        if (current == null || !current.getUid().equals(user.getUid())) {
+            return null;
+        }
+        return forUser(context, user.getUid());
+    }
+
+    static synchronized ItemRepository forUser(Context context, String userId) {
+        ItemRepository repository = instances.get(userId);
+        if (repository == null) {
+            repository = new ItemRepository(context.getApplicationContext(), fileKey(userId));
+            instances.put(userId, repository);
+        }
+        return repository;
+    }
+
+    // Called on sign out. Writes already queued still commit, then the connection closes and
+    // the cached first page goes. Nothing is deleted, signing in again reopens the files.
+    public static void release(String userId) {
+        ItemRepository repository;
+        synchronized (ItemRepository.class) {
+            repository = instances.remove(userId);
+        }
+        if (repository != null) {
+            repository.close();
+        }
+    }
+
+    private ItemRepository(Context context, String userKey) {
+        File userDirectory = new File(new File(context.getFilesDir(), USERS_DIRECTORY), userKey);
+        imageStore = new ImageStore(userDirectory);
+        String databaseName = DatabaseHelper.databaseName(userKey);
+        adoptLegacyData(context, databaseName);
+        myDbHelper = new DatabaseHelper(context, databaseName, imageStore);
+        writeQueue = new WriteQueue(this);
+        // Opens the database on the writer thread, then finishes any upgrade work left
+        backfillRunner = new BackfillRunner(myDbHelper, writeQueue, new Runnable() {
+            @Override
+            public void run() {
+                onCommitted();
+                notifyItemsChanged();
+            }
+        });
+        backfillRunner.start();
+    }
+
+    // Before databases were per account everything was in items.db and files/images. The
+    // first account to open its repository afterwards takes both over by renaming them.
+    private void adoptLegacyData(Context context, String databaseName) {
+        File legacyDatabase = context.getDatabasePath(DatabaseHelper.LEGACY_DATABASE_NAME);
+        File database = context.getDatabasePath(databaseName);
+        if (!legacyDatabase.exists() || database.exists()) {
+            return;
+        }
+        File legacyImages = new File(context.getFilesDir(), LEGACY_IMAGES_DIRECTORY);
+        File images = imageStore.getRoot();
+        if (legacyImages.isDirectory() && !images.exists()) {
+            images.getParentFile().mkdirs();
+            if (!legacyImages.renameTo(images)) {
+                Log.e(TAG, "Failed to move " + legacyImages + " to " + images);
+                return; // Keep the old database too, so rows never point at missing images
+            }
+        }
+        // The journal and WAL files belong to the database and move with it
+        for (String suffix : new String[]{"-wal", "-shm", "-journal", ""}) {
+            File from = new File(legacyDatabase.getPath() + suffix);
+            if (from.exists() && !from.renameTo(new File(database.getPath() + suffix))) {
+                Log.e(TAG, "Failed to move " + from);
+            }
+        }
+    }
+
+    // File names are built from the key, so anything but plain characters is hex encoded.
+    // Firebase uids are plain already.
+    private static String fileKey(String userId) {
+        if (userId.matches("[A-Za-z0-9_-]+")) {
+            return userId;
+        }
+        StringBuilder key = new StringBuilder("x");
+        for (byte b : userId.getBytes(Charset.forName("UTF-8"))) {
+            key.append(String.format(Locale.US, "%02x", b));
+        }
+        return key.toString();
+    }
+
+    private void close() {
+        synchronized (this) {
+            closed = true;
+            prefetchedFirstPage = null;
+            writeVersion++;
+        }
+        budgetListeners.clear();
+        changeListeners.clear();
+        backfillRunner.stop();
+        writeQueue.close(new Runnable() {
+            @Override
+            public void run() {
+                closeStatements();
+                myDbHelper.close();
+            }
+        });
+    }
+
+    // On the writer thread. Writes that still arrive are rejected by the closed WriteQueue.
+    private void closeStatements() {
+        SQLiteStatement[] statements = {insertStatement, importStatement, purchasedStatement, deleteStatement,
+                tombstoneStatement, imageHashStatement, imageReferencesStatement};
+        for (SQLiteStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        insertStatement = null;
+        importStatement = null;
+        purchasedStatement = null;
+        deleteStatement = null;
+        tombstoneStatement = null;
+        imageHashStatement = null;
+        imageReferencesStatement = null;
+        for (int i = 0; i < updateStatements.length; i++) {
+            if (updateStatements[i] != null) {
+                updateStatements[i].close();
+                updateStatements[i] = null;
+            }
+        }
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    public ImageRenditions getImageRenditions() {
+        return myDbHelper.getImageRenditions();
+    }
+
+    // For every image that enters the store. Without renditions readers fall back to the
+    // original, so a failure is not worth failing the write for.
+    void createRenditions(String hash) {
+        try {
+            myDbHelper.getImageRenditions().create(hash);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to create renditions of " + hash, e);
+        }
+    }
+
+    // For tables of the account that are not items, such as the SMS outbox
+    DatabaseHelper getDatabaseHelper() {
+        return myDbHelper;
+    }
+
+    // Reads. These block, call them off the main thread where the result can be large.
+
+    public List<Item> getItemsPage(long afterId, int limit) {
+        long start = Metrics.now();
+        try (Cursor cursor = myDbHelper.getItemsPage(afterId, limit)) {
+            return ItemRowMapper.mapAll(cursor);
+        } finally {
+            Metrics.DB_ITEMS_PAGE.stop(start);
+        }
+    }
+
+    // Keyset page of the sorted and filtered list: the next `limit` items after `after`, the
+    // first ones if it is null. Grouped by purchased state, the page goes on in the purchased
+    // group once the group of items still to buy runs out.
+    public List<Item> getItemsPage(ItemQuery query, Item after, int limit) {
+        long start = Metrics.now();
+        try {
+            if (!query.groupsByPurchased()) {
+                try (Cursor cursor = myDbHelper.getItemsPage(query, DatabaseHelper.ANY_PURCHASED, after, limit)) {
+                    return ItemRowMapper.mapAll(cursor);
+                }
+            }
+            List<Item> page = new ArrayList<>(limit);
+            int lastGroup = query.isUnpurchasedOnly() ? 0 : 1;
+            for (int purchased = after != null && after.isPurchased() ? 1 : 0; purchased <= lastGroup; purchased++) {
+                Item groupAfter = after != null && after.isPurchased() == (purchased == 1) ? after : null;
+                try (Cursor cursor = myDbHelper.getItemsPage(query, purchased, groupAfter, limit - page.size())) {
+                    page.addAll(ItemRowMapper.mapAll(cursor));
+                }
+                if (page.size() >= limit) {
+                    break;
+                }
+            }
+            return page;
+        } finally {
+            Metrics.DB_ITEMS_PAGE.stop(start);
+        }
+    }
+
+    // Reads the first page ahead of time, blocks like the other reads
+    public void prefetchFirstPage() {
+        long version;
+        synchronized (this) {
+            version = writeVersion;
+        }
+        List<Item> page = getItemsPage(0, ItemPager.PAGE_SIZE);
+        synchronized (this) {
+            if (version == writeVersion) {
+                prefetchedFirstPage = page;
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Returns the prefetched first page once, or null if there is none
+    synchronized List<Item> takePrefetchedFirstPage() {
+        List<Item> page = prefetchedFirstPage;
+        prefetchedFirstPage = null;
+        return page;
+    }
+
+    // Best matches for `text` first, see DatabaseHelper.searchItemIds
+    public List<Item> searchItems(String text, int limit) {
+        long start = Metrics.now();
+        try {
+            return findItems(text, limit);
+        } finally {
+            Metrics.DB_SEARCH.stop(start);
+        }
+    }
+
+    private List<Item> findItems(String text, int limit) {
+        List<Long> ids = myDbHelper.searchItemIds(text, limit);
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<Long, Item> byId = new HashMap<>();
+        try (Cursor cursor = myDbHelper.getItemsByIds(ids)) {
+            ItemRowMapper mapper = new ItemRowMapper(cursor);
+            while (cursor.moveToNext()) {
+                Item item = mapper.map(cursor);
+                byId.put(item.getId(), item);
+            }
+        }
+        // Put the rows back into rank order
+        List<Item> found = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Item item = byId.get(id);
+            if (item != null) {
+                found.add(item);
+            }
+        }
+        return found;
+    }
+
+    // Pass "" to start from the beginning
+    public List<String> getImageHashesPage(String afterHash, int limit) {
+        return myDbHelper.getImageHashesPage(afterHash, limit);
+    }
+
+    // Returns null if there is no such item
+    public Item getItem(long id) {
+        long start = Metrics.now();
+        try (Cursor cursor = myDbHelper.getItemById(id)) {
+            return cursor.moveToFirst() ? new ItemRowMapper(cursor).map(cursor) : null;
+        } finally {
+            Metrics.DB_ITEM.stop(start);
+        }
+    }
+
+    // Reads the item off the main thread and hands it to `callback`. Dropped if the account
+    // signs out first.
+    public void loadItem(final long id, final ItemCallback callback) {
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed()) {
+                    return;
+                }
+                Item item = null;
+                try {
+                    item = getItem(id);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to load item " + id, e);
+                }
+                final Item loaded = item;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onItemLoaded(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    // Delivers the current totals, and then the new ones after every committed write
+    public void addBudgetListener(BudgetListener listener) {
+        budgetListeners.add(listener);
+        writeQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                publishBudget();
+            }
+        });
+    }
+
+    public void removeBudgetListener(BudgetListener listener) {
+        budgetListeners.remove(listener);
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    // Writes. They are queued and committed in batches on the writer thread, the callback
+    // runs on the main thread and may be null.
+
+    public void insertItem(String name, long priceMinor, String description, byte[] image, WriteQueue.Callback callback) {
+        writeQueue.insertItem(name, priceMinor, description, image, callback);
+    }
+
+    public void updateItem(long id, ItemChanges changes, WriteQueue.Callback callback) {
+        writeQueue.updateItem(id, changes, callback);
+    }
+
+    public void markItemAsPurchased(long id, boolean purchased, WriteQueue.Callback callback) {
+        writeQueue.markItemAsPurchased(id, purchased, callback);
+    }
+
+    public void deleteItem(long id, WriteQueue.Callback callback) {
+        writeQueue.deleteItem(id, callback);
+    }
+
+    // `ids` must not be modified after it is passed in
+    public void deleteItems(List<Long> ids, WriteQueue.Callback callback) {
+        writeQueue.deleteItems(ids, callback);
+    }
+
+    // Inserts `items` (their ids are ignored) in one transaction on the writer thread. The
+    // Future completes when they are committed and fails if the batch was rolled back.
+    // Image hashes must already be in the ImageStore. Bulk imports hand over one batch at a
+    // time, so only a batch or two of a large import is ever held in memory.
+    Future<Integer> insertBatch(final List<Item> items) {
+        return writeQueue.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                long start = Metrics.now();
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (Item item : items) {
+                        insertImported(item);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                Metrics.DB_IMPORT_BATCH.stop(start);
+                onBatchCommitted();
+                return items.size();
+            }
+        });
+    }
+
+    // Sync. SyncEngine reads what is pending, talks to the server off the writer thread, and
+    // hands the answer to applySync, which commits it in one transaction.
+
+    static void setLocalWriteListener(Runnable listener) {
+        localWriteListener = listener;
+    }
+
+    String getSyncState(String key) {
+        return myDbHelper.getSyncState(key);
+    }
+
+    // Edited rows and deletes that were not pushed yet, at most `limit` of each. Edited rows
+    // carry only the fields that changed.
+    List<SyncChange> getPendingChanges(int limit) {
+        List<SyncChange> changes = new ArrayList<>();
+        try (Cursor cursor = myDbHelper.getDirtyItems(limit)) {
+            while (cursor.moveToNext()) {
+                changes.add(new SyncChange(cursor.getString(0), cursor.getLong(1), cursor.getLong(2), false,
+                        cursor.getInt(3), cursor.getString(4), cursor.getLong(5), cursor.getString(6),
+                        cursor.getString(7), cursor.getInt(8) == 1));
+            }
+        }
+        try (Cursor cursor = myDbHelper.getTombstones(limit)) {
+            while (cursor.moveToNext()) {
+                changes.add(SyncChange.tombstone(cursor.getString(0), cursor.getLong(1), cursor.getLong(2)));
+            }
+        }
+        return changes;
+    }
+
+    // Marks `pushed` as synced, applies the pulled changes and stores the new token under
+    // `tokenKey`, all in one transaction. Images of the pulled changes must already be in
+    // the ImageStore. The Future fails if the transaction was rolled back.
+    Future<Void> applySync(final String tokenKey, final List<SyncChange> pushed, final SyncResponse response) {
+        return writeQueue.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                boolean committed = false;
+                boolean changed = false;
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        for (SyncChange change : pushed) {
+                            markPushed(db, change);
+                        }
+                        for (SyncChange change : response.changes) {
+                            changed |= applyRemote(db, change);
+                        }
+                        ContentValues state = new ContentValues();
+                        state.put(DatabaseHelper.COLUMN_KEY, tokenKey);
+                        state.put(DatabaseHelper.COLUMN_VALUE, response.newToken);
+                        db.insertWithOnConflict(DatabaseHelper.SYNC_STATE_TABLE_NAME, null, state,
+                                SQLiteDatabase.CONFLICT_REPLACE);
+                        keepReferencedImages();
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    committed = true; // Only once the commit itself went through
+                } finally {
+                    finishImages(committed);
+                }
+                onCommitted();
+                if (changed) {
+                    notifyItemsChanged();
+                }
+                return null;
+            }
+        });
+    }
+
+    // Edits made after the push was read keep the row dirty, they go out with the next push
+    private static void markPushed(SQLiteDatabase db, SyncChange change) {
+        if (change.deleted) {
+            db.execSQL("DELETE FROM " + DatabaseHelper.TOMBSTONE_TABLE_NAME + " WHERE " +
+                            DatabaseHelper.COLUMN_SYNC_ID + " = ? AND " + DatabaseHelper.COLUMN_DELETED_AT + " = ?",
+                    new Object[]{change.syncId, change.updatedAt});
+        } else {
+            db.execSQL("UPDATE " + DatabaseHelper.TABLE_NAME + " SET " + DatabaseHelper.COLUMN_DIRTY + " = 0 WHERE " +
+                            DatabaseHelper.COLUMN_SYNC_ID + " = ? AND " + DatabaseHelper.COLUMN_UPDATED_AT + " = ?",
+                    new Object[]{change.syncId, change.updatedAt});
+        }
+    }
+
+    // Conflicts are settled per field: a delete wins over edits, local edits that were not
+    // pushed yet win for their fields, and every other field takes the server's value.
+    // Returns true if a row changed. A change naming an image by anything but a SHA-256 is
+    // dropped, it cannot come from a well-behaved server.
+    private boolean applyRemote(SQLiteDatabase db, SyncChange change) {
+        if (change.has(SyncChange.FIELD_IMAGE) && change.imageHash != null
+                && !ImageStore.isValidHash(change.imageHash)) {
+            Log.w(TAG, "Dropped remote change " + change.syncId + " with bad image hash");
+            return false;
+        }
+        long id = -1;
+        int dirty = 0;
+        String oldHash = null;
+        try (Cursor cursor = db.query(DatabaseHelper.TABLE_NAME, new String[]{DatabaseHelper.COLUMN_ID,
+                        DatabaseHelper.COLUMN_DIRTY, DatabaseHelper.COLUMN_IMAGE_HASH},
+                DatabaseHelper.COLUMN_SYNC_ID + " = ?", new String[]{change.syncId}, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+                dirty = cursor.getInt(1);
+                oldHash = cursor.getString(2);
+            }
+        }
+
+        if (change.deleted) {
+            db.delete(DatabaseHelper.TOMBSTONE_TABLE_NAME, DatabaseHelper.COLUMN_SYNC_ID + " = ?",
+                    new String[]{change.syncId});
+            if (id == -1) {
+                return false;
+            }
+            db.delete(DatabaseHelper.TABLE_NAME, DatabaseHelper.COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+            releaseImage(oldHash);
+            return true;
+        }
+        if (id == -1 && DatabaseUtils.queryNumEntries(db, DatabaseHelper.TOMBSTONE_TABLE_NAME,
+                DatabaseHelper.COLUMN_SYNC_ID + " = ?", new String[]{change.syncId}) > 0) {
+            return false; // Deleted here, the delete is pushed next
+        }
+
+        int fields = SyncChange.fieldsToApply(change.fieldMask, dirty);
+        ContentValues values = new ContentValues();
+        if ((fields & SyncChange.FIELD_NAME) != 0) {
+            values.put(DatabaseHelper.COLUMN_NAME, change.name);
+        }
+        if ((fields & SyncChange.FIELD_PRICE) != 0) {
+            values.put(DatabaseHelper.COLUMN_PRICE_MINOR, change.priceMinor);
+        }
+        if ((fields & SyncChange.FIELD_DESCRIPTION) != 0) {
+            values.put(DatabaseHelper.COLUMN_DESCRIPTION, change.description);
+        }
+        String newHash = oldHash;
+        if ((fields & SyncChange.FIELD_IMAGE) != 0) {
+            newHash = change.imageHash;
+            if (newHash != null && !imageStore.contains(newHash)) {
+                newHash = null; // Never point a row at a missing file
+            }
+            values.put(DatabaseHelper.COLUMN_IMAGE_HASH, newHash);
+        }
+        if ((fields & SyncChange.FIELD_PURCHASED) != 0) {
+            values.put(DatabaseHelper.COLUMN_PURCHASED, change.purchased ? 1 : 0);
+        }
+        values.put(DatabaseHelper.COLUMN_VERSION, change.version);
+        if (dirty == 0) {
+            values.put(DatabaseHelper.COLUMN_UPDATED_AT, change.updatedAt);
+        }
+
+        if (id == -1) {
+            values.put(DatabaseHelper.COLUMN_SYNC_ID, change.syncId);
+            db.insert(DatabaseHelper.TABLE_NAME, null, values);
+        } else {
+            db.update(DatabaseHelper.TABLE_NAME, values, DatabaseHelper.COLUMN_ID + " = ?",
+                    new String[]{String.valueOf(id)});
+            if (oldHash != null && !oldHash.equals(newHash)) {
+                releaseImage(oldHash);
+            }
+        }
+        return true;
+    }
+
+    // Everything below runs on the writer thread, inside the write queue's transaction
+
+    SQLiteDatabase getWritableDatabase() {
+        return myDbHelper.getWritableDatabase();
+    }
+
+    // Returns the new row id, or -1 if the item could not be saved
+    long executeInsert(String name, long priceMinor, String description, byte[] image) {
+        long start = Metrics.now();
+        try {
+            return insert(name, priceMinor, description, image);
+        } finally {
+            Metrics.DB_INSERT.stop(start);
+        }
+    }
+
+    private long insert(String name, long priceMinor, String description, byte[] image) {
+        String imageHash;
+        try {
+            imageHash = storeImage(image);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store image", e);
+            return -1;
+        }
+
+        if (insertStatement == null) {
+            insertStatement = getWritableDatabase().compileStatement("INSERT INTO " + DatabaseHelper.TABLE_NAME +
+                    " (" + DatabaseHelper.COLUMN_NAME + ", " + DatabaseHelper.COLUMN_PRICE_MINOR + ", " +
+                    DatabaseHelper.COLUMN_DESCRIPTION + ", " + DatabaseHelper.COLUMN_IMAGE_HASH + ", " +
+                    DatabaseHelper.COLUMN_SYNC_ID + ", " + DatabaseHelper.COLUMN_UPDATED_AT + ", " +
+                    DatabaseHelper.COLUMN_DIRTY + ") VALUES (?, ?, ?, ?, ?, ?, " + SyncChange.ALL_FIELDS + ")");
+        }
+        bindString(insertStatement, 1, name);
+        insertStatement.bindLong(2, priceMinor);
+        bindString(insertStatement, 3, description);
+        bindString(insertStatement, 4, imageHash);
+        insertStatement.bindString(5, newSyncId());
+        insertStatement.bindLong(6, System.currentTimeMillis());
+        return insertStatement.executeInsert();
+    }
+
+    private void insertImported(Item item) {
+        if (importStatement == null) {
+            importStatement = getWritableDatabase().compileStatement("INSERT INTO " + DatabaseHelper.TABLE_NAME +
+                    " (" + DatabaseHelper.COLUMN_NAME + ", " + DatabaseHelper.COLUMN_PRICE_MINOR + ", " +
+                    DatabaseHelper.COLUMN_DESCRIPTION + ", " + DatabaseHelper.COLUMN_IMAGE_HASH + ", " +
+                    DatabaseHelper.COLUMN_PURCHASED + ", " + DatabaseHelper.COLUMN_SYNC_ID + ", " +
+                    DatabaseHelper.COLUMN_UPDATED_AT + ", " + DatabaseHelper.COLUMN_DIRTY +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, " + SyncChange.ALL_FIELDS + ")");
+        }
+        String imageHash = item.getImageHash();
+        if (!ImageStore.isValidHash(imageHash) || !imageStore.contains(imageHash)) {
+            imageHash = null; // Never point a row at a missing file
+        }
+        bindString(importStatement, 1, item.getName());
+        importStatement.bindLong(2, item.getPriceMinor());
+        bindString(importStatement, 3, item.getDescription());
+        bindString(importStatement, 4, imageHash);
+        importStatement.bindLong(5, item.isPurchased() ? 1 : 0);
+        importStatement.bindString(6, newSyncId());
+        importStatement.bindLong(7, System.currentTimeMillis());
+        importStatement.executeInsert();
+    }
+
+    // Writes only the columns that changed. Returns true if the row was updated.
+    boolean executeUpdate(long id, ItemChanges changes) {
+        if (changes.isEmpty()) {
+            return true;
+        }
+        long start = Metrics.now();
+        try {
+            return update(id, changes);
+        } finally {
+            Metrics.DB_UPDATE.stop(start);
+        }
+    }
+
+    private boolean update(long id, ItemChanges changes) {
+
+        String oldHash = null;
+        String newHash = null;
+        if (changes.isImageChanged()) {
+            oldHash = getImageHash(id);
+            try {
+                newHash = storeImage(changes.getImage());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to store image", e);
+                return false;
+            }
+        }
+
+        int mask = (changes.isNameChanged() ? UPDATE_NAME : 0)
+                | (changes.isPriceChanged() ? UPDATE_PRICE : 0)
+                | (changes.isDescriptionChanged() ? UPDATE_DESCRIPTION : 0)
+                | (changes.isImageChanged() ? UPDATE_IMAGE : 0);
+        SQLiteStatement statement = updateStatement(mask);
+        int index = 1;
+        if ((mask & UPDATE_NAME) != 0) {
+            bindString(statement, index++, changes.getName());
+        }
+        if ((mask & UPDATE_PRICE) != 0) {
+            statement.bindLong(index++, changes.getPriceMinor());
+        }
+        if ((mask & UPDATE_DESCRIPTION) != 0) {
+            bindString(statement, index++, changes.getDescription());
+        }
+        if ((mask & UPDATE_IMAGE) != 0) {
+            bindString(statement, index++, newHash);
+        }
+        statement.bindLong(index++, System.currentTimeMillis());
+        statement.bindLong(index, id);
+
+        int affectedRows = statement.executeUpdateDelete();
+        releaseImage(oldHash);
+        return affectedRows > 0;
+    }
+
+    boolean executeMarkPurchased(long id, boolean purchased) {
+        long start = Metrics.now();
+        if (purchasedStatement == null) {
+            purchasedStatement = getWritableDatabase().compileStatement("UPDATE " + DatabaseHelper.TABLE_NAME +
+                    " SET " + DatabaseHelper.COLUMN_PURCHASED + " = ?, " + DatabaseHelper.COLUMN_DIRTY + " = " +
+                    DatabaseHelper.COLUMN_DIRTY + " | " + SyncChange.FIELD_PURCHASED + ", " +
+                    DatabaseHelper.COLUMN_UPDATED_AT + " = ? WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+        }
+        purchasedStatement.bindLong(1, purchased ? 1 : 0);
+        purchasedStatement.bindLong(2, System.currentTimeMillis());
+        purchasedStatement.bindLong(3, id);
+        boolean updated = purchasedStatement.executeUpdateDelete() > 0;
+        Metrics.DB_MARK_PURCHASED.stop(start);
+        return updated;
+    }
+
+    boolean executeDelete(long id) {
+        long start = Metrics.now();
+        String hash = getImageHash(id);
+        // Remembered until the delete is pushed to the server
+        if (tombstoneStatement == null) {
+            tombstoneStatement = getWritableDatabase().compileStatement("INSERT OR REPLACE INTO " +
+                    DatabaseHelper.TOMBSTONE_TABLE_NAME + " (" + DatabaseHelper.COLUMN_SYNC_ID + ", " +
+                    DatabaseHelper.COLUMN_VERSION + ", " + DatabaseHelper.COLUMN_DELETED_AT + ") SELECT " +
+                    DatabaseHelper.COLUMN_SYNC_ID + ", " + DatabaseHelper.COLUMN_VERSION + ", ? FROM " +
+                    DatabaseHelper.TABLE_NAME + " WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+        }
+        tombstoneStatement.bindLong(1, System.currentTimeMillis());
+        tombstoneStatement.bindLong(2, id);
+        tombstoneStatement.executeInsert();
+        if (deleteStatement == null) {
+            deleteStatement = getWritableDatabase().compileStatement("DELETE FROM " + DatabaseHelper.TABLE_NAME +
+                    " WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+        }
+        deleteStatement.bindLong(1, id);
+        boolean deleted = deleteStatement.executeUpdateDelete() > 0;
+        releaseImage(hash);
+        Metrics.DB_DELETE.stop(start);
+        return deleted;
+    }
+
+    // Called after every write transaction, committed or not, so nothing is left over for the
+    // next one. If it committed, deletes the images released in it and hands those stored in
+    // it to the rendition worker, which keeps the decoding and encoding out of the
+    // transaction and off the writer thread.
+    void finishImages(boolean committed) {
+        if (committed) {
+            for (String hash : releasedImages) {
+                imageStore.delete(hash);
+            }
+            if (!storedImages.isEmpty()) {
+                createRenditionsLater(new ArrayList<>(storedImages));
+            }
+        }
+        releasedImages.clear();
+        storedImages.clear();
+    }
+
+    private void createRenditionsLater(final List<String> hashes) {
+        renditionWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String hash : hashes) {
+                    createRenditions(hash);
+                    if (!imageStore.contains(hash)) {
+                        imageStore.delete(hash); // Released meanwhile, drop what was made after
+                    }
+                }
+            }
+        });
+    }
+
+    // After a commit of local edits
+    void onBatchCommitted() {
+        onCommitted();
+        Runnable listener = localWriteListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void onCommitted() {
+        synchronized (this) {
+            writeVersion++;
+            prefetchedFirstPage = null;
+        }
+        if (!budgetListeners.isEmpty()) {
+            publishBudget();
+        }
+    }
+
+    // For changes that did not come from this process's edits, e.g. a sync or a backfill
+    private void notifyItemsChanged() {
+        if (changeListeners.isEmpty()) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ChangeListener listener : changeListeners) {
+                    listener.onItemsChanged();
+                }
+            }
+        });
+    }
+
+    // The totals are kept up to date by triggers, so this is one row read however many items there are
+    private void publishBudget() {
+        long start = Metrics.now();
+        final Budget budget = myDbHelper.getBudget();
+        Metrics.DB_BUDGET.stop(start);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (BudgetListener listener : budgetListeners) {
+                    listener.onBudgetChanged(budget);
+                }
+            }
+        });
+    }
+
+    private String storeImage(byte[] image) throws IOException {
+        if (image == null || image.length == 0) {
+            return null;
+        }
+        // Stored here, in order with the deletes of releaseImage; see finishImages
+        String hash = imageStore.put(image);
+        storedImages.add(hash);
+        return hash;
+    }
+
+    private String getImageHash(long id) {
+        if (imageHashStatement == null) {
+            imageHashStatement = getWritableDatabase().compileStatement("SELECT " + DatabaseHelper.COLUMN_IMAGE_HASH +
+                    " FROM " + DatabaseHelper.TABLE_NAME + " WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+        }
+        imageHashStatement.bindLong(1, id);
+        try {
+            return imageHashStatement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null; // No such row
+        }
+    }
+
+    // Queues an image file for deletion once no row refers to it anymore
+    private void releaseImage(String hash) {
+        if (!ImageStore.isValidHash(hash)) {
+            return; // No image, or a name older imports stored unchecked that is no file of ours
+        }
+        if (!isImageReferenced(hash) && !releasedImages.contains(hash)) {
+            releasedImages.add(hash);
+        }
+    }
+
+    // Called right before the write transaction is marked successful. A row written after an
+    // image was released may point at it again, e.g. a purge and an insert of the same photo
+    // in one batch, or a sync that swaps the images of two items; those files are kept.
+    void keepReferencedImages() {
+        Iterator<String> released = releasedImages.iterator();
+        while (released.hasNext()) {
+            if (isImageReferenced(released.next())) {
+                released.remove();
+            }
+        }
+    }
+
+    private boolean isImageReferenced(String hash) {
+        if (imageReferencesStatement == null) {
+            imageReferencesStatement = getWritableDatabase().compileStatement("SELECT COUNT(*) FROM " +
+                    DatabaseHelper.TABLE_NAME + " WHERE " + DatabaseHelper.COLUMN_IMAGE_HASH + " = ?");
+        }
+        imageReferencesStatement.bindString(1, hash);
+        return imageReferencesStatement.simpleQueryForLong() > 0;
+    }
+
+    // One statement per combination of changed columns, so each is compiled at most once
+    private SQLiteStatement updateStatement(int mask) {
+        SQLiteStatement statement = updateStatements[mask];
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ").append(DatabaseHelper.TABLE_NAME).append(" SET ");
+            boolean first = true;
+            for (int i = 0; i < UPDATE_COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    sql.append(first ? "" : ", ").append(UPDATE_COLUMNS[i]).append(" = ?");
+                    first = false;
+                }
+            }
+            sql.append(", ").append(DatabaseHelper.COLUMN_DIRTY).append(" = ").append(DatabaseHelper.COLUMN_DIRTY)
+                    .append(" | ").append(mask).append(", ").append(DatabaseHelper.COLUMN_UPDATED_AT).append(" = ?");
+            sql.append(" WHERE ").append(DatabaseHelper.COLUMN_ID).append(" = ?");
+            statement = getWritableDatabase().compileStatement(sql.toString());
+            updateStatements[mask] = statement;
+        }
+        return statement;
+    }
+
+    private static String newSyncId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.suitcase2;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns rows with the DatabaseHelper.LIST_PROJECTION columns into Items. The column
+// indexes are looked up once per cursor instead of once per row and column.
+public class ItemRowMapper {
+
+    private final int idIndex;
+    private final int nameIndex;
+    private final int priceMinorIndex;
+    private final int descriptionIndex;
+    private final int imageHashIndex;
+    private final int purchasedIndex;
+
+    public ItemRowMapper(Cursor cursor) {
+        idIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_ID);
+        nameIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_NAME);
+        priceMinorIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_PRICE_MINOR);
+        descriptionIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_DESCRIPTION);
+        imageHashIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_IMAGE_HASH);
+        purchasedIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_PURCHASED);
+    }
+
+    // Maps the row the cursor is on
+    public Item map(Cursor cursor) {
+        return new Item(cursor.getLong(idIndex), cursor.getString(nameIndex),
+                cursor.getLong(priceMinorIndex), cursor.getString(descriptionIndex),
+                cursor.getString(imageHashIndex), cursor.getInt(purchasedIndex) == 1);
+    }
+
+    // Maps all remaining rows of the cursor
+    public static List<Item> mapAll(Cursor cursor) {
+        List<Item> items = new ArrayList<>(cursor.getCount());
+        ItemRowMapper mapper = new ItemRowMapper(cursor);
+        while (cursor.moveToNext()) {
+            items.add(mapper.map(cursor));
+        }
+        return items;
+    }
+}
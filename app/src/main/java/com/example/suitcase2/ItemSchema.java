@@ -0,0 +1,223 @@
+package com.example.suitcase2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Names and DDL of the current schema of an account's database. DatabaseHelper creates and
+// upgrades the database from these. Plain Java with no dependencies, so the benchmark module
+// compiles this same file and measures against the tables, indexes and triggers the app has.
+public final class ItemSchema {
+
+    // Table Name
+    public static final String TABLE_NAME = "items";
+
+    // Table columns
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_PRICE_MINOR = "price_minor"; // Price in minor units, see Money
+    public static final String COLUMN_DESCRIPTION = "description";
+    public static final String COLUMN_IMAGE_HASH = "image_hash"; // Key of the image in the ImageStore
+    public static final String COLUMN_PURCHASED = "purchased"; // New column for purchase status
+    // Sync bookkeeping, see SyncEngine
+    public static final String COLUMN_SYNC_ID = "sync_id"; // Id of the item on every device and the server
+    public static final String COLUMN_UPDATED_AT = "updated_at"; // Last local edit, ms since the epoch
+    public static final String COLUMN_VERSION = "version"; // Server version last pulled, 0 if never synced
+    public static final String COLUMN_DIRTY = "dirty"; // SyncChange field bits edited since the last push
+
+    // Creating table query
+    static final String TABLE_CREATE =
+            "CREATE TABLE " + TABLE_NAME + " (" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    COLUMN_NAME + " TEXT, " +
+                    COLUMN_PRICE_MINOR + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_DESCRIPTION + " TEXT, " +
+                    COLUMN_IMAGE_HASH + " TEXT, " +
+                    COLUMN_PURCHASED + " INTEGER DEFAULT 0, " + // Default 0 means not purchased
+                    COLUMN_SYNC_ID + " TEXT, " +
+                    COLUMN_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0);";
+
+    // Lets ItemRepository find out cheaply whether another row still uses an image
+    static final String IMAGE_HASH_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS items_image_hash ON " + TABLE_NAME + " (" + COLUMN_IMAGE_HASH + ");";
+
+    // Pulled changes look rows up by sync id, and the partial index holds only the rows
+    // waiting to be pushed, so finding them does not scan the table
+    static final String[] SYNC_INDEXES_CREATE = {
+            "CREATE UNIQUE INDEX IF NOT EXISTS items_sync_id ON " + TABLE_NAME + " (" + COLUMN_SYNC_ID + ");",
+            "CREATE INDEX IF NOT EXISTS items_dirty ON " + TABLE_NAME + " (" + COLUMN_DIRTY + ") WHERE " +
+                    COLUMN_DIRTY + " != 0;"
+    };
+
+    // Deleted items until the delete is pushed. They live in their own table rather than as
+    // a flag on items, so the list, search and budget never have to skip deleted rows.
+    public static final String TOMBSTONE_TABLE_NAME = "item_tombstones";
+    public static final String COLUMN_DELETED_AT = "deleted_at";
+
+    static final String TOMBSTONE_CREATE =
+            "CREATE TABLE " + TOMBSTONE_TABLE_NAME + " (" +
+                    COLUMN_SYNC_ID + " TEXT PRIMARY KEY, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL, " +
+                    COLUMN_DELETED_AT + " INTEGER NOT NULL);";
+
+    // Key-value pairs of the sync, such as the token of the last pull
+    public static final String SYNC_STATE_TABLE_NAME = "sync_state";
+    public static final String COLUMN_KEY = "key";
+    public static final String COLUMN_VALUE = "value";
+
+    static final String SYNC_STATE_CREATE =
+            "CREATE TABLE " + SYNC_STATE_TABLE_NAME + " (" +
+                    COLUMN_KEY + " TEXT PRIMARY KEY, " +
+                    COLUMN_VALUE + " TEXT);";
+
+    // Delegation SMS, see SmsOutbox. Kept per account like the items they list.
+    public static final String SMS_OUTBOX_TABLE_NAME = "sms_outbox";
+    public static final String COLUMN_RECIPIENT = "recipient";
+    public static final String COLUMN_BODY = "body";
+    public static final String COLUMN_STATUS = "status";
+    public static final String COLUMN_ATTEMPTS = "attempts";
+    public static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at";
+    public static final String COLUMN_PARTS = "parts";
+    public static final String COLUMN_PARTS_SENT = "parts_sent";
+    public static final String COLUMN_PARTS_DELIVERED = "parts_delivered";
+    public static final String COLUMN_PART_REPORTS = "part_reports";
+    public static final String COLUMN_SENT_AT = "sent_at";
+    public static final String COLUMN_WINDOW_PARTS = "window_parts";
+    public static final String COLUMN_ERROR = "error";
+
+    static final String SMS_OUTBOX_CREATE =
+            "CREATE TABLE " + SMS_OUTBOX_TABLE_NAME + " (" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    COLUMN_RECIPIENT + " TEXT NOT NULL, " +
+                    COLUMN_BODY + " TEXT NOT NULL, " +
+                    COLUMN_STATUS + " INTEGER NOT NULL, " +
+                    COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_NEXT_ATTEMPT_AT + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_UPDATED_AT + " INTEGER NOT NULL, " +
+                    COLUMN_PARTS + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_PARTS_SENT + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_PARTS_DELIVERED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ERROR + " TEXT, " +
+                    COLUMN_PART_REPORTS + " TEXT, " +
+                    COLUMN_SENT_AT + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_WINDOW_PARTS + " INTEGER NOT NULL DEFAULT 0);";
+
+    // The outbox asks for the next due message of a status on every pump
+    static final String SMS_OUTBOX_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS sms_outbox_due ON " + SMS_OUTBOX_TABLE_NAME + " (" +
+                    COLUMN_STATUS + ", " + COLUMN_NEXT_ATTEMPT_AT + ");";
+
+    // The rate limit reads the sends of the last window on every pump
+    static final String SMS_OUTBOX_SENT_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS sms_outbox_sent ON " + SMS_OUTBOX_TABLE_NAME + " (" +
+                    COLUMN_SENT_AT + ");";
+
+    // The sorted and filtered list, see DatabaseHelper.getItemsPage(ItemQuery, ...). The rowid
+    // at the end of every index entry orders rows with the same price or name.
+    static final String[] SORT_INDEXES_CREATE = {
+            "CREATE INDEX IF NOT EXISTS items_purchased_price ON " + TABLE_NAME + " (" + COLUMN_PURCHASED + ", " +
+                    COLUMN_PRICE_MINOR + ");",
+            "CREATE INDEX IF NOT EXISTS items_purchased_name ON " + TABLE_NAME + " (" + COLUMN_PURCHASED + ", " +
+                    COLUMN_NAME + " COLLATE NOCASE);"
+    };
+
+    // Backfills scheduled by onUpgrade that have not finished, in the order they were
+    // scheduled, with the position each has reached. See Backfill.
+    public static final String MIGRATION_STATE_TABLE_NAME = "migration_state";
+    public static final String COLUMN_POSITION = "position";
+
+    static final String MIGRATION_STATE_CREATE =
+            "CREATE TABLE " + MIGRATION_STATE_TABLE_NAME + " (" +
+                    COLUMN_NAME + " TEXT PRIMARY KEY, " +
+                    COLUMN_POSITION + " TEXT);";
+
+    // Full-text index over name and description. It reads the text from the items table
+    // (external content), so it stores only the index, and the triggers keep it in sync.
+    public static final String FTS_TABLE_NAME = "items_fts";
+
+    static final String FTS_CREATE =
+            "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(content=\"" + TABLE_NAME + "\", " +
+                    COLUMN_NAME + ", " + COLUMN_DESCRIPTION + ");";
+
+    // The old text has to leave the index before the row changes, the new text goes in after
+    static final String[] FTS_TRIGGERS_CREATE = {
+            "CREATE TRIGGER items_fts_before_update BEFORE UPDATE OF " + COLUMN_NAME + ", " + COLUMN_DESCRIPTION +
+                    " ON " + TABLE_NAME + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + COLUMN_ID + "; END;",
+            "CREATE TRIGGER items_fts_before_delete BEFORE DELETE ON " + TABLE_NAME +
+                    " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + COLUMN_ID + "; END;",
+            "CREATE TRIGGER items_fts_after_update AFTER UPDATE OF " + COLUMN_NAME + ", " + COLUMN_DESCRIPTION +
+                    " ON " + TABLE_NAME + " BEGIN INSERT INTO " + FTS_TABLE_NAME + "(docid, " + COLUMN_NAME + ", " +
+                    COLUMN_DESCRIPTION + ") VALUES (new." + COLUMN_ID + ", new." + COLUMN_NAME + ", new." +
+                    COLUMN_DESCRIPTION + "); END;",
+            "CREATE TRIGGER items_fts_after_insert AFTER INSERT ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + FTS_TABLE_NAME + "(docid, " + COLUMN_NAME + ", " +
+                    COLUMN_DESCRIPTION + ") VALUES (new." + COLUMN_ID + ", new." + COLUMN_NAME + ", new." +
+                    COLUMN_DESCRIPTION + "); END;"
+    };
+
+    // One row with the running totals over all items. The triggers below adjust it by the
+    // difference each insert, update and delete makes, so reading the totals never scans items.
+    public static final String BUDGET_TABLE_NAME = "budget_summary";
+    public static final String COLUMN_PLANNED_MINOR = "planned_minor";
+    public static final String COLUMN_PURCHASED_MINOR = "purchased_minor";
+
+    static final String BUDGET_CREATE =
+            "CREATE TABLE " + BUDGET_TABLE_NAME + " (" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY CHECK (" + COLUMN_ID + " = 1), " +
+                    COLUMN_PLANNED_MINOR + " INTEGER NOT NULL, " +
+                    COLUMN_PURCHASED_MINOR + " INTEGER NOT NULL);";
+
+    // Seeds the totals from the rows already there, afterwards only the triggers change them
+    static final String BUDGET_SEED =
+            "INSERT INTO " + BUDGET_TABLE_NAME + " (" + COLUMN_ID + ", " + COLUMN_PLANNED_MINOR + ", " +
+                    COLUMN_PURCHASED_MINOR + ") SELECT 1, IFNULL(SUM(" + COLUMN_PRICE_MINOR + "), 0), IFNULL(SUM(" +
+                    purchasedPrice(TABLE_NAME) + "), 0) FROM " + TABLE_NAME;
+
+    static final String[] BUDGET_TRIGGERS_CREATE = {
+            "CREATE TRIGGER budget_after_insert AFTER INSERT ON " + TABLE_NAME +
+                    " BEGIN UPDATE " + BUDGET_TABLE_NAME + " SET " +
+                    COLUMN_PLANNED_MINOR + " = " + COLUMN_PLANNED_MINOR + " + new." + COLUMN_PRICE_MINOR + ", " +
+                    COLUMN_PURCHASED_MINOR + " = " + COLUMN_PURCHASED_MINOR + " + " + purchasedPrice("new") + "; END;",
+            "CREATE TRIGGER budget_after_update AFTER UPDATE OF " + COLUMN_PRICE_MINOR + ", " + COLUMN_PURCHASED +
+                    " ON " + TABLE_NAME + " BEGIN UPDATE " + BUDGET_TABLE_NAME + " SET " +
+                    COLUMN_PLANNED_MINOR + " = " + COLUMN_PLANNED_MINOR + " - old." + COLUMN_PRICE_MINOR +
+                    " + new." + COLUMN_PRICE_MINOR + ", " +
+                    COLUMN_PURCHASED_MINOR + " = " + COLUMN_PURCHASED_MINOR + " - " + purchasedPrice("old") +
+                    " + " + purchasedPrice("new") + "; END;",
+            "CREATE TRIGGER budget_after_delete AFTER DELETE ON " + TABLE_NAME +
+                    " BEGIN UPDATE " + BUDGET_TABLE_NAME + " SET " +
+                    COLUMN_PLANNED_MINOR + " = " + COLUMN_PLANNED_MINOR + " - old." + COLUMN_PRICE_MINOR + ", " +
+                    COLUMN_PURCHASED_MINOR + " = " + COLUMN_PURCHASED_MINOR + " - " + purchasedPrice("old") + "; END;"
+    };
+
+    private ItemSchema() {
+    }
+
+    // Every statement that creates a new database, in order; DatabaseHelper.onCreate runs them
+    public static List<String> createStatements() {
+        List<String> statements = new ArrayList<>();
+        statements.add(TABLE_CREATE);
+        statements.add(IMAGE_HASH_INDEX_CREATE);
+        statements.add(FTS_CREATE);
+        Collections.addAll(statements, FTS_TRIGGERS_CREATE);
+        statements.add(BUDGET_CREATE);
+        statements.add(BUDGET_SEED);
+        Collections.addAll(statements, BUDGET_TRIGGERS_CREATE);
+        Collections.addAll(statements, SYNC_INDEXES_CREATE);
+        statements.add(TOMBSTONE_CREATE);
+        statements.add(SYNC_STATE_CREATE);
+        statements.add(SMS_OUTBOX_CREATE);
+        statements.add(SMS_OUTBOX_INDEX_CREATE);
+        statements.add(SMS_OUTBOX_SENT_INDEX_CREATE);
+        Collections.addAll(statements, SORT_INDEXES_CREATE);
+        statements.add(MIGRATION_STATE_CREATE);
+        return statements;
+    }
+
+    // SQL for the price a row adds to the purchased total: its price if purchased, else 0
+    private static String purchasedPrice(String row) {
+        return "(CASE WHEN " + row + "." + COLUMN_PURCHASED + " = 1 THEN " + row + "." + COLUMN_PRICE_MINOR + " ELSE 0 END)";
+    }
+}
@@ -0,0 +1,443 @@
+package com.example.suitcase2;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Bulk import and export of items. Both stream: the importer parses one row at a time and
+// hands rows to the writer thread in batches, the exporter reads the table a page at a time,
+// so memory use does not depend on the number of items.
+//
+// Import accepts
+//  - CSV with a header row naming the columns: name, price, description, purchased
+//  - JSON, either an array of items or {"items": [...]}, with the same fields plus "image"
+//  - a zip made by export: images/<hash> entries followed by items.json
+// The format is detected from the first bytes, not the file name.
+public class ItemTransfer {
+
+    private static final String TAG = "ItemTransfer";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ITEMS_ENTRY = "items.json";
+    private static final String IMAGES_DIRECTORY = "images/";
+
+    // Rows per import transaction, and rows or hashes per export read
+    static final int BATCH_SIZE = 500;
+
+    public interface Listener {
+        // Called on the main thread after every batch
+        void onProgress(int items);
+
+        // Called on the main thread once at the end, `error` is null on success
+        void onComplete(int items, int skipped, Exception error);
+    }
+
+    // One transfer at a time; they share the database with the UI anyway
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver resolver;
+    private final ItemRepository repository;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public ItemTransfer(Context context) {
+        this.resolver = context.getContentResolver();
+        this.repository = ItemRepository.getInstance(context);
+    }
+
+    public void importFrom(final Uri uri, final Listener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BatchWriter writer = new BatchWriter(listener);
+                Exception error = null;
+                try (InputStream in = new BufferedInputStream(resolver.openInputStream(uri))) {
+                    readAny(in, writer);
+                    writer.finish();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Import from " + uri + " failed", e);
+                    error = e;
+                }
+                complete(listener, writer.imported, writer.skipped, error);
+            }
+        });
+    }
+
+    public void exportTo(final Uri uri, final Listener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int exported = 0;
+                Exception error = null;
+                try (OutputStream out = resolver.openOutputStream(uri)) {
+                    exported = writeZip(new BufferedOutputStream(out), listener);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Export to " + uri + " failed", e);
+                    error = e;
+                }
+                complete(listener, exported, 0, error);
+            }
+        });
+    }
+
+    // Import
+
+    private void readAny(InputStream in, BatchWriter writer) throws IOException {
+        in.mark(4);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+
+        if (first == 'P' && second == 'K') {
+            readZip(in, writer);
+            return;
+        }
+        boolean json = startsLikeJson(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        reader.mark(1);
+        if (reader.read() != '\uFEFF') {
+            reader.reset(); // No byte order mark, spreadsheets like to write one
+        }
+        if (json) {
+            readJson(reader, writer);
+        } else {
+            readCsv(reader, writer);
+        }
+    }
+
+    private static boolean startsLikeJson(InputStream in) throws IOException {
+        in.mark(64);
+        try {
+            int c;
+            do {
+                c = in.read();
+            } while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0xef || c == 0xbb || c == 0xbf);
+            return c == '[' || c == '{';
+        } finally {
+            in.reset();
+        }
+    }
+
+    // Images come first in the zip, so they are in the store before rows point at them
+    private void readZip(InputStream in, BatchWriter writer) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (name.startsWith(IMAGES_DIRECTORY)) {
+                repository.createRenditions(repository.getImageStore().put(zip));
+            } else if (name.equals(ITEMS_ENTRY)) {
+                // The parser must not close the zip stream, further entries may follow
+                readJson(new InputStreamReader(new UnclosableInputStream(zip), UTF_8), writer);
+            }
+        }
+    }
+
+    private void readJson(Reader in, BatchWriter writer) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("items")) {
+                    readJsonItems(reader, writer);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } else {
+            readJsonItems(reader, writer);
+        }
+    }
+
+    private void readJsonItems(JsonReader reader, BatchWriter writer) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String name = null;
+            String price = null;
+            String description = null;
+            String imageHash = null;
+            boolean purchased = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (field) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "price":
+                        price = reader.nextString(); // Numbers come back as written, no double rounding
+                        break;
+                    case "description":
+                        description = reader.nextString();
+                        break;
+                    case "image":
+                        imageHash = reader.nextString();
+                        break;
+                    case "purchased":
+                        purchased = reader.peek() == JsonToken.BOOLEAN ? reader.nextBoolean() : parseFlag(reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            writer.add(name, price, description, imageHash, purchased);
+        }
+        reader.endArray();
+    }
+
+    private void readCsv(Reader in, BatchWriter writer) throws IOException {
+        CsvReader reader = new CsvReader(in);
+        List<String> header = reader.readRecord();
+        if (header == null) {
+            return; // Empty file
+        }
+        int nameColumn = -1;
+        int priceColumn = -1;
+        int descriptionColumn = -1;
+        int purchasedColumn = -1;
+        for (int i = 0; i < header.size(); i++) {
+            String column = header.get(i).trim().toLowerCase(Locale.US);
+            switch (column) {
+                case "name":
+                    nameColumn = i;
+                    break;
+                case "price":
+                    priceColumn = i;
+                    break;
+                case "description":
+                    descriptionColumn = i;
+                    break;
+                case "purchased":
+                    purchasedColumn = i;
+                    break;
+            }
+        }
+        if (nameColumn == -1) {
+            throw new IOException("The CSV header has no name column");
+        }
+
+        List<String> record;
+        while ((record = reader.readRecord()) != null) {
+            if (record.size() == 1 && record.get(0).isEmpty()) {
+                continue; // Blank line
+            }
+            writer.add(column(record, nameColumn), column(record, priceColumn),
+                    column(record, descriptionColumn), null, parseFlag(column(record, purchasedColumn)));
+        }
+    }
+
+    private static String column(List<String> record, int index) {
+        return index >= 0 && index < record.size() ? record.get(index) : null;
+    }
+
+    private static boolean parseFlag(String value) {
+        if (value == null) {
+            return false;
+        }
+        String flag = value.trim().toLowerCase(Locale.US);
+        return flag.equals("1") || flag.equals("true") || flag.equals("yes");
+    }
+
+    // Collects parsed rows into batches. A batch is written while the next one is parsed,
+    // and parsing waits for it before handing over another, so at most two are in memory.
+    private class BatchWriter {
+        private final Listener listener;
+        private List<Item> batch = new ArrayList<>(BATCH_SIZE);
+        private Future<Integer> inFlight;
+        int imported = 0;
+        int skipped = 0;
+
+        BatchWriter(Listener listener) {
+            this.listener = listener;
+        }
+
+        void add(String name, String price, String description, String imageHash, boolean purchased) throws IOException {
+            if (name == null || name.trim().isEmpty()) {
+                skipped++;
+                return;
+            }
+            long priceMinor = 0;
+            if (price != null && !price.trim().isEmpty()) {
+                try {
+                    priceMinor = Money.parse(price);
+                } catch (NumberFormatException | ArithmeticException e) {
+                    skipped++;
+                    return;
+                }
+            }
+            if (imageHash != null && !ImageStore.isValidHash(imageHash)) {
+                imageHash = null; // Keep the item, the image cannot be one of ours
+            }
+            batch.add(new Item(0, name.trim(), priceMinor, description == null ? "" : description, imageHash, purchased));
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void finish() throws IOException {
+            if (!batch.isEmpty()) {
+                flush();
+            }
+            awaitInFlight();
+        }
+
+        private void flush() throws IOException {
+            awaitInFlight();
+            inFlight = repository.insertBatch(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+
+        private void awaitInFlight() throws IOException {
+            if (inFlight == null) {
+                return;
+            }
+            try {
+                imported += inFlight.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Saving imported items failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import interrupted", e);
+            } finally {
+                inFlight = null;
+            }
+            progress(listener, imported);
+        }
+    }
+
+    // Export
+
+    private int writeZip(OutputStream out, Listener listener) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        // The images are already compressed, the JSON is small next to them
+        zip.setLevel(Deflater.BEST_SPEED);
+
+        // Images first, see readZip. Distinct hashes in index order, so shared images are
+        // written once without remembering which ones were seen.
+        ImageStore imageStore = repository.getImageStore();
+        byte[] buffer = new byte[64 * 1024];
+        String lastHash = "";
+        List<String> hashes;
+        do {
+            hashes = repository.getImageHashesPage(lastHash, BATCH_SIZE);
+            for (String hash : hashes) {
+                if (!ImageStore.isValidHash(hash) || !imageStore.contains(hash)) {
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(IMAGES_DIRECTORY + hash));
+                try (InputStream image = imageStore.open(hash)) {
+                    int read;
+                    while ((read = image.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                    }
+                }
+                zip.closeEntry();
+            }
+            if (!hashes.isEmpty()) {
+                lastHash = hashes.get(hashes.size() - 1);
+            }
+        } while (hashes.size() == BATCH_SIZE);
+
+        zip.putNextEntry(new ZipEntry(ITEMS_ENTRY));
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(zip, UTF_8));
+        writer.beginObject();
+        writer.name("version").value(1);
+        writer.name("items").beginArray();
+        int exported = 0;
+        long lastId = 0;
+        List<Item> page;
+        do {
+            page = repository.getItemsPage(lastId, BATCH_SIZE);
+            for (Item item : page) {
+                writer.beginObject();
+                writer.name("name").value(item.getName());
+                writer.name("price").value(Money.format(item.getPriceMinor()));
+                writer.name("description").value(item.getDescription());
+                writer.name("purchased").value(item.isPurchased());
+                if (item.getImageHash() != null) {
+                    writer.name("image").value(item.getImageHash());
+                }
+                writer.endObject();
+            }
+            if (!page.isEmpty()) {
+                lastId = page.get(page.size() - 1).getId();
+                exported += page.size();
+                progress(listener, exported);
+            }
+        } while (page.size() == BATCH_SIZE);
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+        return exported;
+    }
+
+    private void progress(final Listener listener, final int items) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(items);
+            }
+        });
+    }
+
+    private void complete(final Listener listener, final int items, final int skipped, final Exception error) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(items, skipped, error);
+            }
+        });
+    }
+
+    // Keeps a reader from closing the zip stream under the next entry
+    private static class UnclosableInputStream extends FilterInputStream {
+        UnclosableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.example.suitcase2;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -60,10 +61,13 @@ public class Login_Page extends AppCompatActivity {
                     return;
                 }
 
+                final long authStart = SystemClock.elapsedRealtime();
                 firebaseAuth.signInWithEmailAndPassword(email, password)
                         .addOnCompleteListener(new OnCompleteListener<AuthResult>() {
                             @Override
                             public void onComplete(@NonNull Task<AuthResult> task) {
+                                StartupTrace.mark("Login auth callback after " + (SystemClock.elapsedRealtime() - authStart)
+                                        + " ms, " + (task.isSuccessful() ? "success" : "failure"));
                                 if (task.isSuccessful()) {
                                     Intent intent = new Intent(Login_Page.this, MainActivity.class);
                                     startActivity(intent);
@@ -1,38 +1,121 @@
 package com.example.suitcase2;
 
 import android.Manifest;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract;
-import android.telephony.SmsManager;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.google.android.material.navigation.NavigationView;
+import com.google.android.material.snackbar.Snackbar;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MainActivity extends AppCompatActivity {
 
-    private DatabaseHelper myDbHelper;
+    private ItemRepository repository;
     private RecyclerView recyclerView;
     private TextView emptyMessage;
     private Button addItemButton;
+    private EditText searchField;
+    private TextView budgetSummary;
     private ItemAdapter itemAdapter;
-    private List<Item> itemList;
+    private ItemPager itemPager;
+    private boolean fullyDrawnReported = false;
+    private RecentDelegates recentDelegates;
+    private boolean contactsPermissionAsked = false;
+    // Deleted in the list, written to the database once the undo bar goes away
+    private final Map<Long, Item> pendingDeletes = new LinkedHashMap<>();
+    private Snackbar undoBar;
     private static final int MY_PERMISSIONS_REQUEST_SEND_SMS = 1;
     private static final int PICK_CONTACT_REQUEST = 2;
+    private static final int IMPORT_REQUEST = 3;
+    private static final int EXPORT_REQUEST = 4;
+    private static final int MY_PERMISSIONS_REQUEST_READ_CONTACTS = 5;
+    // Contacts the delegate dialog lists for what was typed
+    private static final int CONTACT_RESULTS = 20;
+    // Start loading the next page when this many rows are left below the last visible one
+    private static final int PREFETCH_DISTANCE = 10;
+    // Wait for a pause in typing before searching
+    private static final long SEARCH_DEBOUNCE_MS = 300;
+    // Choices of the sort dialog, each sort ascending then descending
+    private static final String[] SORT_LABELS = {
+            "Oldest first", "Newest first", "Price: low to high", "Price: high to low", "Name: A to Z", "Name: Z to A"
+    };
+    private static final ItemQuery.Sort[] SORTS = {
+            ItemQuery.Sort.ADDED, ItemQuery.Sort.ADDED, ItemQuery.Sort.PRICE, ItemQuery.Sort.PRICE,
+            ItemQuery.Sort.NAME, ItemQuery.Sort.NAME
+    };
+
+    private final ItemRepository.BudgetListener budgetListener = new ItemRepository.BudgetListener() {
+        @Override
+        public void onBudgetChanged(Budget budget) {
+            budgetSummary.setText("Planned: " + Money.format(budget.getPlannedMinor())
+                    + "   Purchased: " + Money.format(budget.getPurchasedMinor())
+                    + "   Remaining: " + Money.format(budget.getRemainingMinor()));
+        }
+    };
+
+    // Items pulled from another device
+    private final ItemRepository.ChangeListener changeListener = new ItemRepository.ChangeListener() {
+        @Override
+        public void onItemsChanged() {
+            loadItems();
+        }
+    };
+
+    // Delegation SMS are sent in the background, even after this activity is gone
+    private final SmsDelegation.StatusListener smsStatusListener = new SmsDelegation.StatusListener() {
+        @Override
+        public void onStatusChanged(long messageId, int status, int parts, String error) {
+            if (status == SmsOutbox.STATUS_SENT) {
+                Toast.makeText(MainActivity.this, parts > 1 ? "SMS sent in " + parts + " parts" : "SMS sent", Toast.LENGTH_SHORT).show();
+            } else if (status == SmsOutbox.STATUS_DELIVERED) {
+                Toast.makeText(MainActivity.this, "SMS delivered", Toast.LENGTH_SHORT).show();
+            } else if (status == SmsOutbox.STATUS_FAILED) {
+                Toast.makeText(MainActivity.this, "Failed to send SMS", Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            itemPager.setQuery(searchField.getText().toString());
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -44,13 +127,18 @@ public class MainActivity extends AppCompatActivity {
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.SEND_SMS}, MY_PERMISSIONS_REQUEST_SEND_SMS);
         }
 
-        // Initialize DatabaseHelper
-        myDbHelper = new DatabaseHelper(this);
+        // Shared by every screen of the app
+        repository = ItemRepository.getInstance(this);
+        recentDelegates = new RecentDelegates(this, FirebaseAuth.getInstance().getCurrentUser().getUid());
+        // Read in the background, ready by the time the user delegates
+        ContactIndex.getInstance(this).refresh();
 
         // Initialize RecyclerView, TextView, and Button
         recyclerView = findViewById(R.id.recycler_view);
         emptyMessage = findViewById(R.id.empty_message);
         addItemButton = findViewById(R.id.add_item_button);
+        searchField = findViewById(R.id.search_field);
+        budgetSummary = findViewById(R.id.budget_summary);
 
         // Set up click listener for Add Item button
         addItemButton.setOnClickListener(new View.OnClickListener() {
@@ -61,53 +149,304 @@ public class MainActivity extends AppCompatActivity {
         });
 
         // Initialize RecyclerView with LinearLayoutManager
-        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
         recyclerView.setLayoutManager(layoutManager);
         recyclerView.setHasFixedSize(true);
 
-        // Initialize itemList and ItemAdapter
-        itemList = new ArrayList<>();
-        itemAdapter = new ItemAdapter(this, itemList, myDbHelper);
+        // Page items in from the database as the list nears its end, the adapter
+        // diffs every new list against the shown one
+        itemPager = new ItemPager(repository, new ItemPager.Listener() {
+            @Override
+            public void onItemsChanged(List<Item> items) {
+                itemAdapter.submitList(items, new Runnable() {
+                    @Override
+                    public void run() {
+                        checkEmpty();
+                        reportFullyDrawnOnce();
+                    }
+                });
+            }
+        });
+
+        // Initialize ItemAdapter
+        itemAdapter = new ItemAdapter(this, itemPager, repository);
         recyclerView.setAdapter(itemAdapter);
 
-        // Load items from database
-        loadItems();
+        // One swipe handler for the whole list, the row animates out and the delete can be undone
+        new ItemTouchHelper(new ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.RIGHT) {
+            @Override
+            public boolean onMove(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder,
+                                  @NonNull RecyclerView.ViewHolder target) {
+                return false;
+            }
+
+            @Override
+            public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
+                int position = viewHolder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    softDelete(itemAdapter.getItem(position));
+                }
+            }
+        }).attachToRecyclerView(recyclerView);
+
+        // Search runs on the pager's background thread once typing pauses
+        searchField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchHandler.removeCallbacks(searchRunnable);
+                searchHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+            }
+        });
+
+        NavigationView navigationView = findViewById(R.id.nav_view);
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            navigationView.getMenu().setGroupVisible(R.id.nav_debug_group, true);
+        }
+        navigationView.setNavigationItemSelectedListener(new NavigationView.OnNavigationItemSelectedListener() {
+            @Override
+            public boolean onNavigationItemSelected(@NonNull MenuItem item) {
+                if (item.getItemId() == R.id.nav_import) {
+                    Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("*/*"); // CSV, JSON or an exported zip, the importer tells them apart
+                    startActivityForResult(intent, IMPORT_REQUEST);
+                    return true;
+                }
+                if (item.getItemId() == R.id.nav_export) {
+                    Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("application/zip");
+                    intent.putExtra(Intent.EXTRA_TITLE, "suitcase-items.zip");
+                    startActivityForResult(intent, EXPORT_REQUEST);
+                    return true;
+                }
+                if (item.getItemId() == R.id.nav_sort) {
+                    chooseSort();
+                    return true;
+                }
+                if (item.getItemId() == R.id.nav_logout) {
+                    signOut();
+                    return true;
+                }
+                if (item.getItemId() == R.id.nav_startup_trace) {
+                    StartupTrace.dump(MainActivity.this);
+                    showReport("Startup trace", StartupTrace.snapshot());
+                    return true;
+                }
+                if (item.getItemId() == R.id.nav_metrics) {
+                    Metrics.dump(MainActivity.this);
+                    showReport("Metrics", Metrics.snapshot());
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        // Totals come from the summary table and follow every saved change
+        repository.addBudgetListener(budgetListener);
+        repository.addChangeListener(changeListener);
+        SmsDelegation.getInstance(this).addStatusListener(smsStatusListener);
+
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition() >= itemAdapter.getItemCount() - PREFETCH_DISTANCE) {
+                    itemPager.loadNextPage();
+                }
+            }
+        });
     }
 
-    // Method to load items from database
-    private void loadItems() {
-        Cursor cursor = myDbHelper.getAllItems();
+    // Hides the item and offers undo. Deletes made while the bar shows share it, and are
+    // written together in one transaction when it goes.
+    public void softDelete(Item item) {
+        pendingDeletes.put(item.getId(), item);
+        itemPager.hideItem(item.getId());
+        itemAdapter.deselect(item.getId());
+        int count = pendingDeletes.size();
+        undoBar = Snackbar.make(recyclerView, count > 1 ? count + " items deleted" : "Item deleted", Snackbar.LENGTH_LONG)
+                .setAction("Undo", new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        undoDeletes();
+                    }
+                })
+                .addCallback(new Snackbar.Callback() {
+                    @Override
+                    public void onDismissed(Snackbar bar, int event) {
+                        // A newer bar for the next delete takes over the pending ones
+                        if (event != DISMISS_EVENT_ACTION && event != DISMISS_EVENT_CONSECUTIVE) {
+                            purgeDeletes();
+                        }
+                    }
+                });
+        undoBar.show();
+    }
+
+    private void undoDeletes() {
+        for (Item item : pendingDeletes.values()) {
+            itemPager.restoreItem(item);
+        }
+        pendingDeletes.clear();
+    }
+
+    private void purgeDeletes() {
+        if (pendingDeletes.isEmpty()) {
+            return;
+        }
+        final List<Item> deleted = new ArrayList<>(pendingDeletes.values());
+        final List<Long> ids = new ArrayList<>(pendingDeletes.keySet());
+        pendingDeletes.clear();
+        repository.deleteItems(ids, new WriteQueue.Callback() {
+            @Override
+            public void onComplete(boolean success) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (success) {
+                    itemPager.forgetHidden(ids);
+                } else {
+                    // Still in the database, show them again
+                    for (Item item : deleted) {
+                        itemPager.restoreItem(item);
+                    }
+                    Toast.makeText(MainActivity.this, "Failed to delete", Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
 
-        // Clear existing itemList to avoid duplicates
-        itemList.clear();
+    // Closes this account's database and drops its cached images before leaving, the next
+    // account opens its own
+    private void signOut() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        purgeDeletes(); // Queued ahead of the release, so they still commit
+        FirebaseAuth.getInstance().signOut();
+        itemPager.close();
+        if (user != null) {
+            SmsDelegation.release(user.getUid());
+            ItemRepository.release(user.getUid());
+        }
+        ImageLoader.getInstance(this).clear();
+        Intent intent = new Intent(MainActivity.this, Login_Page.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        startActivity(intent);
+        finish();
+    }
 
-        // Iterate through the cursor and add items to itemList
-        while (cursor.moveToNext()) {
-            long id = cursor.getLong(cursor.getColumnIndex(DatabaseHelper.COLUMN_ID));
-            String name = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME));
-            double price = cursor.getDouble(cursor.getColumnIndex(DatabaseHelper.COLUMN_PRICE));
-            String description = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_DESCRIPTION));
-            byte[] image = cursor.getBlob(cursor.getColumnIndex(DatabaseHelper.COLUMN_IMAGE));
-            boolean purchased = cursor.getInt(cursor.getColumnIndex(DatabaseHelper.COLUMN_PURCHASED)) == 1;
+    // Method to reload the loaded items from database, only changed rows are rebound
+    private void loadItems() {
+        itemPager.refresh();
+    }
 
-            // Create Item object and add to itemList
-            Item item = new Item(id, name, price, description, image, purchased);
-            itemList.add(item);
+    // The list shows real rows from the database now, which ends the launch as far as the
+    // user is concerned (time to full display)
+    private void reportFullyDrawnOnce() {
+        if (fullyDrawnReported) {
+            return;
         }
+        fullyDrawnReported = true;
+        reportFullyDrawn();
+        StartupTrace.mark("MainActivity fully drawn");
+        StartupTrace.dump(this);
+    }
 
-        // Close the cursor after use
-        cursor.close();
+    // Runs an import or export in the background with a dialog showing the progress
+    private void runTransfer(Uri uri, final boolean importing) {
+        final AlertDialog progress = new AlertDialog.Builder(this)
+                .setTitle(importing ? "Importing items" : "Exporting items")
+                .setMessage("Starting...")
+                .setCancelable(false)
+                .show();
+        ItemTransfer.Listener listener = new ItemTransfer.Listener() {
+            @Override
+            public void onProgress(int items) {
+                progress.setMessage(items + " items so far");
+            }
 
-        // Notify the adapter that the dataset has changed
-        itemAdapter.notifyDataSetChanged();
+            @Override
+            public void onComplete(int items, int skipped, Exception error) {
+                if (isDestroyed()) {
+                    return;
+                }
+                progress.dismiss();
+                String message;
+                if (error != null) {
+                    message = (importing ? "Import" : "Export") + " failed after " + items + " items";
+                } else if (importing) {
+                    message = "Imported " + items + " items" + (skipped > 0 ? ", skipped " + skipped + " invalid rows" : "");
+                } else {
+                    message = "Exported " + items + " items";
+                }
+                Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                if (importing) {
+                    loadItems();
+                }
+            }
+        };
+        if (importing) {
+            new ItemTransfer(this).importFrom(uri, listener);
+        } else {
+            new ItemTransfer(this).exportTo(uri, listener);
+        }
+    }
+
+    // Debug menu reports, they are also written where adb can read them
+    private void showReport(String title, String text) {
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setMessage(text)
+                .setPositiveButton("OK", null)
+                .show();
+    }
 
-        // Check if there are items to show or display empty message
-        checkEmpty();
+    // The database sorts and filters, see ItemQuery, so the list still loads a page at a time
+    private void chooseSort() {
+        final ItemQuery current = itemPager.getItemQuery();
+        int checked = 0;
+        for (int i = 0; i < SORTS.length; i++) {
+            if (SORTS[i] == current.getSort() && (i % 2 == 1) == current.isDescending()) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Sort items")
+                .setSingleChoiceItems(SORT_LABELS, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        itemPager.setItemQuery(itemPager.getItemQuery().withSort(SORTS[which], which % 2 == 1));
+                        dialog.dismiss();
+                    }
+                })
+                .setNeutralButton(current.isUnpurchasedOnly() ? "Show all" : "Not purchased only",
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                itemPager.setItemQuery(current.withUnpurchasedOnly(!current.isUnpurchasedOnly()));
+                            }
+                        })
+                .setNegativeButton("Cancel", null)
+                .show();
     }
 
     // Method to check if RecyclerView should be visible or show empty message
     private void checkEmpty() {
-        if (itemList.isEmpty()) {
+        if (itemAdapter.getItemCount() == 0) {
+            if (itemPager.isSearching()) {
+                emptyMessage.setText("No items match your search");
+            } else if (itemPager.getItemQuery().isUnpurchasedOnly()) {
+                emptyMessage.setText("Everything is purchased");
+            } else {
+                emptyMessage.setText("Your suitcase is empty");
+            }
             emptyMessage.setVisibility(View.VISIBLE);
             recyclerView.setVisibility(View.GONE);
         } else {
@@ -116,47 +455,126 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    // Offers the recent delegates and a search over the contacts, so delegating to someone
+    // known is one tap. The system contact picker stays available as a fallback.
+    public void chooseDelegate() {
+        boolean canSearch = ContextCompat.checkSelfPermission(this, Manifest.permission.READ_CONTACTS)
+                == PackageManager.PERMISSION_GRANTED;
+        if (!canSearch && !contactsPermissionAsked) {
+            // Asked once; chooseDelegate() runs again with the answer
+            contactsPermissionAsked = true;
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.READ_CONTACTS}, MY_PERMISSIONS_REQUEST_READ_CONTACTS);
+            return;
+        }
+        final List<Contact> recent = recentDelegates.get();
+        if (!canSearch && recent.isEmpty()) {
+            chooseContactForDelegate(); // Nothing to offer, the picker needs no permission
+            return;
+        }
+        final ContactIndex contactIndex = ContactIndex.getInstance(this);
+        contactIndex.refresh();
+
+        View view = getLayoutInflater().inflate(R.layout.dialog_delegate, null);
+        EditText search = view.findViewById(R.id.delegate_search);
+        ListView list = view.findViewById(R.id.delegate_list);
+        final List<Contact> shown = new ArrayList<>(recent);
+        final ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, labels(shown));
+        list.setAdapter(adapter);
+        if (!canSearch) {
+            search.setVisibility(View.GONE);
+        }
+
+        final AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(recent.isEmpty() ? "Delegate to" : "Delegate to a recent contact")
+                .setView(view)
+                .setNeutralButton("Other contact", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        chooseContactForDelegate();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                dialog.dismiss();
+                delegateTo(shown.get(position));
+            }
+        });
+        search.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // An in-memory lookup, cheap enough to run on every keystroke
+                String text = s.toString();
+                shown.clear();
+                shown.addAll(text.trim().isEmpty() ? recent : contactIndex.search(text, CONTACT_RESULTS));
+                adapter.clear();
+                adapter.addAll(labels(shown));
+            }
+        });
+    }
+
+    private static List<String> labels(List<Contact> contacts) {
+        List<String> labels = new ArrayList<>(contacts.size());
+        for (Contact contact : contacts) {
+            String label = contact.getLabel();
+            labels.add(label.equals(contact.getNumber()) ? label : label + "\n" + contact.getNumber());
+        }
+        return labels;
+    }
+
     // Method to handle contact selection for SMS delegation
     public void chooseContactForDelegate() {
         Intent intent = new Intent(Intent.ACTION_PICK, ContactsContract.CommonDataKinds.Phone.CONTENT_URI);
         startActivityForResult(intent, PICK_CONTACT_REQUEST);
     }
 
-    // Method to send SMS
-    private void sendSMS(String phoneNumber, String message) {
-        try {
-            SmsManager smsManager = SmsManager.getDefault();
-            smsManager.sendTextMessage(phoneNumber, null, message, null, null);
-            Toast.makeText(this, "SMS sent", Toast.LENGTH_SHORT).show();
-        } catch (Exception e) {
-            Toast.makeText(this, "Failed to send SMS", Toast.LENGTH_SHORT).show();
-            e.printStackTrace();
+    // Sends the selected items, or the one whose SMS button was tapped, to `contact`
+    private void delegateTo(Contact contact) {
+        List<Item> items = itemAdapter.getDelegationItems();
+        if (items.isEmpty()) {
+            return;
         }
+        // Queued as one message, sent and retried in the background
+        SmsDelegation.getInstance(this).delegate(contact.getNumber(), items);
+        recentDelegates.use(contact);
+        itemAdapter.clearSelection();
+        Toast.makeText(this, (items.size() > 1 ? "Sending " + items.size() + " items to " : "Sending SMS to ")
+                + contact.getLabel(), Toast.LENGTH_SHORT).show();
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if ((requestCode == IMPORT_REQUEST || requestCode == EXPORT_REQUEST) && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            runTransfer(data.getData(), requestCode == IMPORT_REQUEST);
+            return;
+        }
         if (requestCode == PICK_CONTACT_REQUEST && resultCode == RESULT_OK) {
             Uri contactUri = data.getData();
-            String[] projection = {ContactsContract.CommonDataKinds.Phone.NUMBER};
+            String[] projection = {ContactsContract.CommonDataKinds.Phone.NUMBER,
+                    ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME};
 
             try (Cursor cursor = getContentResolver().query(contactUri, projection, null, null, null)) {
                 if (cursor != null && cursor.moveToFirst()) {
                     int numberColumnIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER);
+                    int nameColumnIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME);
                     String phoneNumber = cursor.getString(numberColumnIndex);
+                    String name = nameColumnIndex >= 0 ? cursor.getString(nameColumnIndex) : null;
 
-                    // Get selected item from ItemAdapter
-                    Item selectedItem = itemAdapter.getSelectedItem();
-
-                    if (selectedItem != null) {
-                        // Compose SMS message
-                        String message = "Item: " + selectedItem.getName() + "\nPrice: " + selectedItem.getPrice()
-                                + "\nDescription: " + selectedItem.getDescription();
-
-                        // Send SMS
-                        sendSMS(phoneNumber, message);
-                    }
+                    // Remembered, so next time it is one tap
+                    delegateTo(new Contact(name, phoneNumber));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -174,6 +592,11 @@ public class MainActivity extends AppCompatActivity {
             } else {
                 Toast.makeText(this, "SMS permission denied", Toast.LENGTH_SHORT).show();
             }
+        } else if (requestCode == MY_PERMISSIONS_REQUEST_READ_CONTACTS) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                ContactIndex.getInstance(this).refresh();
+            }
+            chooseDelegate();
         }
     }
 
@@ -184,4 +607,27 @@ public class MainActivity extends AppCompatActivity {
         // Reload items when returning to MainActivity
         loadItems();
     }
+
+    @Override
+    protected void onStop() {
+        // The undo bar is gone once the user leaves, so are the rows
+        if (undoBar != null) {
+            undoBar.dismiss();
+            undoBar = null;
+        }
+        purgeDeletes();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        searchHandler.removeCallbacks(searchRunnable);
+        repository.removeBudgetListener(budgetListener);
+        repository.removeChangeListener(changeListener);
+        if (FirebaseAuth.getInstance().getCurrentUser() != null) {
+            SmsDelegation.getInstance(this).removeStatusListener(smsStatusListener);
+        }
+        itemPager.close();
+        super.onDestroy();
+    }
 }
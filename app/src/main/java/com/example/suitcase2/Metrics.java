@@ -0,0 +1,227 @@
+package com.example.suitcase2;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and latency histograms for the database and image hot paths. Every metric is
+// created up front below, and recording one only updates atomics, so measuring a bind or a
+// query does not allocate. dump() writes p50/p95/p99 per metric to logcat (tag Metrics) and
+// to files/metrics.txt:
+//   adb shell run-as com.example.suitcase2 cat files/metrics.txt
+public final class Metrics {
+
+    private static final String TAG = "Metrics";
+    private static final String DUMP_FILE = "metrics.txt";
+
+    private static final List<Counter> counters = new ArrayList<>();
+    private static final List<Timer> timers = new ArrayList<>();
+
+    private static final ExecutorService dumpExecutor = Executors.newSingleThreadExecutor();
+
+    // Reads, timed from the query to the last mapped row
+    public static final Timer DB_ITEMS_PAGE = timer("db.items_page");
+    public static final Timer DB_SEARCH = timer("db.search");
+    public static final Timer DB_ITEM = timer("db.item");
+    public static final Timer DB_BUDGET = timer("db.budget");
+
+    // Writes, each inside the write queue's transaction
+    public static final Timer DB_INSERT = timer("db.insert");
+    public static final Timer DB_UPDATE = timer("db.update");
+    public static final Timer DB_MARK_PURCHASED = timer("db.mark_purchased");
+    public static final Timer DB_DELETE = timer("db.delete");
+    // A whole batch, from begin to the end of the commit
+    public static final Timer DB_WRITE_BATCH = timer("db.write_batch");
+    public static final Timer DB_IMPORT_BATCH = timer("db.import_batch");
+    public static final Timer DB_BACKFILL_CHUNK = timer("db.backfill_chunk");
+    public static final Counter DB_WRITES = counter("db.writes");
+    public static final Counter DB_WRITE_FAILURES = counter("db.write_failures");
+
+    public static final Timer LIST_BIND = timer("list.bind");
+    public static final Timer IMAGE_DECODE = timer("image.decode");
+    public static final Timer IMAGE_ENCODE = timer("image.encode");
+    public static final Timer IMAGE_RENDITIONS = timer("image.renditions");
+    public static final Counter IMAGE_CACHE_HITS = counter("image.cache_hits");
+    public static final Counter IMAGE_CACHE_MISSES = counter("image.cache_misses");
+
+    private Metrics() {
+    }
+
+    public static final class Counter {
+        final String name;
+        private final AtomicLong count = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            count.addAndGet(delta);
+        }
+
+        public long get() {
+            return count.get();
+        }
+    }
+
+    // Durations in nanoseconds, in log-linear buckets: 8 buckets per power of two, so a
+    // reported percentile is at most 12.5% above the real one. Durations beyond the last
+    // bucket are reported as the largest value seen.
+    public static final class Timer {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Enough for durations up to 2^44 ns, several hours
+        static final int BUCKETS = (44 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        // Records the time since `startNanos`, a value from Metrics.now()
+        public void stop(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(bucketFor(nanos));
+            long current = max.get();
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get();
+            }
+        }
+
+        static int bucketFor(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(value, 0);
+            }
+            int octave = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return Math.min((octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+        }
+
+        // Largest value that falls into the bucket
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int octave = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (octave - SUB_BUCKET_BITS)) - 1;
+        }
+
+        // One line with the count and p50/p95/p99/max in milliseconds
+        String summary() {
+            long[] counts = new long[BUCKETS];
+            long total = snapshot(counts);
+            long maxNanos = max.get();
+            return String.format(Locale.US, "%-20s n=%-8d p50=%.3f p95=%.3f p99=%.3f max=%.3f ms",
+                    name, total, millis(percentile(counts, total, 0.50, maxNanos)),
+                    millis(percentile(counts, total, 0.95, maxNanos)),
+                    millis(percentile(counts, total, 0.99, maxNanos)), millis(maxNanos));
+        }
+
+        // The percentile in nanoseconds, `fraction` from 0 to 1
+        long percentile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long total = snapshot(counts);
+            return percentile(counts, total, fraction, max.get());
+        }
+
+        // Copies the bucket counts into `counts` and returns their sum
+        private long snapshot(long[] counts) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            return total;
+        }
+
+        // Upper bound of the bucket holding the percentile, but never above the largest value seen
+        private static long percentile(long[] counts, long total, double fraction, long maxNanos) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // The last bucket also holds every longer duration, its bound says nothing
+                    return i == counts.length - 1 ? maxNanos : Math.min(upperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    // Start time for Timer.stop()
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    private static Counter counter(String name) {
+        Counter counter = new Counter(name);
+        counters.add(counter);
+        return counter;
+    }
+
+    private static Timer timer(String name) {
+        Timer timer = new Timer(name);
+        timers.add(timer);
+        return timer;
+    }
+
+    public static String snapshot() {
+        StringBuilder out = new StringBuilder();
+        for (Timer timer : timers) {
+            out.append(timer.summary()).append('\n');
+        }
+        for (Counter counter : counters) {
+            out.append(String.format(Locale.US, "%-20s %d", counter.name, counter.get())).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Logs the snapshot and writes it to the dump file in the background
+    public static void dump(Context context) {
+        final String text = snapshot();
+        final File file = new File(context.getFilesDir(), DUMP_FILE);
+        for (String line : text.split("\n")) {
+            Log.i(TAG, line);
+        }
+        dumpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer writer = new FileWriter(file)) {
+                    writer.write(text);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write " + file, e);
+                }
+            }
+        });
+    }
+}
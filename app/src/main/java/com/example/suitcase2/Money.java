@@ -0,0 +1,44 @@
+package com.example.suitcase2;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+// Prices are kept as whole minor units (cents) so that adding them up is exact.
+// A double like 0.1 cannot be represented exactly, and the errors add up over a list.
+public final class Money {
+
+    private static final int FRACTION_DIGITS = 2;
+
+    private Money() {
+    }
+
+    // Parses a price as typed by the user, e.g. "12.5" becomes 1250.
+    // Throws NumberFormatException if it is not a number, and ArithmeticException if it
+    // does not fit in a long.
+    public static long parse(String text) {
+        return new BigDecimal(text.trim())
+                .setScale(FRACTION_DIGITS, RoundingMode.HALF_UP)
+                .movePointRight(FRACTION_DIGITS)
+                .longValueExact();
+    }
+
+    // Formats minor units as a plain decimal that parse() reads back, e.g. 1250 becomes "12.50"
+    public static String format(long minor) {
+        return BigDecimal.valueOf(minor, FRACTION_DIGITS).toPlainString();
+    }
+
+    // For display only: the grouping and decimal separator of `locale`, e.g. "1.250,50" in
+    // German. Not thread safe, and parse() does not read it back.
+    public static NumberFormat displayFormat(Locale locale) {
+        NumberFormat format = NumberFormat.getNumberInstance(locale);
+        format.setMinimumFractionDigits(FRACTION_DIGITS);
+        format.setMaximumFractionDigits(FRACTION_DIGITS);
+        return format;
+    }
+
+    public static String format(long minor, NumberFormat displayFormat) {
+        return displayFormat.format(BigDecimal.valueOf(minor, FRACTION_DIGITS));
+    }
+}
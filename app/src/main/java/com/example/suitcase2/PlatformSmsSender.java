@@ -0,0 +1,122 @@
+package com.example.suitcase2;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Build;
+import android.telephony.SmsManager;
+import android.telephony.SmsMessage;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// SmsSender on top of SmsManager. Every part gets a sent and a delivered PendingIntent
+// pointing back at a receiver registered for the lifetime of this sender, so the reports
+// reach the outbox that sent the message.
+class PlatformSmsSender implements SmsSender {
+
+    private static final String ACTION_SENT = "com.example.suitcase2.SMS_SENT";
+    private static final String ACTION_DELIVERED = "com.example.suitcase2.SMS_DELIVERED";
+    private static final String EXTRA_MESSAGE_ID = "message_id";
+    private static final String EXTRA_ATTEMPT = "attempt";
+    private static final String EXTRA_PART = "part";
+    // Every PendingIntent carries sms-report://<message id>/<attempt>/<part> as its data, so
+    // no two are the same and the system never hands one back with another message's extras,
+    // even to a process started after the first was sent
+    private static final String REPORT_SCHEME = "sms-report";
+
+    // TP-Status of a delivery report: below 0x20 the message arrived, up to 0x3f the
+    // network is still trying and another report follows, above that it gave up
+    private static final int STATUS_PENDING_LIMIT = 0x20;
+    private static final int STATUS_FAILED_LIMIT = 0x40;
+
+    private final Context context;
+    private final SmsManager smsManager;
+    private volatile Listener listener;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Listener current = listener;
+            if (current == null) {
+                return;
+            }
+            long messageId = intent.getLongExtra(EXTRA_MESSAGE_ID, -1);
+            int attempt = intent.getIntExtra(EXTRA_ATTEMPT, 0);
+            int part = intent.getIntExtra(EXTRA_PART, 0);
+            if (ACTION_SENT.equals(intent.getAction())) {
+                int resultCode = getResultCode();
+                current.onPartSent(messageId, attempt, part, resultCode == Activity.RESULT_OK, resultCode);
+            } else if (ACTION_DELIVERED.equals(intent.getAction())) {
+                SmsMessage report = SmsMessage.createFromPdu(intent.getByteArrayExtra("pdu"),
+                        intent.getStringExtra("format"));
+                int status = report != null ? report.getStatus() : STATUS_FAILED_LIMIT;
+                if (status < STATUS_PENDING_LIMIT || status >= STATUS_FAILED_LIMIT) {
+                    current.onPartDelivered(messageId, attempt, part, status < STATUS_PENDING_LIMIT);
+                }
+            }
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    PlatformSmsSender(Context context) {
+        this.context = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            smsManager = this.context.getSystemService(SmsManager.class);
+        } else {
+            smsManager = SmsManager.getDefault();
+        }
+        IntentFilter filter = new IntentFilter(ACTION_SENT);
+        filter.addAction(ACTION_DELIVERED);
+        filter.addDataScheme(REPORT_SCHEME);
+        ContextCompat.registerReceiver(this.context, receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public List<String> divideMessage(String text) {
+        return smsManager.divideMessage(text);
+    }
+
+    @Override
+    public void send(long messageId, int attempt, String destination, List<String> parts) {
+        ArrayList<PendingIntent> sentIntents = new ArrayList<>(parts.size());
+        ArrayList<PendingIntent> deliveryIntents = new ArrayList<>(parts.size());
+        for (int part = 0; part < parts.size(); part++) {
+            sentIntents.add(reportIntent(ACTION_SENT, messageId, attempt, part));
+            deliveryIntents.add(reportIntent(ACTION_DELIVERED, messageId, attempt, part));
+        }
+        smsManager.sendMultipartTextMessage(destination, null, new ArrayList<>(parts), sentIntents, deliveryIntents);
+    }
+
+    @Override
+    public void close() {
+        listener = null;
+        context.unregisterReceiver(receiver);
+    }
+
+    // Mutable, the platform adds the result and the report PDU to it
+    private PendingIntent reportIntent(String action, long messageId, int attempt, int part) {
+        Intent intent = new Intent(action);
+        intent.setData(Uri.parse(REPORT_SCHEME + "://" + messageId + "/" + attempt + "/" + part));
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_MESSAGE_ID, messageId);
+        intent.putExtra(EXTRA_ATTEMPT, attempt);
+        intent.putExtra(EXTRA_PART, part);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            flags |= PendingIntent.FLAG_MUTABLE;
+        }
+        return PendingIntent.getBroadcast(context, 0, intent, flags);
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.suitcase2;
+
+import android.util.LongSparseArray;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+
+// The "Price: ..." text of the list rows, formatted for the current locale and cached by
+// amount, so binding a row with a price seen before builds no strings. A list rarely has
+// more than a few hundred distinct prices. Main thread only.
+class PriceLabels {
+
+    private static final int MAX_CACHED = 512;
+
+    private final LongSparseArray<String> labels = new LongSparseArray<>();
+    private Locale locale;
+    private NumberFormat format;
+
+    String get(long priceMinor) {
+        Locale current = Locale.getDefault();
+        if (!current.equals(locale)) {
+            // The user changed the language, labels in the old format are no use
+            locale = current;
+            format = Money.displayFormat(current);
+            labels.clear();
+        }
+        String label = labels.get(priceMinor);
+        if (label == null) {
+            if (labels.size() >= MAX_CACHED) {
+                labels.clear();
+            }
+            label = "Price: " + Money.format(priceMinor, format);
+            labels.put(priceMinor, label);
+        }
+        return label;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.suitcase2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The contacts an account delegated to most recently, newest first, so the next delegation
+// to one of them is a single tap. Kept in SharedPreferences; the list is small and read
+// once, afterwards it is served from memory.
+public class RecentDelegates {
+
+    private static final String PREFERENCES_NAME = "recent_delegates";
+    private static final String KEY_PREFIX = "recent:";
+    static final int MAX_RECENT = 5;
+
+    private final SharedPreferences preferences;
+    private final String key;
+    private final List<Contact> recent;
+
+    public RecentDelegates(Context context, String userId) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        key = KEY_PREFIX + userId;
+        recent = decode(preferences.getString(key, null));
+    }
+
+    public List<Contact> get() {
+        return Collections.unmodifiableList(new ArrayList<>(recent));
+    }
+
+    // Moves `contact` to the front, dropping an older entry with the same number
+    public void use(Contact contact) {
+        String number = contact.getNormalizedNumber();
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            if (recent.get(i).getNormalizedNumber().equals(number)) {
+                recent.remove(i);
+            }
+        }
+        recent.add(0, contact);
+        while (recent.size() > MAX_RECENT) {
+            recent.remove(recent.size() - 1);
+        }
+        preferences.edit().putString(key, encode(recent)).apply();
+    }
+
+    // One contact per line, number and name separated by a tab
+    static String encode(List<Contact> contacts) {
+        StringBuilder text = new StringBuilder();
+        for (Contact contact : contacts) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(clean(contact.getNumber())).append('\t');
+            if (contact.getName() != null) {
+                text.append(clean(contact.getName()));
+            }
+        }
+        return text.toString();
+    }
+
+    static List<Contact> decode(String text) {
+        List<Contact> contacts = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return contacts;
+        }
+        for (String line : text.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) {
+                continue; // Not written by encode()
+            }
+            String name = line.substring(tab + 1);
+            contacts.add(new Contact(name.isEmpty() ? null : name, line.substring(0, tab)));
+        }
+        return contacts;
+    }
+
+    // Tabs and line breaks would break the format
+    private static String clean(String text) {
+        return text.replace('\t', ' ').replace('\n', ' ');
+    }
+}
@@ -2,6 +2,7 @@ package com.example.suitcase2;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -62,10 +63,13 @@ public class Signup_Page extends AppCompatActivity {
                     Toast.makeText(Signup_Page.this, "Please Enter Confirm Password", Toast.LENGTH_SHORT).show();
                 }
                 if (password.equals(cPassword)) {
+                    final long authStart = SystemClock.elapsedRealtime();
                     firebaseAuth.createUserWithEmailAndPassword(email, password)
                             .addOnCompleteListener(new OnCompleteListener<AuthResult>() {
                                 @Override
                                 public void onComplete(@NonNull Task<AuthResult> task) {
+                                    StartupTrace.mark("Signup auth callback after " + (SystemClock.elapsedRealtime() - authStart)
+                                            + " ms, " + (task.isSuccessful() ? "success" : "failure"));
                                     if (task.isSuccessful()) {
                                         Intent intent = new Intent(getApplicationContext(), Login_Page.class);
                                         startActivity(intent);
@@ -0,0 +1,211 @@
+package com.example.suitcase2;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Sends the delegation SMS of one account. The SmsOutbox runs on a background thread of its
+// own: delegate() only stores the message, and the outbox is pumped again whenever a send
+// report arrives or a retry or the rate limit is due. Messages left from an earlier run go
+// out as soon as the account's delegation is opened again.
+public class SmsDelegation {
+
+    private static final String TAG = "SmsDelegation";
+
+    // Pump again after an unexpected error, e.g. a full disk
+    private static final long ERROR_RETRY_MS = 30 * 1000;
+
+    public interface StatusListener {
+        // Called on the main thread with the status the message changed to, see SmsOutbox
+        void onStatusChanged(long messageId, int status, int parts, String error);
+    }
+
+    // Guarded by the class
+    private static final Map<String, SmsDelegation> instances = new HashMap<>();
+
+    private final SmsOutboxStore store;
+    private final SmsOutbox outbox;
+    private final SmsSender sender;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<StatusListener> statusListeners = new CopyOnWriteArrayList<>();
+
+    // Only touched on the executor. Once closed, tasks that were queued before close() do
+    // nothing, the account's database may already be closed.
+    private ScheduledFuture<?> nextPump;
+    private boolean closed = false;
+
+    private final Runnable pumpTask = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    // The delegation of the signed-in account. Only call it while someone is signed in.
+    public static SmsDelegation getInstance(Context context) {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            throw new IllegalStateException("No user is signed in");
+        }
+        synchronized (SmsDelegation.class) {
+            SmsDelegation delegation = instances.get(user.getUid());
+            if (delegation == null) {
+                delegation = new SmsDelegation(context.getApplicationContext(), user.getUid());
+                instances.put(user.getUid(), delegation);
+            }
+            return delegation;
+        }
+    }
+
+    // Called on sign out, before the account's repository is released. Messages not sent
+    // yet stay in the outbox until the account signs in again.
+    public static void release(String userId) {
+        SmsDelegation delegation;
+        synchronized (SmsDelegation.class) {
+            delegation = instances.remove(userId);
+        }
+        if (delegation != null) {
+            delegation.close();
+        }
+    }
+
+    private SmsDelegation(Context context, String userId) {
+        sender = new PlatformSmsSender(context);
+        store = new SmsOutboxStore(ItemRepository.forUser(context, userId).getDatabaseHelper());
+        outbox = new SmsOutbox(store, sender);
+        outbox.setStatusListener(new SmsOutbox.StatusListener() {
+            @Override
+            public void onStatusChanged(SmsOutbox.Message message) {
+                notifyStatus(message.id, message.getStatus(), message.getParts(), message.getError());
+            }
+        });
+        sender.setListener(new SmsSender.Listener() {
+            @Override
+            public void onPartSent(final long messageId, final int attempt, final int part, final boolean success,
+                                   final int errorCode) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closed) {
+                            return;
+                        }
+                        outbox.onPartSent(messageId, attempt, part, success, errorCode, System.currentTimeMillis());
+                        pump();
+                    }
+                });
+            }
+
+            @Override
+            public void onPartDelivered(final long messageId, final int attempt, final int part,
+                                        final boolean success) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closed) {
+                            return;
+                        }
+                        outbox.onPartDelivered(messageId, attempt, part, success, System.currentTimeMillis());
+                    }
+                });
+            }
+        });
+        // Picks up whatever an earlier run left queued
+        post(pumpTask);
+    }
+
+    // One message listing all `items`, sent in as many parts as it needs
+    public void delegate(final String recipient, List<Item> items) {
+        final String body = DelegationMessage.compose(items);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                outbox.enqueue(recipient, body, System.currentTimeMillis());
+                pump();
+            }
+        });
+    }
+
+    public void addStatusListener(StatusListener listener) {
+        statusListeners.add(listener);
+    }
+
+    public void removeStatusListener(StatusListener listener) {
+        statusListeners.remove(listener);
+    }
+
+    private void pump() {
+        if (closed) {
+            return;
+        }
+        if (nextPump != null) {
+            nextPump.cancel(false);
+            nextPump = null;
+        }
+        long delayMs;
+        try {
+            delayMs = outbox.pump(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to send delegation SMS", e);
+            delayMs = ERROR_RETRY_MS;
+        }
+        if (delayMs >= 0) {
+            nextPump = executor.schedule(pumpTask, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Reports that arrive after close() are dropped, the stored state is retried later
+    private void post(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Delegation already closed");
+        }
+    }
+
+    private void notifyStatus(final long messageId, final int status, final int parts, final String error) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (StatusListener listener : statusListeners) {
+                    listener.onStatusChanged(messageId, status, parts, error);
+                }
+            }
+        });
+    }
+
+    private void close() {
+        statusListeners.clear();
+        // Right away, tasks still queued may run after the repository closed the database
+        store.close();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                closed = true;
+                if (nextPump != null) {
+                    nextPump.cancel(false);
+                    nextPump = null;
+                }
+                sender.close();
+            }
+        });
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.suitcase2;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Delegation SMS waiting to go out, and the state of those that went. A message is stored
+// before anything is sent, so none is lost if the app dies. Sends are rate limited, a failed
+// send is retried with backoff, and the sent and delivered reports of every part are
+// tracked. The rate limit is worked out from the send times in the store, so it holds
+// across restarts too. Plain Java with the storage and the radio behind interfaces: SmsDelegation runs
+// it on a background thread, tests drive it directly with their own clock.
+public class SmsOutbox {
+
+    public static final int STATUS_QUEUED = 0;
+    public static final int STATUS_SENDING = 1;
+    public static final int STATUS_SENT = 2;
+    public static final int STATUS_DELIVERED = 3;
+    public static final int STATUS_FAILED = 4;
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long MIN_RETRY_MS = 30 * 1000;
+    static final long MAX_RETRY_MS = 30 * 60 * 1000;
+    // Android asks the user to confirm once an app sends 30 SMS within 30 minutes, so stay
+    // below that. Every part counts.
+    static final int MAX_PARTS_PER_WINDOW = 25;
+    static final long RATE_WINDOW_MS = 30 * 60 * 1000;
+    // Gap between two messages, so a burst does not reach the radio at once
+    static final long MIN_INTERVAL_MS = 2000;
+    // A message not reported sent by then counts as a failed attempt
+    static final long SEND_TIMEOUT_MS = 2 * 60 * 1000;
+
+    // Bits of a part in Message.partReports
+    private static final int REPORT_SENT = 1;
+    private static final int REPORT_DELIVERED = 2;
+
+    public static class Message {
+        public final long id;
+        public final String recipient;
+        public final String body;
+        int status;
+        int attempts;
+        // When a queued message is due, or when a sending one times out
+        long nextAttemptAt;
+        long updatedAt;
+        int parts;
+        int partsSent;
+        int partsDelivered;
+        // One digit per part of the last attempt with its REPORT_ bits, so a report that
+        // arrives twice is counted once
+        String partReports;
+        // When the last attempt went out, and the parts it and the attempts before it still
+        // count against the rate window then
+        long sentAt;
+        int windowParts;
+        String error;
+
+        public Message(long id, String recipient, String body, int status, int attempts, long nextAttemptAt,
+                       long updatedAt, int parts, int partsSent, int partsDelivered, String partReports,
+                       long sentAt, int windowParts, String error) {
+            this.id = id;
+            this.recipient = recipient;
+            this.body = body;
+            this.status = status;
+            this.attempts = attempts;
+            this.nextAttemptAt = nextAttemptAt;
+            this.updatedAt = updatedAt;
+            this.parts = parts;
+            this.partsSent = partsSent;
+            this.partsDelivered = partsDelivered;
+            this.partReports = partReports;
+            this.sentAt = sentAt;
+            this.windowParts = windowParts;
+            this.error = error;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getNextAttemptAt() {
+            return nextAttemptAt;
+        }
+
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        public int getParts() {
+            return parts;
+        }
+
+        public int getPartsSent() {
+            return partsSent;
+        }
+
+        public int getPartsDelivered() {
+            return partsDelivered;
+        }
+
+        public String getPartReports() {
+            return partReports;
+        }
+
+        public long getSentAt() {
+            return sentAt;
+        }
+
+        public int getWindowParts() {
+            return windowParts;
+        }
+
+        // Why the last attempt failed, null if it did not
+        public String getError() {
+            return error;
+        }
+    }
+
+    // Parts that went out together, as the rate limit counts them
+    public static class Send {
+        public final long sentAt;
+        public final int parts;
+
+        public Send(long sentAt, int parts) {
+            this.sentAt = sentAt;
+            this.parts = parts;
+        }
+    }
+
+    public interface Store {
+        long insert(String recipient, String body, long now);
+
+        // Returns null if there is no such message
+        Message get(long id);
+
+        // The oldest queued message that is due at `now`, or null
+        Message nextDue(long now);
+
+        // Sending messages whose timeout has passed at `now`
+        List<Message> overdue(long now);
+
+        // The earliest nextAttemptAt of all queued and sending messages, -1 if there are none
+        long earliestAttempt();
+
+        // The last sends of messages sent at least once, those after `since`, oldest first
+        List<Send> sendsSince(long since);
+
+        void update(Message message);
+    }
+
+    public interface StatusListener {
+        // Called on the thread that drives the outbox
+        void onStatusChanged(Message message);
+    }
+
+    private final Store store;
+    private final SmsSender sender;
+    private StatusListener statusListener;
+
+    public SmsOutbox(Store store, SmsSender sender) {
+        this.store = store;
+        this.sender = sender;
+    }
+
+    public synchronized void setStatusListener(StatusListener listener) {
+        statusListener = listener;
+    }
+
+    // Stores the message, it goes out with the next pump()
+    public synchronized long enqueue(String recipient, String body, long now) {
+        return store.insert(recipient, body, now);
+    }
+
+    // Gives up on sends that timed out and sends the next message if the rate limit allows.
+    // Returns how long to wait before calling it again, or -1 if nothing is waiting.
+    public synchronized long pump(long now) {
+        for (Message message : store.overdue(now)) {
+            retryOrFail(message, "No send report", now);
+        }
+
+        Message message = store.nextDue(now);
+        if (message != null) {
+            List<String> parts = sender.divideMessage(message.body);
+            long wait = rateLimitWait(store.sendsSince(now - RATE_WINDOW_MS), parts.size(), now);
+            if (wait > 0) {
+                return wait;
+            }
+            send(message, parts, now);
+        }
+
+        long earliest = store.earliestAttempt();
+        return earliest < 0 ? -1 : Math.max(earliest - now, 0);
+    }
+
+    public synchronized void onPartSent(long messageId, int attempt, int part, boolean success, int errorCode,
+                                        long now) {
+        Message message = store.get(messageId);
+        if (message == null || message.status != STATUS_SENDING || message.attempts != attempt) {
+            return; // A report of an attempt that was already given up on
+        }
+        if (!success) {
+            retryOrFail(message, "Send failed with error " + errorCode, now);
+            return;
+        }
+        if (!markPart(message, part, REPORT_SENT)) {
+            return; // Reported before
+        }
+        message.partsSent++;
+        message.updatedAt = now;
+        boolean changed = false;
+        if (message.partsSent >= message.parts) {
+            // Delivery reports can overtake the last sent report
+            message.status = message.partsDelivered >= message.parts ? STATUS_DELIVERED : STATUS_SENT;
+            message.nextAttemptAt = 0;
+            changed = true;
+        }
+        store.update(message);
+        if (changed) {
+            notifyStatus(message);
+        }
+    }
+
+    // A failed delivery is not retried: the recipient may already have some of the parts
+    public synchronized void onPartDelivered(long messageId, int attempt, int part, boolean success, long now) {
+        Message message = store.get(messageId);
+        if (message == null || message.attempts != attempt
+                || (message.status != STATUS_SENDING && message.status != STATUS_SENT)) {
+            return;
+        }
+        message.updatedAt = now;
+        boolean changed = false;
+        if (!success) {
+            message.status = STATUS_FAILED;
+            message.nextAttemptAt = 0;
+            message.error = "Not delivered";
+            changed = true;
+        } else {
+            if (!markPart(message, part, REPORT_DELIVERED)) {
+                return; // Reported before
+            }
+            message.partsDelivered++;
+            if (message.status == STATUS_SENT && message.partsDelivered >= message.parts) {
+                message.status = STATUS_DELIVERED;
+                changed = true;
+            }
+        }
+        store.update(message);
+        if (changed) {
+            notifyStatus(message);
+        }
+    }
+
+    private void send(Message message, List<String> parts, long now) {
+        message.status = STATUS_SENDING;
+        message.attempts++;
+        message.parts = parts.size();
+        message.partsSent = 0;
+        message.partsDelivered = 0;
+        char[] reports = new char[parts.size()];
+        Arrays.fill(reports, '0');
+        message.partReports = new String(reports);
+        // An earlier attempt still in the window keeps counting, moved up to this one. That
+        // holds its parts a little longer than needed, never shorter.
+        message.windowParts = parts.size() + (message.sentAt > now - RATE_WINDOW_MS ? message.windowParts : 0);
+        message.sentAt = now;
+        message.nextAttemptAt = now + SEND_TIMEOUT_MS;
+        message.updatedAt = now;
+        message.error = null;
+        store.update(message);
+        notifyStatus(message);
+
+        try {
+            sender.send(message.id, message.attempts, message.recipient, parts);
+        } catch (RuntimeException e) {
+            // Reload it, the sender may have reported on it already
+            Message current = store.get(message.id);
+            if (current != null && current.status == STATUS_SENDING && current.attempts == message.attempts) {
+                retryOrFail(current, e.toString(), now);
+            }
+        }
+    }
+
+    private void retryOrFail(Message message, String error, long now) {
+        message.error = error;
+        message.updatedAt = now;
+        if (message.attempts >= MAX_ATTEMPTS) {
+            message.status = STATUS_FAILED;
+            message.nextAttemptAt = 0;
+        } else {
+            message.status = STATUS_QUEUED;
+            message.nextAttemptAt = now + retryDelay(message.attempts);
+        }
+        store.update(message);
+        notifyStatus(message);
+    }
+
+    // Doubles with every attempt
+    static long retryDelay(int attempts) {
+        if (attempts >= 20) {
+            return MAX_RETRY_MS;
+        }
+        return Math.min(MIN_RETRY_MS << Math.max(attempts - 1, 0), MAX_RETRY_MS);
+    }
+
+    // Sets the `report` bit of the part. Returns false if it was set already, or the part is
+    // not one of the last attempt.
+    private static boolean markPart(Message message, int part, int report) {
+        String reports = message.partReports;
+        if (reports == null || part < 0 || part >= reports.length()) {
+            return false;
+        }
+        int bits = reports.charAt(part) - '0';
+        if ((bits & report) != 0) {
+            return false;
+        }
+        char[] chars = reports.toCharArray();
+        chars[part] = (char) ('0' + (bits | report));
+        message.partReports = new String(chars);
+        return true;
+    }
+
+    // How long until the next message may go out: MIN_INTERVAL_MS after the last one, and
+    // once `partCount` more parts fit in the window. `sends` are those still in the window.
+    // A message longer than the whole window goes out on its own once the window is empty.
+    private static long rateLimitWait(List<Send> sends, int partCount, long now) {
+        if (sends.isEmpty()) {
+            return 0;
+        }
+        long wait = sends.get(sends.size() - 1).sentAt + MIN_INTERVAL_MS - now;
+        int excess = partCount - MAX_PARTS_PER_WINDOW;
+        for (Send send : sends) {
+            excess += send.parts;
+        }
+        // Wait for the oldest `excess` parts to leave the window
+        int released = 0;
+        for (Send send : sends) {
+            if (released >= excess) {
+                break;
+            }
+            released += send.parts;
+            wait = Math.max(wait, send.sentAt + RATE_WINDOW_MS - now);
+        }
+        return wait;
+    }
+
+    private void notifyStatus(Message message) {
+        if (statusListener != null) {
+            statusListener.onStatusChanged(message);
+        }
+    }
+}
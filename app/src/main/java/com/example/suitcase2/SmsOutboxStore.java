@@ -0,0 +1,154 @@
+package com.example.suitcase2;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The outbox in the sms_outbox table of the account's database. Each call is a single
+// statement, so it writes directly instead of through the write queue; there are only a
+// few writes per message. After close() reads find nothing and writes are dropped, the
+// database is closed with the account's repository right after.
+class SmsOutboxStore implements SmsOutbox.Store {
+
+    private static final String[] PROJECTION = {
+            DatabaseHelper.COLUMN_ID, DatabaseHelper.COLUMN_RECIPIENT, DatabaseHelper.COLUMN_BODY,
+            DatabaseHelper.COLUMN_STATUS, DatabaseHelper.COLUMN_ATTEMPTS, DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT,
+            DatabaseHelper.COLUMN_UPDATED_AT, DatabaseHelper.COLUMN_PARTS, DatabaseHelper.COLUMN_PARTS_SENT,
+            DatabaseHelper.COLUMN_PARTS_DELIVERED, DatabaseHelper.COLUMN_PART_REPORTS, DatabaseHelper.COLUMN_SENT_AT,
+            DatabaseHelper.COLUMN_WINDOW_PARTS, DatabaseHelper.COLUMN_ERROR
+    };
+
+    private static final String DUE_SELECTION = DatabaseHelper.COLUMN_STATUS + " = ? AND " +
+            DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT + " <= ?";
+
+    private final DatabaseHelper dbHelper;
+    // Guarded by `this`, like every access to the database
+    private boolean closed = false;
+
+    SmsOutboxStore(DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    // Waits for a call in progress, the ones after it do not touch the database
+    synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public synchronized long insert(String recipient, String body, long now) {
+        if (closed) {
+            return -1;
+        }
+        ContentValues values = new ContentValues();
+        values.put(DatabaseHelper.COLUMN_RECIPIENT, recipient);
+        values.put(DatabaseHelper.COLUMN_BODY, body);
+        values.put(DatabaseHelper.COLUMN_STATUS, SmsOutbox.STATUS_QUEUED);
+        values.put(DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT, now);
+        values.put(DatabaseHelper.COLUMN_UPDATED_AT, now);
+        return dbHelper.getWritableDatabase().insertOrThrow(DatabaseHelper.SMS_OUTBOX_TABLE_NAME, null, values);
+    }
+
+    @Override
+    public synchronized SmsOutbox.Message get(long id) {
+        if (closed) {
+            return null;
+        }
+        try (Cursor cursor = query(DatabaseHelper.COLUMN_ID + " = ?", new String[]{String.valueOf(id)}, null)) {
+            return cursor.moveToFirst() ? read(cursor) : null;
+        }
+    }
+
+    @Override
+    public synchronized SmsOutbox.Message nextDue(long now) {
+        if (closed) {
+            return null;
+        }
+        try (Cursor cursor = query(DUE_SELECTION,
+                new String[]{String.valueOf(SmsOutbox.STATUS_QUEUED), String.valueOf(now)}, "1")) {
+            return cursor.moveToFirst() ? read(cursor) : null;
+        }
+    }
+
+    @Override
+    public synchronized List<SmsOutbox.Message> overdue(long now) {
+        List<SmsOutbox.Message> messages = new ArrayList<>();
+        if (closed) {
+            return messages;
+        }
+        try (Cursor cursor = query(DUE_SELECTION,
+                new String[]{String.valueOf(SmsOutbox.STATUS_SENDING), String.valueOf(now)}, null)) {
+            while (cursor.moveToNext()) {
+                messages.add(read(cursor));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized long earliestAttempt() {
+        if (closed) {
+            return -1;
+        }
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT MIN(" + DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT + ") FROM " +
+                DatabaseHelper.SMS_OUTBOX_TABLE_NAME + " WHERE " + DatabaseHelper.COLUMN_STATUS + " IN (?, ?)",
+                new String[]{String.valueOf(SmsOutbox.STATUS_QUEUED), String.valueOf(SmsOutbox.STATUS_SENDING)})) {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        }
+    }
+
+    @Override
+    public synchronized List<SmsOutbox.Send> sendsSince(long since) {
+        List<SmsOutbox.Send> sends = new ArrayList<>();
+        if (closed) {
+            return sends;
+        }
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT " + DatabaseHelper.COLUMN_SENT_AT + ", " +
+                DatabaseHelper.COLUMN_WINDOW_PARTS + " FROM " + DatabaseHelper.SMS_OUTBOX_TABLE_NAME + " WHERE " +
+                DatabaseHelper.COLUMN_SENT_AT + " > ? AND " + DatabaseHelper.COLUMN_WINDOW_PARTS + " > 0 ORDER BY " +
+                DatabaseHelper.COLUMN_SENT_AT, new String[]{String.valueOf(since)})) {
+            while (cursor.moveToNext()) {
+                sends.add(new SmsOutbox.Send(cursor.getLong(0), cursor.getInt(1)));
+            }
+        }
+        return sends;
+    }
+
+    @Override
+    public synchronized void update(SmsOutbox.Message message) {
+        if (closed) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(DatabaseHelper.COLUMN_STATUS, message.getStatus());
+        values.put(DatabaseHelper.COLUMN_ATTEMPTS, message.getAttempts());
+        values.put(DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT, message.getNextAttemptAt());
+        values.put(DatabaseHelper.COLUMN_UPDATED_AT, message.getUpdatedAt());
+        values.put(DatabaseHelper.COLUMN_PARTS, message.getParts());
+        values.put(DatabaseHelper.COLUMN_PARTS_SENT, message.getPartsSent());
+        values.put(DatabaseHelper.COLUMN_PARTS_DELIVERED, message.getPartsDelivered());
+        values.put(DatabaseHelper.COLUMN_PART_REPORTS, message.getPartReports());
+        values.put(DatabaseHelper.COLUMN_SENT_AT, message.getSentAt());
+        values.put(DatabaseHelper.COLUMN_WINDOW_PARTS, message.getWindowParts());
+        values.put(DatabaseHelper.COLUMN_ERROR, message.getError());
+        dbHelper.getWritableDatabase().update(DatabaseHelper.SMS_OUTBOX_TABLE_NAME, values,
+                DatabaseHelper.COLUMN_ID + " = ?", new String[]{String.valueOf(message.id)});
+    }
+
+    // Oldest first, which is also the order they were delegated in
+    private Cursor query(String selection, String[] selectionArgs, String limit) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        return db.query(DatabaseHelper.SMS_OUTBOX_TABLE_NAME, PROJECTION, selection, selectionArgs, null, null,
+                DatabaseHelper.COLUMN_ID + " ASC", limit);
+    }
+
+    private static SmsOutbox.Message read(Cursor cursor) {
+        return new SmsOutbox.Message(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getInt(3),
+                cursor.getInt(4), cursor.getLong(5), cursor.getLong(6), cursor.getInt(7), cursor.getInt(8),
+                cursor.getInt(9), cursor.getString(10), cursor.getLong(11), cursor.getInt(12), cursor.getString(13));
+    }
+}
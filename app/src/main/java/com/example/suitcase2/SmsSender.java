@@ -0,0 +1,26 @@
+package com.example.suitcase2;
+
+import java.util.List;
+
+// The platform SMS API as the outbox sees it. PlatformSmsSender wraps SmsManager, tests use
+// a fake. Results arrive later through the Listener, tagged with the message id and attempt
+// that were passed to send().
+public interface SmsSender {
+
+    interface Listener {
+        void onPartSent(long messageId, int attempt, int part, boolean success, int errorCode);
+
+        void onPartDelivered(long messageId, int attempt, int part, boolean success);
+    }
+
+    void setListener(Listener listener);
+
+    // Splits `text` into the parts one multipart message is sent as
+    List<String> divideMessage(String text);
+
+    // Hands the parts to the radio. Throws if the platform refuses the message outright,
+    // e.g. without the SEND_SMS permission.
+    void send(long messageId, int attempt, String destination, List<String> parts);
+
+    void close();
+}
@@ -1,9 +1,11 @@
 package com.example.suitcase2;
 
-import static java.lang.Thread.sleep;
-
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
@@ -15,13 +17,30 @@ import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
-import java.lang.annotation.Annotation;
+import com.google.firebase.auth.FirebaseAuth;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+// Stays up only while the startup work runs. The auth check and the database work run in
+// parallel, and signed in users go straight to MainActivity with the first page loaded.
 public class Splash_Screen extends AppCompatActivity {
 
+    private static final String TAG = "Splash_Screen";
+
     ImageView imageView;
     TextView textView;
     Animation animation;
+
+    private final ExecutorService startupExecutor = Executors.newFixedThreadPool(2);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread
+    private boolean authChecked = false;
+    private boolean signedIn = false;
+    private boolean firstPageReady = false;
+    private boolean routed = false;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -38,20 +57,64 @@ public class Splash_Screen extends AppCompatActivity {
      animation= AnimationUtils.loadAnimation(this,R.anim.animation);
      imageView.setAnimation(animation);
 
+        final Context appContext = getApplicationContext();
+
+        // The session is restored from local storage, this does not go to the network
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean hasUser = FirebaseAuth.getInstance().getCurrentUser() != null;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        authChecked = true;
+                        signedIn = hasUser;
+                        route();
+                    }
+                });
+            }
+        });
+
+        // Opens (and if needed upgrades) the database and reads the first page for MainActivity
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Each account has its own database, so there is nothing to read when signed out
+                    if (FirebaseAuth.getInstance().getCurrentUser() != null) {
+                        ItemRepository.getInstance(appContext).prefetchFirstPage();
+                    }
+                } catch (RuntimeException e) {
+                    // MainActivity loads the page itself then
+                    Log.e(TAG, "Failed to prefetch items", e);
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        firstPageReady = true;
+                        route();
+                    }
+                });
+            }
+        });
+        startupExecutor.shutdown();
+    }
 
-     Thread thread=new Thread(new Runnable() {
-         @Override
-         public void run() {
-         try {
-             sleep(3000);
-             Intent intent=new Intent(Splash_Screen.this, Signup_Page.class);
-             startActivity(intent);
-         }catch (InterruptedException e){
-           e.printStackTrace();
-         }
-
-         }
-     });
-     thread.start();
+    // Leaves the splash as soon as there is enough to show the next screen.
+    // Signed out users do not need the items, so they do not wait for them.
+    private void route() {
+        if (routed || isFinishing() || !authChecked || (signedIn && !firstPageReady)) {
+            return;
+        }
+        routed = true;
+        Intent intent = new Intent(Splash_Screen.this, signedIn ? MainActivity.class : Signup_Page.class);
+        startActivity(intent);
+        finish();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mainHandler.removeCallbacksAndMessages(null);
+        super.onDestroy();
     }
-}
\ No newline at end of file
+}
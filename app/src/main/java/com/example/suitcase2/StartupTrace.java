@@ -0,0 +1,79 @@
+package com.example.suitcase2;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Timestamps of the launch path (process start, first frame of each activity, fully drawn,
+// auth round-trips) kept in a fixed size ring buffer, so tracing never grows memory.
+// Every mark is also logged under the StartupTrace tag, and dump() writes the buffer to
+// files/startup_trace.txt, readable with
+//   adb shell run-as com.example.suitcase2 cat files/startup_trace.txt
+public final class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+    private static final String DUMP_FILE = "startup_trace.txt";
+    private static final int CAPACITY = 128;
+
+    // Guarded by the class lock
+    private static final String[] events = new String[CAPACITY];
+    private static final long[] times = new long[CAPACITY]; // ms since process start
+    private static int next = 0;
+    private static int size = 0;
+
+    private static final ExecutorService dumpExecutor = Executors.newSingleThreadExecutor();
+
+    private StartupTrace() {
+    }
+
+    // Milliseconds since the process was forked from zygote
+    public static long sinceProcessStart() {
+        return SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+    }
+
+    public static void mark(String event) {
+        long time = sinceProcessStart();
+        synchronized (StartupTrace.class) {
+            events[next] = event;
+            times[next] = time;
+            next = (next + 1) % CAPACITY;
+            size = Math.min(size + 1, CAPACITY);
+        }
+        Log.i(TAG, time + " ms " + event);
+    }
+
+    // Oldest mark first, one per line
+    public static synchronized String snapshot() {
+        StringBuilder out = new StringBuilder();
+        int first = (next - size + CAPACITY) % CAPACITY;
+        for (int i = 0; i < size; i++) {
+            int index = (first + i) % CAPACITY;
+            out.append(times[index]).append(" ms\t").append(events[index]).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Writes the current marks to the dump file in the background
+    public static void dump(Context context) {
+        final String text = snapshot();
+        final File file = new File(context.getFilesDir(), DUMP_FILE);
+        dumpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer writer = new FileWriter(file)) {
+                    writer.write(text);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write " + file, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.suitcase2;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+public class SuitcaseApplication extends Application {
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.mark("Application created");
+        SyncEngine.getInstance(this).start();
+
+        // Time to initial display of every screen on the launch path
+        registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                final String name = activity.getClass().getSimpleName();
+                StartupTrace.mark(name + " created");
+                traceFirstFrame(activity.getWindow().getDecorView(), name);
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+            }
+        });
+    }
+
+    // Caches give memory back as the system asks, the list and the dialogs rebuild what
+    // they need later
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ImageLoader.trimMemory(level);
+        ContactIndex.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    private void traceFirstFrame(final View decorView, final String name) {
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean drawn = false;
+
+            @Override
+            public void onDraw() {
+                if (drawn) {
+                    return;
+                }
+                drawn = true;
+                StartupTrace.mark(name + " first frame");
+                final ViewTreeObserver.OnDrawListener listener = this;
+                // Listeners cannot be removed from inside onDraw
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The observer is replaced once the window is attached, so look it up again
+                        decorView.getViewTreeObserver().removeOnDrawListener(listener);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.suitcase2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+// One item as it travels to or from the sync server. Pushed changes carry only the fields
+// that were edited locally (fieldMask), pulled changes carry every field. Plain Java, so the
+// wire format can be tested on the JVM, and the benchmark module compiles this same file
+// for the dirty bits.
+public class SyncChange {
+
+    // Field bits, shared with the dirty column of the items table
+    public static final int FIELD_NAME = 1;
+    public static final int FIELD_PRICE = 1 << 1;
+    public static final int FIELD_DESCRIPTION = 1 << 2;
+    public static final int FIELD_IMAGE = 1 << 3;
+    public static final int FIELD_PURCHASED = 1 << 4;
+    public static final int ALL_FIELDS = FIELD_NAME | FIELD_PRICE | FIELD_DESCRIPTION | FIELD_IMAGE | FIELD_PURCHASED;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public final String syncId;
+    public final long version; // Server version the change is based on, 0 if never synced
+    public final long updatedAt;
+    public final boolean deleted;
+    public final int fieldMask;
+    public final String name;
+    public final long priceMinor;
+    public final String description;
+    public final String imageHash;
+    public final boolean purchased;
+
+    public SyncChange(String syncId, long version, long updatedAt, boolean deleted, int fieldMask, String name,
+                      long priceMinor, String description, String imageHash, boolean purchased) {
+        this.syncId = syncId;
+        this.version = version;
+        this.updatedAt = updatedAt;
+        this.deleted = deleted;
+        this.fieldMask = deleted ? 0 : fieldMask;
+        this.name = name;
+        this.priceMinor = priceMinor;
+        this.description = description;
+        this.imageHash = imageHash;
+        this.purchased = purchased;
+    }
+
+    public static SyncChange tombstone(String syncId, long version, long deletedAt) {
+        return new SyncChange(syncId, version, deletedAt, true, 0, null, 0, null, null, false);
+    }
+
+    public boolean has(int field) {
+        return (fieldMask & field) != 0;
+    }
+
+    // Fields of a pulled change to write into the local row: the ones not edited locally
+    // since the last sync. Local edits win for the fields they touch, everything else follows
+    // the server, so concurrent edits of different fields on two devices both survive.
+    public static int fieldsToApply(int remoteMask, int localDirty) {
+        return remoteMask & ~localDirty;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(syncId);
+        out.writeLong(version);
+        out.writeLong(updatedAt);
+        out.writeBoolean(deleted);
+        out.writeByte(fieldMask);
+        if (has(FIELD_NAME)) {
+            writeString(out, name);
+        }
+        if (has(FIELD_PRICE)) {
+            out.writeLong(priceMinor);
+        }
+        if (has(FIELD_DESCRIPTION)) {
+            writeString(out, description);
+        }
+        if (has(FIELD_IMAGE)) {
+            writeString(out, imageHash);
+        }
+        if (has(FIELD_PURCHASED)) {
+            out.writeBoolean(purchased);
+        }
+    }
+
+    static SyncChange readFrom(DataInputStream in) throws IOException {
+        String syncId = in.readUTF();
+        long version = in.readLong();
+        long updatedAt = in.readLong();
+        boolean deleted = in.readBoolean();
+        int fieldMask = in.readUnsignedByte();
+        String name = (fieldMask & FIELD_NAME) != 0 ? readString(in) : null;
+        long priceMinor = (fieldMask & FIELD_PRICE) != 0 ? in.readLong() : 0;
+        String description = (fieldMask & FIELD_DESCRIPTION) != 0 ? readString(in) : null;
+        String imageHash = (fieldMask & FIELD_IMAGE) != 0 ? readString(in) : null;
+        boolean purchased = (fieldMask & FIELD_PURCHASED) != 0 && in.readBoolean();
+        return new SyncChange(syncId, version, updatedAt, deleted, fieldMask, name, priceMinor,
+                description, imageHash, purchased);
+    }
+
+    // Length prefixed UTF-8, -1 for null. writeUTF is limited to 64 KB.
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.suitcase2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// HTTP side of the sync. One round is a single POST that pushes the local changes and pulls
+// the remote ones since the last token; images travel separately, addressed by their hash,
+// so an image the server already has is never sent again. Bodies are gzip compressed.
+//
+//   POST {base}/v1/users/{uid}/sync          request and response below, binary
+//   PUT  {base}/v1/users/{uid}/images/{hash} raw image bytes
+//   GET  {base}/v1/users/{uid}/images/{hash}
+//
+// Plain Java on purpose, so it can be tested against a local HTTP server on the JVM.
+public class SyncClient {
+
+    static final int PROTOCOL_VERSION = 1;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface TokenProvider {
+        String getUserId();
+
+        // Called before every request, may block
+        String getIdToken() throws IOException;
+    }
+
+    // Receives a downloaded image, must consume `in` before returning
+    public interface ImageSink {
+        void write(String hash, InputStream in) throws IOException;
+    }
+
+    // An HTTP status other than 2xx
+    public static class HttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+
+        HttpException(int status, String url) {
+            super("HTTP " + status + " from " + url);
+            this.status = status;
+        }
+    }
+
+    private final String baseUrl;
+    private final TokenProvider tokens;
+
+    public SyncClient(String baseUrl, TokenProvider tokens) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.tokens = tokens;
+    }
+
+    // Pushes `changes` and pulls at most `pullLimit` changes made since `sinceToken`
+    // (null for everything)
+    public SyncResponse sync(String sinceToken, int pullLimit, List<SyncChange> changes) throws IOException {
+        HttpURLConnection connection = open("sync", "POST");
+        try {
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(connection.getOutputStream(), BUFFER_SIZE)))) {
+                writeRequest(out, sinceToken, pullLimit, changes);
+            }
+            checkStatus(connection);
+            try (DataInputStream in = new DataInputStream(responseStream(connection))) {
+                int version = in.readInt();
+                if (version != PROTOCOL_VERSION) {
+                    throw new IOException("Unsupported sync protocol " + version);
+                }
+                return SyncResponse.readFrom(in);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // Streams the image from `in` without buffering it whole; does not close `in`
+    public void uploadImage(String hash, InputStream in, long length) throws IOException {
+        HttpURLConnection connection = open("images/" + hash, "PUT");
+        try {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            try (OutputStream out = connection.getOutputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            checkStatus(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public void downloadImage(String hash, ImageSink sink) throws IOException {
+        HttpURLConnection connection = open("images/" + hash, "GET");
+        try {
+            checkStatus(connection);
+            try (InputStream in = responseStream(connection)) {
+                sink.write(hash, in);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String path, String method) throws IOException {
+        URL url = new URL(baseUrl + "/v1/users/" + URLEncoder.encode(tokens.getUserId(), "UTF-8") + "/" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Authorization", "Bearer " + tokens.getIdToken());
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    private static void checkStatus(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status < 200 || status >= 300) {
+            throw new HttpException(status, connection.getURL().toString());
+        }
+    }
+
+    private static InputStream responseStream(HttpURLConnection connection) throws IOException {
+        InputStream in = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
+        return "gzip".equalsIgnoreCase(connection.getHeaderField("Content-Encoding")) ? new GZIPInputStream(in) : in;
+    }
+
+    static void writeRequest(DataOutputStream out, String sinceToken, int pullLimit, List<SyncChange> changes)
+            throws IOException {
+        out.writeInt(PROTOCOL_VERSION);
+        SyncChange.writeString(out, sinceToken);
+        out.writeInt(pullLimit);
+        out.writeInt(changes.size());
+        for (SyncChange change : changes) {
+            change.writeTo(out);
+        }
+    }
+
+    // A request as the server sees it, for stand-in servers in tests
+    static final class Request {
+        final String sinceToken;
+        final int pullLimit;
+        final List<SyncChange> changes;
+
+        Request(String sinceToken, int pullLimit, List<SyncChange> changes) {
+            this.sinceToken = sinceToken;
+            this.pullLimit = pullLimit;
+            this.changes = changes;
+        }
+    }
+
+    static Request readRequest(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported sync protocol " + version);
+        }
+        String sinceToken = SyncChange.readString(in);
+        int pullLimit = in.readInt();
+        int count = in.readInt();
+        List<SyncChange> changes = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; i < count; i++) {
+            changes.add(SyncChange.readFrom(in));
+        }
+        return new Request(sinceToken, pullLimit, changes);
+    }
+
+    static void writeResponse(DataOutputStream out, SyncResponse response) throws IOException {
+        out.writeInt(PROTOCOL_VERSION);
+        response.writeTo(out);
+    }
+}
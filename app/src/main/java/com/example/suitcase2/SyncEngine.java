@@ -0,0 +1,258 @@
+package com.example.suitcase2;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Keeps the items of the signed-in user in sync with the server named by the sync_base_url
+// string, entirely on a background thread. Local edits are pushed shortly after they are
+// committed, remote ones are pulled at the same time and every PERIOD_MS; failures are
+// retried with exponential backoff. An empty sync_base_url turns sync off.
+public class SyncEngine {
+
+    private static final String TAG = "SyncEngine";
+
+    // Edits made within this window go out together
+    private static final long DEBOUNCE_MS = 5000;
+    private static final long PERIOD_MS = TimeUnit.MINUTES.toMillis(15);
+    // Stays out of the way of the launch
+    private static final long STARTUP_DELAY_MS = 10000;
+    private static final long MIN_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private static final int PUSH_LIMIT = 200;
+    private static final int PULL_LIMIT = 500;
+    // Rounds per run; whatever is left waits for the next run
+    private static final int MAX_ROUNDS = 50;
+    private static final long TOKEN_TIMEOUT_SECONDS = 30;
+    private static final String TOKEN_KEY_PREFIX = "token:";
+
+    private static SyncEngine instance;
+
+    private final Context context;
+    private final String baseUrl;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+
+    // Guarded by `this`
+    private boolean started = false;
+    private boolean running = false;
+    private boolean requested = false; // A sync was asked for while one was running
+    private int failures = 0;
+    private ScheduledFuture<?> nextRun;
+
+    // Only touched on the executor
+    private boolean refreshToken = false;
+
+    private final Runnable runSync = new Runnable() {
+        @Override
+        public void run() {
+            runSync();
+        }
+    };
+
+    public static synchronized SyncEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new SyncEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SyncEngine(Context context) {
+        this.context = context;
+        baseUrl = context.getString(R.string.sync_base_url).trim();
+    }
+
+    public synchronized void start() {
+        if (started || baseUrl.isEmpty()) {
+            return;
+        }
+        started = true;
+        ItemRepository.setLocalWriteListener(new Runnable() {
+            @Override
+            public void run() {
+                requestSync();
+            }
+        });
+        FirebaseAuth.getInstance().addAuthStateListener(new FirebaseAuth.AuthStateListener() {
+            @Override
+            public void onAuthStateChanged(@NonNull FirebaseAuth auth) {
+                if (auth.getCurrentUser() != null) {
+                    requestSync();
+                }
+            }
+        });
+        schedule(STARTUP_DELAY_MS);
+    }
+
+    // Syncs within DEBOUNCE_MS. While backing off after a failure the retry picks it up.
+    public synchronized void requestSync() {
+        if (!started) {
+            return;
+        }
+        if (running) {
+            requested = true;
+        } else if (failures == 0 && (nextRun == null || nextRun.getDelay(TimeUnit.MILLISECONDS) > DEBOUNCE_MS)) {
+            schedule(DEBOUNCE_MS);
+        }
+    }
+
+    private void schedule(long delayMs) {
+        if (nextRun != null) {
+            nextRun.cancel(false);
+        }
+        nextRun = executor.schedule(runSync, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void runSync() {
+        synchronized (this) {
+            running = true;
+            requested = false;
+        }
+        boolean succeeded = false;
+        try {
+            syncAll();
+            succeeded = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Sync failed", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Sync failed", e);
+        }
+        synchronized (this) {
+            running = false;
+            if (succeeded) {
+                failures = 0;
+                schedule(requested ? DEBOUNCE_MS : PERIOD_MS);
+            } else {
+                failures++;
+                schedule(backoffMs(failures));
+            }
+        }
+    }
+
+    // Doubles with every failure, with jitter so devices that failed together do not retry together
+    private long backoffMs(int failures) {
+        long delay = MAX_BACKOFF_MS;
+        if (failures < 20) {
+            delay = Math.min(MIN_BACKOFF_MS << (failures - 1), MAX_BACKOFF_MS);
+        }
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    // Push and pull rounds until both sides are caught up. Only the signed-in account syncs,
+    // the others wait until they sign in again.
+    private void syncAll() throws IOException {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            return; // Signed out, the next sign in requests a sync
+        }
+        final ItemRepository repository = ItemRepository.forCurrentUser(context, user);
+        if (repository == null) {
+            return; // Signed out just now
+        }
+        final ImageStore imageStore = repository.getImageStore();
+        SyncClient client = new SyncClient(baseUrl, new FirebaseTokens(user));
+        String tokenKey = TOKEN_KEY_PREFIX + user.getUid();
+
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            List<SyncChange> pushed = repository.getPendingChanges(PUSH_LIMIT);
+            SyncResponse response;
+            try {
+                response = client.sync(repository.getSyncState(tokenKey), PULL_LIMIT, pushed);
+            } catch (SyncClient.HttpException e) {
+                if (e.status == 401) {
+                    refreshToken = true; // Expired or revoked, get a fresh one for the retry
+                }
+                throw e;
+            }
+
+            // Images go before the rows are marked synced, so a failed upload is retried
+            for (String hash : response.missingImages) {
+                uploadImage(client, imageStore, hash);
+            }
+            // A bad hash is skipped here and its change dropped by applySync
+            for (SyncChange change : response.changes) {
+                if (change.has(SyncChange.FIELD_IMAGE) && ImageStore.isValidHash(change.imageHash)
+                        && !imageStore.contains(change.imageHash)) {
+                    client.downloadImage(change.imageHash, new SyncClient.ImageSink() {
+                        @Override
+                        public void write(String hash, InputStream in) throws IOException {
+                            repository.createRenditions(imageStore.put(in, hash));
+                        }
+                    });
+                }
+            }
+
+            try {
+                repository.applySync(tokenKey, pushed, response).get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to apply sync", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while applying sync");
+            }
+
+            if (!response.hasMore && pushed.size() < PUSH_LIMIT) {
+                return;
+            }
+        }
+    }
+
+    private static void uploadImage(SyncClient client, ImageStore imageStore, String hash) throws IOException {
+        if (!ImageStore.isValidHash(hash)) {
+            Log.w(TAG, "Server asked for an image by a bad hash");
+            return;
+        }
+        if (!imageStore.contains(hash)) {
+            Log.w(TAG, "Server asked for missing image " + hash);
+            return;
+        }
+        try (InputStream in = imageStore.open(hash)) {
+            client.uploadImage(hash, in, imageStore.fileFor(hash).length());
+        }
+    }
+
+    private class FirebaseTokens implements SyncClient.TokenProvider {
+        private final FirebaseUser user;
+
+        FirebaseTokens(FirebaseUser user) {
+            this.user = user;
+        }
+
+        @Override
+        public String getUserId() {
+            return user.getUid();
+        }
+
+        @Override
+        public String getIdToken() throws IOException {
+            boolean forceRefresh = refreshToken;
+            refreshToken = false;
+            try {
+                return Tasks.await(user.getIdToken(forceRefresh), TOKEN_TIMEOUT_SECONDS, TimeUnit.SECONDS).getToken();
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IOException("Failed to get an ID token", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while getting an ID token");
+            }
+        }
+    }
+}
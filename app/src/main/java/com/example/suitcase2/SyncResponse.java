@@ -0,0 +1,55 @@
+package com.example.suitcase2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// What the server answers to one sync round: the changes made since the token that was
+// sent, the token to send next time, and the images of pushed changes it does not have yet.
+public class SyncResponse {
+
+    public final String newToken;
+    // True if the server holds back changes beyond the pull limit
+    public final boolean hasMore;
+    public final List<String> missingImages;
+    public final List<SyncChange> changes;
+
+    public SyncResponse(String newToken, boolean hasMore, List<String> missingImages, List<SyncChange> changes) {
+        this.newToken = newToken;
+        this.hasMore = hasMore;
+        this.missingImages = Collections.unmodifiableList(missingImages);
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        SyncChange.writeString(out, newToken);
+        out.writeBoolean(hasMore);
+        out.writeInt(missingImages.size());
+        for (String hash : missingImages) {
+            out.writeUTF(hash);
+        }
+        out.writeInt(changes.size());
+        for (SyncChange change : changes) {
+            change.writeTo(out);
+        }
+    }
+
+    static SyncResponse readFrom(DataInputStream in) throws IOException {
+        String newToken = SyncChange.readString(in);
+        boolean hasMore = in.readBoolean();
+        int missingCount = in.readInt();
+        List<String> missingImages = new ArrayList<>(missingCount);
+        for (int i = 0; i < missingCount; i++) {
+            missingImages.add(in.readUTF());
+        }
+        int changeCount = in.readInt();
+        List<SyncChange> changes = new ArrayList<>(changeCount);
+        for (int i = 0; i < changeCount; i++) {
+            changes.add(SyncChange.readFrom(in));
+        }
+        return new SyncResponse(newToken, hasMore, missingImages, changes);
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.suitcase2;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Queues item mutations and writes them on a single background thread. Everything queued
+// within BATCH_WINDOW_MS is committed in one transaction, and repeated purchased toggles
+// of the same item collapse into a single UPDATE with the last value.
+public class WriteQueue {
+
+    private static final String TAG = "WriteQueue";
+
+    // How long a write waits for others to join its transaction
+    private static final long BATCH_WINDOW_MS = 100;
+
+    // Called on the main thread once the mutation is committed, or rolled back
+    public interface Callback {
+        void onComplete(boolean success);
+    }
+
+    private interface Mutation {
+        // Returns false if the mutation had no effect, e.g. the row was already gone
+        boolean apply(ItemRepository repository);
+    }
+
+    private static class Pending {
+        Mutation mutation;
+        final List<Callback> callbacks = new ArrayList<>(1);
+    }
+
+    // Shared by every queue, so there is only ever one writer in the process
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    private final ItemRepository repository;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by `this`
+    private List<Pending> pending = new ArrayList<>();
+    private final Map<Long, Pending> pendingToggles = new HashMap<>();
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+
+    WriteQueue(ItemRepository repository) {
+        this.repository = repository;
+    }
+
+    void insertItem(final String name, final long priceMinor, final String description,
+                    final byte[] image, Callback callback) {
+        enqueue(new Mutation() {
+            @Override
+            public boolean apply(ItemRepository repository) {
+                return repository.executeInsert(name, priceMinor, description, image) != -1;
+            }
+        }, callback);
+    }
+
+    void updateItem(final long id, final ItemChanges changes, Callback callback) {
+        enqueue(new Mutation() {
+            @Override
+            public boolean apply(ItemRepository repository) {
+                return repository.executeUpdate(id, changes);
+            }
+        }, callback);
+    }
+
+    void deleteItem(final long id, Callback callback) {
+        enqueue(new Mutation() {
+            @Override
+            public boolean apply(ItemRepository repository) {
+                repository.executeDelete(id);
+                return true;
+            }
+        }, callback);
+    }
+
+    // All of `ids` in the same transaction; rows that are already gone are skipped
+    void deleteItems(final List<Long> ids, Callback callback) {
+        enqueue(new Mutation() {
+            @Override
+            public boolean apply(ItemRepository repository) {
+                for (long id : ids) {
+                    repository.executeDelete(id);
+                }
+                return true;
+            }
+        }, callback);
+    }
+
+    synchronized void markItemAsPurchased(final long id, final boolean purchased, Callback callback) {
+        if (closed) {
+            reject(callback);
+            return;
+        }
+        Pending toggle = pendingToggles.get(id);
+        if (toggle == null) {
+            toggle = new Pending();
+            pendingToggles.put(id, toggle);
+            pending.add(toggle);
+            scheduleDrain();
+        }
+        // A later tap overrides the earlier ones that have not been written yet
+        toggle.mutation = new Mutation() {
+            @Override
+            public boolean apply(ItemRepository repository) {
+                repository.executeMarkPurchased(id, purchased);
+                return true;
+            }
+        };
+        if (callback != null) {
+            toggle.callbacks.add(callback);
+        }
+    }
+
+    // Runs a task on the writer thread, after the writes queued before it. Dropped once closed.
+    synchronized void execute(Runnable task) {
+        if (closed) {
+            Log.w(TAG, "Dropped a task queued after close");
+            return;
+        }
+        writer.execute(task);
+    }
+
+    // Runs a task on the writer thread, the Future carries its result or exception. Once
+    // closed the Future fails right away.
+    synchronized <T> Future<T> submit(Callable<T> task) {
+        if (closed) {
+            FutureTask<T> rejected = new FutureTask<>(new Callable<T>() {
+                @Override
+                public T call() {
+                    throw new IllegalStateException("The write queue is closed");
+                }
+            });
+            rejected.run();
+            return rejected;
+        }
+        return writer.submit(task);
+    }
+
+    private synchronized void enqueue(Mutation mutation, Callback callback) {
+        if (closed) {
+            reject(callback);
+            return;
+        }
+        Pending entry = new Pending();
+        entry.mutation = mutation;
+        if (callback != null) {
+            entry.callbacks.add(callback);
+        }
+        pending.add(entry);
+        scheduleDrain();
+    }
+
+    // Written after the account signed out, it would open the closed database again
+    private void reject(final Callback callback) {
+        Log.w(TAG, "Rejected a write queued after close");
+        if (callback != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onComplete(false);
+                }
+            });
+        }
+    }
+
+    // Commits what is queued right away instead of at the end of the batch window, then runs
+    // `after` on the writer thread. Everything queued later is rejected.
+    synchronized void close(final Runnable after) {
+        closed = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                after.run();
+            }
+        });
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        drainScheduled = true;
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            pendingToggles.clear();
+            drainScheduled = false;
+        }
+        if (batch.isEmpty()) {
+            return; // Already drained by close()
+        }
+
+        final boolean[] results = new boolean[batch.size()];
+        boolean committed = false;
+        long start = Metrics.now();
+        try {
+            SQLiteDatabase db = repository.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    results[i] = batch.get(i).mutation.apply(repository);
+                }
+                repository.keepReferencedImages();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            // Only now, the commit itself can fail, e.g. when the disk is full
+            committed = true;
+        } catch (RuntimeException e) {
+            // Nothing in the batch was committed
+            Log.e(TAG, "Write batch of " + batch.size() + " failed", e);
+            for (int i = 0; i < results.length; i++) {
+                results[i] = false;
+            }
+        } finally {
+            repository.finishImages(committed);
+        }
+        Metrics.DB_WRITE_BATCH.stop(start);
+        Metrics.DB_WRITES.add(batch.size());
+        if (!committed) {
+            Metrics.DB_WRITE_FAILURES.add(batch.size());
+        }
+        if (committed) {
+            repository.onBatchCommitted();
+        }
+
+        final List<Pending> completed = batch;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < completed.size(); i++) {
+                    for (Callback callback : completed.get(i).callbacks) {
+                        callback.onComplete(results[i]);
+                    }
+                }
+            }
+        });
+    }
+}
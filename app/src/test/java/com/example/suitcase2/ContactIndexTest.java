@@ -0,0 +1,115 @@
+package com.example.suitcase2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// The in-memory contact search of the delegate dialog, and the stored list of recent delegates
+public class ContactIndexTest {
+
+    private static final Contact ADA = new Contact("Ada Lovelace", "+44 20 7946 0018");
+    private static final Contact ALAN = new Contact("Alan Turing", "+44 20 7946 0912");
+    private static final Contact GRACE = new Contact("Grace  Hopper-Murray", "(555) 010-0199");
+    private static final Contact NO_NAME = new Contact(null, "555-0123");
+
+    private final ContactIndex.Index index = new ContactIndex.Index(Arrays.asList(ADA, ALAN, GRACE, NO_NAME));
+
+    @Test
+    public void findsContactsByAnyNameWord() {
+        assertEquals(Arrays.asList(ADA), index.search("love", 10));
+        assertEquals(Arrays.asList(GRACE), index.search("murray", 10));
+        assertEquals(Arrays.asList(ADA, ALAN), index.search("A", 10));
+    }
+
+    @Test
+    public void findsContactsByWholeName() {
+        assertEquals(Arrays.asList(ADA), index.search("ada lov", 10));
+        // Punctuation and repeated spaces in the name do not matter
+        assertEquals(Arrays.asList(GRACE), index.search("Grace hopper murray", 10));
+        assertTrue(index.search("ada turing", 10).isEmpty());
+    }
+
+    @Test
+    public void findsContactsByNumberDigits() {
+        assertEquals(Arrays.asList(ADA, ALAN), index.search("+44 20", 10));
+        assertEquals(Arrays.asList(GRACE), index.search("(555) 010", 10));
+        assertEquals(Arrays.asList(GRACE, NO_NAME), index.search("555-01", 10));
+        assertEquals(Arrays.asList(NO_NAME), index.search("555-012", 10));
+    }
+
+    @Test
+    public void contactMatchingSeveralKeysIsListedOnce() {
+        Contact both = new Contact("Anna Annabel", "123");
+        ContactIndex.Index single = new ContactIndex.Index(Arrays.asList(both));
+
+        assertEquals(Arrays.asList(both), single.search("ann", 10));
+    }
+
+    @Test
+    public void stopsAtTheLimit() {
+        List<Contact> many = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            many.add(new Contact("Sam " + i, "555" + i));
+        }
+        ContactIndex.Index large = new ContactIndex.Index(many);
+
+        assertEquals(5, large.search("sam", 5).size());
+    }
+
+    @Test
+    public void blankOrUnmatchedTextFindsNothing() {
+        assertTrue(index.search("", 10).isEmpty());
+        assertTrue(index.search("  -- ", 10).isEmpty());
+        assertTrue(index.search("zed", 10).isEmpty());
+        assertTrue(new ContactIndex.Index(new ArrayList<Contact>()).search("a", 10).isEmpty());
+    }
+
+    @Test
+    public void normalizesNamesToLowerCaseWords() {
+        assertEquals("ada lovelace", ContactIndex.normalizeText("  Ada   LOVELACE "));
+        assertEquals("grace hopper murray", ContactIndex.normalizeText("Grace Hopper-Murray"));
+        assertEquals("", ContactIndex.normalizeText("--"));
+        assertEquals("15550100", ContactIndex.normalizeDigits("+1 (555) 01-00"));
+    }
+
+    @Test
+    public void recognizesTypedNumbers() {
+        assertTrue(ContactIndex.looksLikeNumber("+1 (555) 010-0199"));
+        assertTrue(ContactIndex.looksLikeNumber("5"));
+        assertFalse(ContactIndex.looksLikeNumber("+-() "));
+        assertFalse(ContactIndex.looksLikeNumber("555 Ada"));
+        assertFalse(ContactIndex.looksLikeNumber(""));
+    }
+
+    @Test
+    public void recentDelegatesSurviveEncoding() {
+        List<Contact> contacts = Arrays.asList(ADA, NO_NAME, new Contact("Tab\tand\nbreak", "+1 555\t0100"));
+
+        List<Contact> decoded = RecentDelegates.decode(RecentDelegates.encode(contacts));
+
+        assertEquals(3, decoded.size());
+        assertEquals(ADA.getName(), decoded.get(0).getName());
+        assertEquals(ADA.getNumber(), decoded.get(0).getNumber());
+        assertNull(decoded.get(1).getName());
+        assertEquals(NO_NAME.getNumber(), decoded.get(1).getNumber());
+        // Separators inside a field become spaces instead of breaking the format
+        assertEquals("Tab and break", decoded.get(2).getName());
+        assertEquals("+1 555 0100", decoded.get(2).getNumber());
+    }
+
+    @Test
+    public void recentDelegatesSkipLinesTheyDidNotWrite() {
+        assertTrue(RecentDelegates.decode(null).isEmpty());
+        assertTrue(RecentDelegates.decode("").isEmpty());
+
+        List<Contact> decoded = RecentDelegates.decode("garbage\n\tNo number\n555-0123\tSam");
+
+        assertEquals(1, decoded.size());
+        assertEquals("Sam", decoded.get(0).getName());
+        assertEquals("555-0123", decoded.get(0).getNumber());
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.suitcase2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// The record parser of the CSV import
+public class CsvReaderTest {
+
+    @Test
+    public void splitsRecordsIntoFields() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("name", "price"), Arrays.asList("Tent", "12.50")),
+                readAll("name,price\nTent,12.50\n"));
+    }
+
+    @Test
+    public void keepsCommasInQuotedFields() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("a", "b,c", "d")), readAll("a,\"b,c\",d\n"));
+    }
+
+    @Test
+    public void unescapesDoubledQuotes() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("say \"hi\"", "x")), readAll("\"say \"\"hi\"\"\",x\n"));
+        assertEquals(Arrays.asList(Arrays.asList("", "x")), readAll("\"\",x\n"));
+    }
+
+    @Test
+    public void quotedFieldsSpanLines() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("line 1\nline 2", "z"), Arrays.asList("next")),
+                readAll("\"line 1\nline 2\",z\nnext\n"));
+        // Line breaks inside quotes are kept as they are
+        assertEquals(Arrays.asList(Arrays.asList("a\r\nb")), readAll("\"a\r\nb\"\r\n"));
+    }
+
+    @Test
+    public void acceptsCrLfLfAndCrLineEnds() throws IOException {
+        List<List<String>> expected = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"),
+                Arrays.asList("e", "f"));
+
+        assertEquals(expected, readAll("a,b\r\nc,d\r\ne,f\r\n"));
+        assertEquals(expected, readAll("a,b\nc,d\ne,f\n"));
+        assertEquals(expected, readAll("a,b\r\nc,d\ne,f\r"));
+    }
+
+    @Test
+    public void readsLastRecordWithoutLineEnd() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d")), readAll("a,b\nc,d"));
+        assertEquals(Arrays.asList(Arrays.asList("a", "b c")), readAll("a,\"b c\""));
+    }
+
+    @Test
+    public void keepsEmptyFields() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("a", "", ""), Arrays.asList("", "b")), readAll("a,,\n,b\n"));
+    }
+
+    @Test
+    public void blankLinesAreOneEmptyField() throws IOException {
+        // The import skips them, see ItemTransfer.readCsv
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList(""), Arrays.asList(""), Arrays.asList("b")),
+                readAll("a\n\r\n\nb\n"));
+    }
+
+    @Test
+    public void quoteInsideAnUnquotedFieldIsText() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("5\" tent", "x")), readAll("5\" tent,x\n"));
+    }
+
+    @Test
+    public void emptyInputHasNoRecords() throws IOException {
+        assertNull(new CsvReader(new StringReader("")).readRecord());
+    }
+
+    @Test
+    public void rejectsUnterminatedQuote() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("a,b\nc,\"never closed\nd,e\n"));
+
+        assertEquals(Arrays.asList("a", "b"), reader.readRecord());
+        try {
+            reader.readRecord();
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            // The rest of the file is one broken field, nothing more is imported
+        }
+    }
+
+    // The rows are made as they are read and never held, so this also shows the reader
+    // keeps no more than the record it returns
+    @Test
+    public void readsFiftyThousandRowsFromAStream() throws IOException {
+        CsvReader reader = new CsvReader(new GeneratedCsv(50000));
+
+        assertEquals(Arrays.asList("name", "price", "description", "purchased"), reader.readRecord());
+        int rows = 0;
+        List<String> record;
+        while ((record = reader.readRecord()) != null) {
+            assertEquals(4, record.size());
+            assertEquals("Item " + rows + ", \"the\" one", record.get(0));
+            rows++;
+        }
+        assertEquals(50000, rows);
+    }
+
+    private static List<List<String>> readAll(String csv) throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(csv));
+        List<List<String>> records = new ArrayList<>();
+        List<String> record;
+        while ((record = reader.readRecord()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    // A header and `rows` quoted rows like an exported shopping list, produced on demand
+    private static class GeneratedCsv extends Reader {
+        private final int rows;
+        private int row = -1;
+        private String line = "name,price,description,purchased\r\n";
+        private int position = 0;
+
+        GeneratedCsv(int rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == line.length()) {
+                row++;
+                if (row == rows) {
+                    return -1;
+                }
+                line = "\"Item " + row + ", \"\"the\"\" one\"," + (row % 1000) + ".99,\"Notes for item " + row
+                        + "\nover two lines\"," + (row % 2) + "\r\n";
+                position = 0;
+            }
+            int count = Math.min(length, line.length() - position);
+            line.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.suitcase2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// The log-linear buckets of Metrics.Timer and the percentiles read from them
+public class MetricsTest {
+
+    @Test
+    public void valuesBelowEightHaveABucketEach() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, Metrics.Timer.bucketFor(value));
+            assertEquals(value, Metrics.Timer.upperBound(value));
+        }
+        assertEquals(0, Metrics.Timer.bucketFor(-5));
+    }
+
+    @Test
+    public void bucketsFollowEachOtherWithoutGaps() {
+        for (int index = 0; index < Metrics.Timer.BUCKETS - 1; index++) {
+            long upper = Metrics.Timer.upperBound(index);
+            assertEquals(index, Metrics.Timer.bucketFor(upper));
+            assertEquals(index + 1, Metrics.Timer.bucketFor(upper + 1));
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartABucket() {
+        for (int bits = 3; bits < 44; bits++) {
+            long power = 1L << bits;
+            int index = Metrics.Timer.bucketFor(power);
+            assertEquals(power - 1, Metrics.Timer.upperBound(index - 1));
+            assertWithinBound(power, Metrics.Timer.upperBound(index));
+        }
+    }
+
+    @Test
+    public void everyBoundIsWithinAnEighthOfTheValue() {
+        for (long value = 0; value < (1 << 16); value++) {
+            assertWithinBound(value, Metrics.Timer.upperBound(Metrics.Timer.bucketFor(value)));
+        }
+        for (int bits = 16; bits < 44; bits++) {
+            long power = 1L << bits;
+            for (long value : new long[]{power - 1, power + 1, power + power / 3, 2 * power - 1}) {
+                assertWithinBound(value, Metrics.Timer.upperBound(Metrics.Timer.bucketFor(value)));
+            }
+        }
+    }
+
+    @Test
+    public void longerDurationsGoToTheLastBucket() {
+        assertEquals(Metrics.Timer.BUCKETS - 1, Metrics.Timer.bucketFor((1L << 44) - 1));
+        assertEquals(Metrics.Timer.BUCKETS - 1, Metrics.Timer.bucketFor(1L << 44));
+        assertEquals(Metrics.Timer.BUCKETS - 1, Metrics.Timer.bucketFor(Long.MAX_VALUE));
+
+        Metrics.Timer timer = new Metrics.Timer("test");
+        timer.record(1000);
+        timer.record(1L << 50);
+        // Reported as the largest value seen rather than the bound of the last bucket
+        assertEquals(1L << 50, timer.percentile(0.99));
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        Metrics.Timer timer = new Metrics.Timer("test");
+        for (long value = 1; value <= 10000; value++) {
+            timer.record(value * 1000);
+        }
+
+        assertWithinBound(5000 * 1000, timer.percentile(0.50));
+        assertWithinBound(9500 * 1000, timer.percentile(0.95));
+        assertWithinBound(9900 * 1000, timer.percentile(0.99));
+        assertEquals(10000 * 1000, timer.percentile(1.0));
+    }
+
+    @Test
+    public void percentilesOfALongTail() {
+        // 90% fast reads at 200us, the slowest tenth at 40ms
+        Metrics.Timer timer = new Metrics.Timer("test");
+        for (int i = 0; i < 900; i++) {
+            timer.record(200000);
+        }
+        for (int i = 0; i < 100; i++) {
+            timer.record(40000000);
+        }
+
+        assertWithinBound(200000, timer.percentile(0.50));
+        assertWithinBound(200000, timer.percentile(0.90));
+        assertEquals(40000000, timer.percentile(0.95));
+        assertEquals(40000000, timer.percentile(0.99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Metrics.Timer timer = new Metrics.Timer("test");
+        for (int value = 0; value < 8; value++) {
+            timer.record(value);
+        }
+
+        assertEquals(3, timer.percentile(0.50));
+        assertEquals(7, timer.percentile(0.99));
+        assertEquals(0, timer.percentile(0));
+    }
+
+    @Test
+    public void neverAboveTheLargestValue() {
+        Metrics.Timer timer = new Metrics.Timer("test");
+        timer.record(1001);
+
+        assertEquals(1001, timer.percentile(0.50));
+        assertEquals(0, new Metrics.Timer("empty").percentile(0.99));
+    }
+
+    private static void assertWithinBound(long value, long reported) {
+        assertTrue(reported + " is below " + value, reported >= value);
+        assertTrue(reported + " is more than 12.5% above " + value, reported <= value + value / 8);
+    }
+}
@@ -0,0 +1,432 @@
+package com.example.suitcase2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+// Drives SmsOutbox with its own clock, an in-memory store and a fake radio
+public class SmsOutboxTest {
+
+    private static final String RECIPIENT = "+15550100";
+
+    private MemoryStore store;
+    private FakeSender sender;
+    private SmsOutbox outbox;
+    private final List<Integer> statuses = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        store = new MemoryStore();
+        sender = new FakeSender();
+        outbox = new SmsOutbox(store, sender);
+        outbox.setStatusListener(new SmsOutbox.StatusListener() {
+            @Override
+            public void onStatusChanged(SmsOutbox.Message message) {
+                statuses.add(message.getStatus());
+            }
+        });
+    }
+
+    @Test
+    public void sendsLongMessageInParts() {
+        String body = repeat('a', 350);
+        long id = outbox.enqueue(RECIPIENT, body, 0);
+
+        // Pumped again when the send times out
+        assertEquals(SmsOutbox.SEND_TIMEOUT_MS, outbox.pump(0));
+        assertEquals(1, sender.sends.size());
+        FakeSender.Send send = sender.sends.get(0);
+        assertEquals(id, send.messageId);
+        assertEquals(1, send.attempt);
+        assertEquals(RECIPIENT, send.destination);
+        assertEquals(3, send.parts.size());
+        assertEquals(body, send.parts.get(0) + send.parts.get(1) + send.parts.get(2));
+
+        SmsOutbox.Message message = store.get(id);
+        assertEquals(SmsOutbox.STATUS_SENDING, message.getStatus());
+        assertEquals(3, message.getParts());
+    }
+
+    @Test
+    public void tracksSentAndDeliveredPerPart() {
+        long id = outbox.enqueue(RECIPIENT, repeat('b', 200), 0);
+        outbox.pump(0);
+
+        outbox.onPartSent(id, 1, 0, true, 0, 10);
+        assertEquals(SmsOutbox.STATUS_SENDING, store.get(id).getStatus());
+        outbox.onPartSent(id, 1, 1, true, 0, 20);
+        assertEquals(SmsOutbox.STATUS_SENT, store.get(id).getStatus());
+
+        outbox.onPartDelivered(id, 1, 0, true, 30);
+        assertEquals(SmsOutbox.STATUS_SENT, store.get(id).getStatus());
+        outbox.onPartDelivered(id, 1, 1, true, 40);
+        assertEquals(SmsOutbox.STATUS_DELIVERED, store.get(id).getStatus());
+
+        assertEquals(Arrays.asList(SmsOutbox.STATUS_SENDING, SmsOutbox.STATUS_SENT, SmsOutbox.STATUS_DELIVERED),
+                statuses);
+        assertEquals(-1, outbox.pump(50));
+    }
+
+    @Test
+    public void repeatedPartReportsCountOnce() {
+        long id = outbox.enqueue(RECIPIENT, repeat('b', 200), 0);
+        outbox.pump(0);
+
+        outbox.onPartSent(id, 1, 0, true, 0, 10);
+        outbox.onPartSent(id, 1, 0, true, 0, 20);
+        SmsOutbox.Message message = store.get(id);
+        assertEquals(SmsOutbox.STATUS_SENDING, message.getStatus());
+        assertEquals(1, message.getPartsSent());
+
+        outbox.onPartSent(id, 1, 1, true, 0, 30);
+        outbox.onPartDelivered(id, 1, 1, true, 40);
+        outbox.onPartDelivered(id, 1, 1, true, 50);
+        message = store.get(id);
+        assertEquals(SmsOutbox.STATUS_SENT, message.getStatus());
+        assertEquals(1, message.getPartsDelivered());
+    }
+
+    @Test
+    public void deliveryBeforeLastSentReportEndsDelivered() {
+        long id = outbox.enqueue(RECIPIENT, "short", 0);
+        outbox.pump(0);
+
+        outbox.onPartDelivered(id, 1, 0, true, 10);
+        outbox.onPartSent(id, 1, 0, true, 0, 20);
+
+        assertEquals(SmsOutbox.STATUS_DELIVERED, store.get(id).getStatus());
+    }
+
+    @Test
+    public void failedDeliveryIsNotRetried() {
+        long id = outbox.enqueue(RECIPIENT, "short", 0);
+        outbox.pump(0);
+        outbox.onPartSent(id, 1, 0, true, 0, 10);
+
+        outbox.onPartDelivered(id, 1, 0, false, 20);
+
+        SmsOutbox.Message message = store.get(id);
+        assertEquals(SmsOutbox.STATUS_FAILED, message.getStatus());
+        assertNotNull(message.getError());
+        assertEquals(-1, outbox.pump(SmsOutbox.MAX_RETRY_MS));
+        assertEquals(1, sender.sends.size());
+    }
+
+    @Test
+    public void retriesWithBackoffThenFails() {
+        long id = outbox.enqueue(RECIPIENT, "short", 0);
+        long now = 0;
+        for (int attempt = 1; attempt <= SmsOutbox.MAX_ATTEMPTS; attempt++) {
+            outbox.pump(now);
+            assertEquals(attempt, sender.sends.size());
+            assertEquals(attempt, sender.sends.get(attempt - 1).attempt);
+
+            outbox.onPartSent(id, attempt, 0, false, 1, now);
+            SmsOutbox.Message message = store.get(id);
+            if (attempt < SmsOutbox.MAX_ATTEMPTS) {
+                assertEquals(SmsOutbox.STATUS_QUEUED, message.getStatus());
+                long delay = message.getNextAttemptAt() - now;
+                assertEquals(SmsOutbox.retryDelay(attempt), delay);
+                // Not due before the backoff ends
+                assertEquals(delay - 1, outbox.pump(now + 1));
+                assertEquals(attempt, sender.sends.size());
+                now += delay;
+            } else {
+                assertEquals(SmsOutbox.STATUS_FAILED, message.getStatus());
+                assertEquals("Send failed with error 1", message.getError());
+            }
+        }
+        assertEquals(-1, outbox.pump(now + SmsOutbox.MAX_RETRY_MS));
+        assertEquals(SmsOutbox.MAX_ATTEMPTS, sender.sends.size());
+    }
+
+    @Test
+    public void backoffDoublesUpToTheCap() {
+        assertEquals(SmsOutbox.MIN_RETRY_MS, SmsOutbox.retryDelay(1));
+        assertEquals(2 * SmsOutbox.MIN_RETRY_MS, SmsOutbox.retryDelay(2));
+        assertEquals(SmsOutbox.MAX_RETRY_MS, SmsOutbox.retryDelay(10));
+        assertEquals(SmsOutbox.MAX_RETRY_MS, SmsOutbox.retryDelay(100));
+    }
+
+    @Test
+    public void missingSentReportTimesOut() {
+        long id = outbox.enqueue(RECIPIENT, "short", 0);
+        outbox.pump(0);
+
+        assertEquals(SmsOutbox.SEND_TIMEOUT_MS, outbox.pump(0));
+        outbox.pump(SmsOutbox.SEND_TIMEOUT_MS);
+
+        SmsOutbox.Message message = store.get(id);
+        assertEquals(SmsOutbox.STATUS_QUEUED, message.getStatus());
+        assertEquals("No send report", message.getError());
+    }
+
+    @Test
+    public void staleReportsAreIgnored() {
+        long id = outbox.enqueue(RECIPIENT, "short", 0);
+        outbox.pump(0);
+        outbox.pump(SmsOutbox.SEND_TIMEOUT_MS); // First attempt timed out
+        long retryAt = store.get(id).getNextAttemptAt();
+        outbox.pump(retryAt);
+        assertEquals(2, store.get(id).getAttempts());
+
+        // The first attempt reports late, it must not change the second
+        outbox.onPartSent(id, 1, 0, false, 1, retryAt + 10);
+        assertEquals(SmsOutbox.STATUS_SENDING, store.get(id).getStatus());
+        outbox.onPartSent(id, 2, 0, true, 0, retryAt + 20);
+        assertEquals(SmsOutbox.STATUS_SENT, store.get(id).getStatus());
+        outbox.onPartDelivered(id, 1, 0, false, retryAt + 30);
+        assertEquals(SmsOutbox.STATUS_SENT, store.get(id).getStatus());
+    }
+
+    @Test
+    public void senderErrorCountsAsFailedAttempt() {
+        sender.error = new SecurityException("No SEND_SMS permission");
+        long id = outbox.enqueue(RECIPIENT, "short", 0);
+
+        outbox.pump(0);
+
+        SmsOutbox.Message message = store.get(id);
+        assertEquals(SmsOutbox.STATUS_QUEUED, message.getStatus());
+        assertEquals(1, message.getAttempts());
+        assertTrue(message.getError().contains("SEND_SMS"));
+    }
+
+    @Test
+    public void keepsMinimumIntervalBetweenMessages() {
+        long first = outbox.enqueue(RECIPIENT, "first", 0);
+        long second = outbox.enqueue(RECIPIENT, "second", 0);
+
+        outbox.pump(0);
+        assertEquals(SmsOutbox.MIN_INTERVAL_MS - 500, outbox.pump(500));
+        assertEquals(1, sender.sends.size());
+        assertEquals(first, sender.sends.get(0).messageId);
+
+        outbox.pump(SmsOutbox.MIN_INTERVAL_MS);
+        assertEquals(2, sender.sends.size());
+        assertEquals(second, sender.sends.get(1).messageId);
+    }
+
+    @Test
+    public void rateLimitDefersMessagesUntilPartsLeaveTheWindow() {
+        // 20 parts at 0 and 4 at 10 s leave room for one more in the window
+        outbox.enqueue(RECIPIENT, repeat('c', 20 * FakeSender.PART_LENGTH), 0);
+        outbox.pump(0);
+        outbox.enqueue(RECIPIENT, repeat('d', 4 * FakeSender.PART_LENGTH), 10000);
+        outbox.pump(10000);
+        outbox.enqueue(RECIPIENT, repeat('e', 2 * FakeSender.PART_LENGTH), 20000);
+
+        // Two more parts have to wait until the 20 parts of the first message expire
+        assertEquals(SmsOutbox.RATE_WINDOW_MS - 20000, outbox.pump(20000));
+        assertEquals(2, sender.sends.size());
+
+        outbox.pump(SmsOutbox.RATE_WINDOW_MS);
+        assertEquals(3, sender.sends.size());
+        assertEquals(2, sender.sends.get(2).parts.size());
+    }
+
+    @Test
+    public void rateLimitHoldsAcrossRestarts() {
+        outbox.enqueue(RECIPIENT, repeat('c', 24 * FakeSender.PART_LENGTH), 0);
+        outbox.pump(0);
+
+        // A new outbox over the same table, as after the process was killed
+        SmsOutbox restarted = new SmsOutbox(store, sender);
+        restarted.enqueue(RECIPIENT, repeat('d', 2 * FakeSender.PART_LENGTH), 10000);
+        assertEquals(SmsOutbox.RATE_WINDOW_MS - 10000, restarted.pump(10000));
+        assertEquals(1, sender.sends.size());
+    }
+
+    @Test
+    public void retriedPartsStillCountInTheWindow() {
+        long id = outbox.enqueue(RECIPIENT, repeat('c', 12 * FakeSender.PART_LENGTH), 0);
+        outbox.pump(0);
+        outbox.onPartSent(id, 1, 0, false, 1, 10);
+        long retryAt = store.get(id).getNextAttemptAt();
+        outbox.pump(retryAt);
+        assertEquals(2, sender.sends.size());
+
+        // Both attempts count, 24 parts leave room for one more. They are held until the
+        // retry leaves the window.
+        outbox.enqueue(RECIPIENT, repeat('d', 2 * FakeSender.PART_LENGTH), retryAt);
+        long now = retryAt + SmsOutbox.MIN_INTERVAL_MS;
+        assertEquals(retryAt + SmsOutbox.RATE_WINDOW_MS - now, outbox.pump(now));
+        assertEquals(2, sender.sends.size());
+    }
+
+    @Test
+    public void messageLargerThanTheWindowGoesOutAlone() {
+        outbox.enqueue(RECIPIENT, repeat('f', (SmsOutbox.MAX_PARTS_PER_WINDOW + 5) * FakeSender.PART_LENGTH), 0);
+        outbox.pump(0);
+
+        assertEquals(1, sender.sends.size());
+        assertEquals(SmsOutbox.MAX_PARTS_PER_WINDOW + 5, sender.sends.get(0).parts.size());
+    }
+
+    @Test
+    public void composesOneLinePerItemWithTotal() {
+        List<Item> items = Arrays.asList(
+                new Item(1, "Sunscreen", 1250, "SPF 50,\nthe big bottle", null, false),
+                new Item(2, "Adapter", 899, "", null, false));
+
+        assertEquals("Please buy these 2 items:\n" +
+                "- Sunscreen 12.50 (SPF 50, the big bottle)\n" +
+                "- Adapter 8.99\n" +
+                "Total 21.49", DelegationMessage.compose(items));
+    }
+
+    @Test
+    public void composesSingleItemWithShortenedDescription() {
+        List<Item> items = Collections.singletonList(
+                new Item(1, "Hat", 1500, repeat('x', 60), null, false));
+
+        String text = DelegationMessage.compose(items);
+
+        assertEquals("Please buy:\n- Hat 15.00 (" + repeat('x', DelegationMessage.MAX_DESCRIPTION_LENGTH - 3) + "...)",
+                text);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    // Splits into fixed-length parts like a GSM radio splits into 153 characters
+    private static class FakeSender implements SmsSender {
+        static final int PART_LENGTH = 153;
+
+        static class Send {
+            final long messageId;
+            final int attempt;
+            final String destination;
+            final List<String> parts;
+
+            Send(long messageId, int attempt, String destination, List<String> parts) {
+                this.messageId = messageId;
+                this.attempt = attempt;
+                this.destination = destination;
+                this.parts = parts;
+            }
+        }
+
+        final List<Send> sends = new ArrayList<>();
+        RuntimeException error;
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public List<String> divideMessage(String text) {
+            List<String> parts = new ArrayList<>();
+            for (int start = 0; start < text.length(); start += PART_LENGTH) {
+                parts.add(text.substring(start, Math.min(start + PART_LENGTH, text.length())));
+            }
+            return parts;
+        }
+
+        @Override
+        public void send(long messageId, int attempt, String destination, List<String> parts) {
+            sends.add(new Send(messageId, attempt, destination, parts));
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Hands out copies, like rows read back from the table
+    private static class MemoryStore implements SmsOutbox.Store {
+        private final Map<Long, SmsOutbox.Message> messages = new TreeMap<>();
+        private long nextId = 1;
+
+        @Override
+        public long insert(String recipient, String body, long now) {
+            long id = nextId++;
+            messages.put(id, new SmsOutbox.Message(id, recipient, body, SmsOutbox.STATUS_QUEUED, 0, now, now,
+                    0, 0, 0, null, 0, 0, null));
+            return id;
+        }
+
+        @Override
+        public SmsOutbox.Message get(long id) {
+            SmsOutbox.Message message = messages.get(id);
+            return message != null ? copy(message) : null;
+        }
+
+        @Override
+        public SmsOutbox.Message nextDue(long now) {
+            for (SmsOutbox.Message message : messages.values()) {
+                if (message.getStatus() == SmsOutbox.STATUS_QUEUED && message.getNextAttemptAt() <= now) {
+                    return copy(message);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public List<SmsOutbox.Message> overdue(long now) {
+            List<SmsOutbox.Message> overdue = new ArrayList<>();
+            for (SmsOutbox.Message message : messages.values()) {
+                if (message.getStatus() == SmsOutbox.STATUS_SENDING && message.getNextAttemptAt() <= now) {
+                    overdue.add(copy(message));
+                }
+            }
+            return overdue;
+        }
+
+        @Override
+        public long earliestAttempt() {
+            long earliest = -1;
+            for (SmsOutbox.Message message : messages.values()) {
+                int status = message.getStatus();
+                if ((status == SmsOutbox.STATUS_QUEUED || status == SmsOutbox.STATUS_SENDING)
+                        && (earliest < 0 || message.getNextAttemptAt() < earliest)) {
+                    earliest = message.getNextAttemptAt();
+                }
+            }
+            return earliest;
+        }
+
+        @Override
+        public List<SmsOutbox.Send> sendsSince(long since) {
+            List<SmsOutbox.Send> sends = new ArrayList<>();
+            for (SmsOutbox.Message message : messages.values()) {
+                if (message.getSentAt() > since && message.getWindowParts() > 0) {
+                    sends.add(new SmsOutbox.Send(message.getSentAt(), message.getWindowParts()));
+                }
+            }
+            Collections.sort(sends, new Comparator<SmsOutbox.Send>() {
+                @Override
+                public int compare(SmsOutbox.Send a, SmsOutbox.Send b) {
+                    return Long.compare(a.sentAt, b.sentAt);
+                }
+            });
+            return sends;
+        }
+
+        @Override
+        public void update(SmsOutbox.Message message) {
+            messages.put(message.id, copy(message));
+        }
+
+        private static SmsOutbox.Message copy(SmsOutbox.Message m) {
+            return new SmsOutbox.Message(m.id, m.recipient, m.body, m.getStatus(), m.getAttempts(),
+                    m.getNextAttemptAt(), m.getUpdatedAt(), m.getParts(), m.getPartsSent(), m.getPartsDelivered(),
+                    m.getPartReports(), m.getSentAt(), m.getWindowParts(), m.getError());
+        }
+    }
+}
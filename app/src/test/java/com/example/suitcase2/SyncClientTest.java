@@ -0,0 +1,323 @@
+package com.example.suitcase2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+// Runs SyncClient against a stand-in server on localhost that keeps the items in memory
+public class SyncClientTest {
+
+    private static final String USER = "user-1";
+    private static final String TOKEN = "id-token";
+
+    private HttpServer server;
+    private FakeSyncServer backend;
+    private SyncClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        backend = new FakeSyncServer();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/users/" + USER + "/", backend);
+        server.start();
+        client = newClient();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private SyncClient newClient() {
+        return new SyncClient("http://127.0.0.1:" + server.getAddress().getPort() + "/",
+                new SyncClient.TokenProvider() {
+                    @Override
+                    public String getUserId() {
+                        return USER;
+                    }
+
+                    @Override
+                    public String getIdToken() {
+                        return TOKEN;
+                    }
+                });
+    }
+
+    @Test
+    public void pushedChangeIsPulledByAnotherDevice() throws IOException {
+        SyncChange change = new SyncChange("a", 0, 100, false, SyncChange.ALL_FIELDS, "Tent", 12999,
+                "Two person", null, false);
+        SyncResponse pushed = client.sync(null, 100, Collections.singletonList(change));
+        assertEquals(1, pushed.changes.size());
+        assertEquals("gzip", backend.lastContentEncoding);
+        assertEquals("Bearer " + TOKEN, backend.lastAuthorization);
+
+        SyncResponse pulled = newClient().sync(null, 100, Collections.<SyncChange>emptyList());
+        assertEquals(1, pulled.changes.size());
+        SyncChange item = pulled.changes.get(0);
+        assertEquals("a", item.syncId);
+        assertEquals("Tent", item.name);
+        assertEquals(12999, item.priceMinor);
+        assertEquals("Two person", item.description);
+        assertTrue(item.version > 0);
+        assertFalse(pulled.hasMore);
+    }
+
+    @Test
+    public void pullsOnlyChangesSinceToken() throws IOException {
+        SyncResponse first = client.sync(null, 100, Collections.singletonList(
+                new SyncChange("a", 0, 100, false, SyncChange.ALL_FIELDS, "Tent", 100, null, null, false)));
+        SyncResponse second = client.sync(first.newToken, 100, Collections.singletonList(
+                new SyncChange("b", 0, 200, false, SyncChange.ALL_FIELDS, "Stove", 200, null, null, false)));
+        assertEquals(1, second.changes.size());
+        assertEquals("b", second.changes.get(0).syncId);
+
+        SyncResponse idle = client.sync(second.newToken, 100, Collections.<SyncChange>emptyList());
+        assertTrue(idle.changes.isEmpty());
+    }
+
+    @Test
+    public void pagesThroughChangesBeyondPullLimit() throws IOException {
+        List<SyncChange> changes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            changes.add(new SyncChange("item" + i, 0, i, false, SyncChange.ALL_FIELDS, "Item " + i, i, null, null, false));
+        }
+        client.sync(null, 0, changes);
+
+        String token = null;
+        int pulled = 0;
+        int rounds = 0;
+        SyncResponse response;
+        do {
+            response = newClient().sync(token, 2, Collections.<SyncChange>emptyList());
+            pulled += response.changes.size();
+            token = response.newToken;
+            rounds++;
+        } while (response.hasMore);
+        assertEquals(5, pulled);
+        assertEquals(3, rounds);
+    }
+
+    @Test
+    public void onlyPushedFieldsChangeOnServer() throws IOException {
+        client.sync(null, 0, Collections.singletonList(
+                new SyncChange("a", 0, 100, false, SyncChange.ALL_FIELDS, "Tent", 100, "Old", null, false)));
+        // Another device only changed the price
+        client.sync(null, 0, Collections.singletonList(
+                new SyncChange("a", 1, 200, false, SyncChange.FIELD_PRICE, null, 250, null, null, false)));
+
+        SyncChange item = newClient().sync(null, 100, Collections.<SyncChange>emptyList()).changes.get(0);
+        assertEquals("Tent", item.name);
+        assertEquals(250, item.priceMinor);
+        assertEquals("Old", item.description);
+    }
+
+    @Test
+    public void deleteIsPulledAsTombstone() throws IOException {
+        SyncResponse first = client.sync(null, 0, Collections.singletonList(
+                new SyncChange("a", 0, 100, false, SyncChange.ALL_FIELDS, "Tent", 100, null, null, false)));
+        client.sync(first.newToken, 0, Collections.singletonList(SyncChange.tombstone("a", 1, 300)));
+
+        SyncResponse pulled = newClient().sync(first.newToken, 100, Collections.<SyncChange>emptyList());
+        assertEquals(1, pulled.changes.size());
+        assertTrue(pulled.changes.get(0).deleted);
+    }
+
+    @Test
+    public void onlyMissingImagesAreRequested() throws IOException {
+        byte[] image = {1, 2, 3, 4, 5};
+        SyncChange change = new SyncChange("a", 0, 100, false, SyncChange.ALL_FIELDS, "Tent", 100, null, "hash1", false);
+        SyncResponse response = client.sync(null, 0, Collections.singletonList(change));
+        assertEquals(Collections.singletonList("hash1"), response.missingImages);
+
+        client.uploadImage("hash1", new ByteArrayInputStream(image), image.length);
+        assertArrayEquals(image, backend.images.get("hash1"));
+        assertEquals(1, backend.imageUploads);
+
+        // The same image on another item is not sent again
+        SyncChange other = new SyncChange("b", 0, 200, false, SyncChange.ALL_FIELDS, "Bag", 100, null, "hash1", false);
+        assertTrue(client.sync(response.newToken, 0, Collections.singletonList(other)).missingImages.isEmpty());
+        // Neither is an edit that leaves the image alone
+        SyncChange rename = new SyncChange("a", 1, 300, false, SyncChange.FIELD_NAME, "Big tent", 0, null, null, false);
+        assertTrue(client.sync(response.newToken, 0, Collections.singletonList(rename)).missingImages.isEmpty());
+        assertEquals(1, backend.imageUploads);
+    }
+
+    @Test
+    public void downloadsImage() throws IOException {
+        backend.images.put("hash1", new byte[]{9, 8, 7});
+        final byte[][] received = new byte[1][];
+        client.downloadImage("hash1", new SyncClient.ImageSink() {
+            @Override
+            public void write(String hash, InputStream in) throws IOException {
+                received[0] = readAll(in);
+            }
+        });
+        assertArrayEquals(new byte[]{9, 8, 7}, received[0]);
+    }
+
+    @Test
+    public void errorStatusIsReported() {
+        backend.failWith = 503;
+        try {
+            client.sync(null, 100, Collections.<SyncChange>emptyList());
+            fail("Expected an HttpException");
+        } catch (SyncClient.HttpException e) {
+            assertEquals(503, e.status);
+        } catch (IOException e) {
+            fail("Expected an HttpException, got " + e);
+        }
+    }
+
+    @Test
+    public void stringsSurviveRoundTrip() throws IOException {
+        SyncChange change = new SyncChange("a", 3, 100, false, SyncChange.ALL_FIELDS,
+                "Caf\u00e9 \u2708", 5, null, null, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        change.writeTo(new DataOutputStream(bytes));
+        SyncChange read = SyncChange.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals("Caf\u00e9 \u2708", read.name);
+        assertNull(read.description);
+        assertTrue(read.purchased);
+        assertEquals(3, read.version);
+    }
+
+    @Test
+    public void localEditsWinOnlyForTheirFields() {
+        int localDirty = SyncChange.FIELD_NAME | SyncChange.FIELD_PURCHASED;
+        int applied = SyncChange.fieldsToApply(SyncChange.ALL_FIELDS, localDirty);
+        assertEquals(SyncChange.FIELD_PRICE | SyncChange.FIELD_DESCRIPTION | SyncChange.FIELD_IMAGE, applied);
+        assertEquals(SyncChange.ALL_FIELDS, SyncChange.fieldsToApply(SyncChange.ALL_FIELDS, 0));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    // Keeps one user's items in memory. The token is the last server version the client has
+    // seen, and every accepted change gets the next version.
+    private static class FakeSyncServer implements HttpHandler {
+        final Map<String, SyncChange> items = new LinkedHashMap<>();
+        final Map<String, byte[]> images = new HashMap<>();
+        int imageUploads = 0;
+        int failWith = 0;
+        long version = 0;
+        String lastContentEncoding;
+        String lastAuthorization;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                lastAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (failWith != 0) {
+                    exchange.sendResponseHeaders(failWith, -1);
+                    return;
+                }
+                String path = exchange.getRequestURI().getPath();
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                if (name.equals("sync")) {
+                    handleSync(exchange);
+                } else if (exchange.getRequestMethod().equals("PUT")) {
+                    images.put(name, readAll(exchange.getRequestBody()));
+                    imageUploads++;
+                    exchange.sendResponseHeaders(204, -1);
+                } else if (images.containsKey(name)) {
+                    byte[] image = images.get(name);
+                    exchange.sendResponseHeaders(200, image.length);
+                    exchange.getResponseBody().write(image);
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void handleSync(HttpExchange exchange) throws IOException {
+            lastContentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            SyncClient.Request request = SyncClient.readRequest(
+                    new DataInputStream(new GZIPInputStream(exchange.getRequestBody())));
+
+            List<String> missing = new ArrayList<>();
+            for (SyncChange change : request.changes) {
+                accept(change);
+                if (change.has(SyncChange.FIELD_IMAGE) && change.imageHash != null
+                        && !images.containsKey(change.imageHash) && !missing.contains(change.imageHash)) {
+                    missing.add(change.imageHash);
+                }
+            }
+
+            long since = request.sinceToken == null ? 0 : Long.parseLong(request.sinceToken);
+            List<SyncChange> newer = new ArrayList<>();
+            for (SyncChange item : items.values()) {
+                if (item.version > since) {
+                    newer.add(item);
+                }
+            }
+            Collections.sort(newer, new Comparator<SyncChange>() {
+                @Override
+                public int compare(SyncChange a, SyncChange b) {
+                    return Long.compare(a.version, b.version);
+                }
+            });
+            boolean hasMore = newer.size() > request.pullLimit;
+            List<SyncChange> page = hasMore ? newer.subList(0, request.pullLimit) : newer;
+            long token = page.isEmpty() ? since : page.get(page.size() - 1).version;
+            if (!hasMore) {
+                token = Math.max(token, version);
+            }
+
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(exchange.getResponseBody()))) {
+                SyncClient.writeResponse(out, new SyncResponse(String.valueOf(token), hasMore, missing,
+                        new ArrayList<>(page)));
+            }
+        }
+
+        private void accept(SyncChange change) {
+            version++;
+            SyncChange old = items.get(change.syncId);
+            if (change.deleted) {
+                items.put(change.syncId, SyncChange.tombstone(change.syncId, version, change.updatedAt));
+                return;
+            }
+            items.put(change.syncId, new SyncChange(change.syncId, version, change.updatedAt, false,
+                    SyncChange.ALL_FIELDS,
+                    change.has(SyncChange.FIELD_NAME) || old == null ? change.name : old.name,
+                    change.has(SyncChange.FIELD_PRICE) || old == null ? change.priceMinor : old.priceMinor,
+                    change.has(SyncChange.FIELD_DESCRIPTION) || old == null ? change.description : old.description,
+                    change.has(SyncChange.FIELD_IMAGE) || old == null ? change.imageHash : old.imageHash,
+                    change.has(SyncChange.FIELD_PURCHASED) || old == null ? change.purchased : old.purchased));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+// JVM benchmarks for the persistence and image encoding hot paths. They run on a plain
+// JVM, with the xerial SQLite JDBC driver standing in for the Android SQLite bindings.
+//
+//   ./gradlew :benchmark:jmh
+//
+// Results are written as JSON to build/results/jmh/results.json, keep the file of each
+// release around to diff against.
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// The app's schema and sync field bits, compiled from the same source files, so the
+// benchmarks always run against the tables, indexes and triggers of the current database
+// version and mark rows dirty as the app does
+val appSchema = tasks.register<Sync>("appSchema") {
+    from("../app/src/main/java") {
+        include("com/example/suitcase2/ItemSchema.java")
+        include("com/example/suitcase2/SyncChange.java")
+    }
+    into(layout.buildDirectory.dir("generated/sources/appSchema"))
+}
+
+sourceSets {
+    named("jmh") {
+        java.srcDir(appSchema)
+    }
+}
+
+dependencies {
+    jmh(libs.jmh.core)
+    jmh(libs.jmh.generator.annprocess)
+    jmh(libs.sqlite.jdbc)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
@@ -0,0 +1,79 @@
+package com.example.suitcase2.benchmark;
+
+import com.example.suitcase2.ItemSchema;
+import com.example.suitcase2.SyncChange;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// A throwaway on-disk SQLite database with the app's schema: the DDL comes from the app's
+// own ItemSchema, see build.gradle.kts, so every write pays for the same indexes and
+// triggers (full-text index, budget totals, sync) as on the device.
+final class BenchmarkDatabase {
+
+    // What ItemRepository inserts, a new row is dirty throughout
+    static final String INSERT =
+            "INSERT INTO items (name, price_minor, description, image_hash, sync_id, updated_at, dirty)" +
+                    " VALUES (?, ?, ?, ?, ?, ?, " + SyncChange.ALL_FIELDS + ")";
+
+    // Rows inserted per transaction, like a busy write queue batch
+    static final int INSERT_BATCH = 500;
+
+    private final File file;
+    final Connection connection;
+
+    BenchmarkDatabase() throws IOException, SQLException {
+        file = File.createTempFile("suitcase-bench", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            // Same journal mode as the app
+            statement.execute("PRAGMA journal_mode=WAL");
+            for (String sql : ItemSchema.createStatements()) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    void fill(int rows) throws SQLException {
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            for (int i = 0; i < rows; i++) {
+                bindItem(insert, i);
+                insert.executeUpdate();
+                if ((i + 1) % INSERT_BATCH == 0) {
+                    connection.commit();
+                }
+            }
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    static void bindItem(PreparedStatement insert, int i) throws SQLException {
+        insert.setString(1, "Item " + i);
+        insert.setLong(2, 100 + (i % 10000));
+        insert.setString(3, "Description of item " + i + ", long enough to look like a real note");
+        insert.setString(4, String.format("%064x", i));
+        insert.setString(5, String.format("%032x", i)); // Unique, like the UUIDs of the app
+        insert.setLong(6, 1700000000000L + i);
+    }
+
+    void close() throws SQLException {
+        connection.close();
+        delete(file);
+        delete(new File(file.getPath() + "-wal"));
+        delete(new File(file.getPath() + "-shm"));
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.suitcase2.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+// Encoding a picked photo before it is stored, what ImageIngest does with Bitmap.compress:
+// JPEG at its default quality, scaled to fit at most 2048 pixels. ImageIO stands in for the
+// Android codecs, so compare the formats and sizes with each other rather than reading the
+// numbers as device timings. ImageIO has no WebP encoder, so the WebP renditions of
+// ImageRenditions and the WebP ingest option are not covered. PNG is the lossless
+// encoding every picked image got before ImageIngest, kept as the baseline.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImageEncodingBenchmark {
+
+    // ImageIngest.DEFAULT_QUALITY, as a fraction
+    private static final float JPEG_QUALITY = 0.85f;
+
+    // Longest side of the stored image in pixels, up to ImageIngest.DEFAULT_MAX_SIZE
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    private BufferedImage image;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = new BufferedImage(size, size * 3 / 4, BufferedImage.TYPE_INT_RGB);
+        // Smooth gradients with some noise compress like a photo, a flat color would not
+        Random random = new Random(42);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int noise = random.nextInt(16);
+                int r = (x * 255 / image.getWidth() + noise) & 0xff;
+                int g = (y * 255 / image.getHeight() + noise) & 0xff;
+                int b = ((x + y) * 127 / size + noise) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpg")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.suitcase2.benchmark;
+
+import com.example.suitcase2.SyncChange;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The statements ItemRepository, ItemPager and the write queue run, against tables of
+// 1k, 10k and 100k items. Edits mark the row dirty for the sync as the app does; the
+// dirty bits are those of SyncChange.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ItemDatabaseBenchmark {
+
+    private static final int PAGE_SIZE = 50; // ItemPager.PAGE_SIZE
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+    private PreparedStatement insert;
+    private PreparedStatement selectAll;
+    private PreparedStatement selectPage;
+    private PreparedStatement updateName;
+    private PreparedStatement updateAllColumns;
+    private PreparedStatement updatePurchased;
+    private int next;
+
+    // What the adapter keeps per row, mirrors Item
+    private static final class Row {
+        final long id;
+        final String name;
+        final long priceMinor;
+        final String description;
+        final String imageHash;
+        final boolean purchased;
+
+        Row(long id, String name, long priceMinor, String description, String imageHash, boolean purchased) {
+            this.id = id;
+            this.name = name;
+            this.priceMinor = priceMinor;
+            this.description = description;
+            this.imageHash = imageHash;
+            this.purchased = purchased;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        database = new BenchmarkDatabase();
+        database.fill(rows);
+        insert = database.connection.prepareStatement(BenchmarkDatabase.INSERT);
+        selectAll = database.connection.prepareStatement("SELECT * FROM items");
+        selectPage = database.connection.prepareStatement(
+                "SELECT _id, name, price_minor, description, image_hash, purchased FROM items" +
+                        " WHERE _id > ? ORDER BY _id LIMIT " + PAGE_SIZE);
+        updateName = database.connection.prepareStatement(
+                "UPDATE items SET name = ?, dirty = dirty | " + SyncChange.FIELD_NAME +
+                        ", updated_at = ? WHERE _id = ?");
+        updateAllColumns = database.connection.prepareStatement(
+                "UPDATE items SET name = ?, price_minor = ?, description = ?, image_hash = ?," +
+                        " dirty = dirty | " + (SyncChange.FIELD_NAME | SyncChange.FIELD_PRICE |
+                        SyncChange.FIELD_DESCRIPTION | SyncChange.FIELD_IMAGE) + ", updated_at = ? WHERE _id = ?");
+        updatePurchased = database.connection.prepareStatement(
+                "UPDATE items SET purchased = ?, dirty = dirty | " + SyncChange.FIELD_PURCHASED +
+                        ", updated_at = ? WHERE _id = ?");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        database.close();
+    }
+
+    // Picks the rows in a fixed order, so runs are comparable
+    private long nextId() {
+        next = (next + 7919) % rows;
+        return next + 1;
+    }
+
+    // One write queue batch: a transaction of inserts. It is rolled back so the table keeps its size.
+    @Benchmark
+    public void insertBatch() throws SQLException {
+        database.connection.setAutoCommit(false);
+        try {
+            for (int i = 0; i < BenchmarkDatabase.INSERT_BATCH; i++) {
+                BenchmarkDatabase.bindItem(insert, rows + i);
+                insert.executeUpdate();
+            }
+        } finally {
+            database.connection.rollback();
+            database.connection.setAutoCommit(true);
+        }
+    }
+
+    // Loading the whole table, as getAllItems did before paging
+    @Benchmark
+    public List<Row> getAllItems() throws SQLException {
+        try (ResultSet result = selectAll.executeQuery()) {
+            return mapResolvedOnce(result);
+        }
+    }
+
+    // Same rows, but looking every column up by name per row like the old loadItems did
+    @Benchmark
+    public List<Row> getAllItemsLookupPerRow() throws SQLException {
+        List<Row> items = new ArrayList<>();
+        try (ResultSet result = selectAll.executeQuery()) {
+            while (result.next()) {
+                items.add(new Row(result.getLong(result.findColumn("_id")),
+                        result.getString(result.findColumn("name")),
+                        result.getLong(result.findColumn("price_minor")),
+                        result.getString(result.findColumn("description")),
+                        result.getString(result.findColumn("image_hash")),
+                        result.getInt(result.findColumn("purchased")) == 1));
+            }
+        }
+        return items;
+    }
+
+    // One keyset page, what ItemPager loads while scrolling
+    @Benchmark
+    public List<Row> getItemsPage() throws SQLException {
+        selectPage.setLong(1, nextId());
+        try (ResultSet result = selectPage.executeQuery()) {
+            return mapResolvedOnce(result);
+        }
+    }
+
+    // An edit that changed only the name, as ItemRepository writes it
+    @Benchmark
+    public int updateItemChangedColumns() throws SQLException {
+        long id = nextId();
+        updateName.setString(1, "Renamed " + id);
+        updateName.setLong(2, System.currentTimeMillis());
+        updateName.setLong(3, id);
+        return updateName.executeUpdate();
+    }
+
+    // The same edit writing every column, as updateItem did before
+    @Benchmark
+    public int updateItemAllColumns() throws SQLException {
+        long id = nextId();
+        updateAllColumns.setString(1, "Renamed " + id);
+        updateAllColumns.setLong(2, 100 + id);
+        updateAllColumns.setString(3, "Description of item " + id + ", long enough to look like a real note");
+        updateAllColumns.setString(4, String.format("%064x", id));
+        updateAllColumns.setLong(5, System.currentTimeMillis());
+        updateAllColumns.setLong(6, id);
+        return updateAllColumns.executeUpdate();
+    }
+
+    @Benchmark
+    public int markItemAsPurchased() throws SQLException {
+        long id = nextId();
+        updatePurchased.setInt(1, (int) (id & 1));
+        updatePurchased.setLong(2, System.currentTimeMillis());
+        updatePurchased.setLong(3, id);
+        return updatePurchased.executeUpdate();
+    }
+
+    // Column indexes resolved once per result, like ItemRowMapper
+    private static List<Row> mapResolvedOnce(ResultSet result) throws SQLException {
+        int idIndex = result.findColumn("_id");
+        int nameIndex = result.findColumn("name");
+        int priceMinorIndex = result.findColumn("price_minor");
+        int descriptionIndex = result.findColumn("description");
+        int imageHashIndex = result.findColumn("image_hash");
+        int purchasedIndex = result.findColumn("purchased");
+
+        List<Row> items = new ArrayList<>();
+        while (result.next()) {
+            items.add(new Row(result.getLong(idIndex), result.getString(nameIndex),
+                    result.getLong(priceMinorIndex), result.getString(descriptionIndex),
+                    result.getString(imageHashIndex), result.getInt(purchasedIndex) == 1));
+        }
+        return items;
+    }
+}